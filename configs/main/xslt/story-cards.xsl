@@ -4,6 +4,17 @@
 
 	<xsl:output method="xml"/>
 
+	<!-- number of the first page; set when a list is rendered in parts -->
+	<xsl:param name="initial-page-number" select="'auto'"/>
+
+	<!--
+		Streaming: a list is transformed without its cards and leaves a
+		"cards" processing instruction where they belong.  Each card is
+		then transformed by itself, given its position in the list.
+	-->
+	<xsl:param name="stream-cards" select="false()"/>
+	<xsl:param name="card-position" select="1"/>
+
 
 	<xsl:template name="separator">
 		<xsl:choose>
@@ -125,17 +136,27 @@
 					<fo:region-body/>
 				</fo:simple-page-master>
 			</fo:layout-master-set>
-			<fo:page-sequence master-reference="spm">
+			<fo:page-sequence master-reference="spm" initial-page-number="{$initial-page-number}">
 				<fo:flow flow-name="xsl-region-body">
 					<xsl:apply-templates select="story"/>
+					<xsl:if test="$stream-cards">
+						<xsl:processing-instruction name="cards"/>
+					</xsl:if>
 				</fo:flow>
 			</fo:page-sequence>
 		</fo:root>
 	</xsl:template>
 
-	<xsl:template match="task">
+	<xsl:template match="/task">
+		<xsl:call-template name="task">
+			<xsl:with-param name="position" select="$card-position"/>
+		</xsl:call-template>
+	</xsl:template>
+
+	<xsl:template match="task" name="task">
+		<xsl:param name="position" select="position()"/>
 		<xsl:element name="fo:table-cell">
-			<xsl:if test="position() mod 2 = 0">
+			<xsl:if test="$position mod 2 = 0">
 				<xsl:attribute name="ends-row">true</xsl:attribute>
 			</xsl:if>
 			<xsl:attribute name="padding-bottom">0.125in</xsl:attribute>
@@ -197,7 +218,7 @@
 				</fo:table>
 			</fo:block-container>
 		</xsl:element>
-		<xsl:if test="position() mod 2 = 1">
+		<xsl:if test="$position mod 2 = 1">
 			<fo:table-cell><fo:block/></fo:table-cell>
 		</xsl:if>
 	</xsl:template>
@@ -210,7 +231,7 @@
 					<fo:region-body/>
 				</fo:simple-page-master>
 			</fo:layout-master-set>
-			<fo:page-sequence master-reference="spm">
+			<fo:page-sequence master-reference="spm" initial-page-number="{$initial-page-number}">
 				<fo:flow flow-name="xsl-region-body">
 					<fo:table table-layout="fixed">
 						<fo:table-column column-width="3.75in"/>
@@ -218,6 +239,9 @@
 						<fo:table-column column-width="3.75in"/>
 						<fo:table-body>
 							<xsl:apply-templates select="task"/>
+							<xsl:if test="$stream-cards">
+								<xsl:processing-instruction name="cards"/>
+							</xsl:if>
 						</fo:table-body>
 					</fo:table>
 				</fo:flow>
@@ -0,0 +1,95 @@
+package standup.application;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import standup.utility.ModelReader;
+import standup.utility.Utilities;
+
+
+/**
+ * Puts the cards into the formatting objects of a list that was
+ * transformed without them.
+ * <p>
+ * The list is transformed with the {@code stream-cards} parameter set,
+ * so where its cards belong the stylesheet leaves a {@code cards}
+ * processing instruction.  When the instruction comes by, each card is
+ * transformed by itself and its formatting objects are passed on in its
+ * place.  Only one card is ever held by the transformer.
+ */
+class CardSplicer extends XMLFilterImpl {
+	/** Processing instruction that marks where the cards belong. */
+	static final String CARDS_INSTRUCTION = "cards";
+	/** Stylesheet parameter that holds the position of a card in its list. */
+	static final String CARD_POSITION_PARAMETER = "card-position";
+
+	private static final Logger logger = Logger.getLogger(CardSplicer.class);
+	private final Templates stylesheet;
+	private final String xsltFilename;
+	private final List<?> cards;
+
+	/**
+	 * @param target the handler that receives the formatting objects
+	 * @param stylesheet the stylesheet to transform each card with
+	 * @param xsltFilename resource name of the stylesheet, for diagnostics
+	 * @param cards the stories or tasks of the list
+	 */
+	CardSplicer(ContentHandler target, Templates stylesheet, String xsltFilename, List<?> cards) {
+		this.stylesheet = stylesheet;
+		this.xsltFilename = xsltFilename;
+		this.cards = cards;
+		setContentHandler(target);
+	}
+
+	@Override
+	public void processingInstruction(String target, String data) throws SAXException {
+		if (!CARDS_INSTRUCTION.equals(target)) {
+			super.processingInstruction(target, data);
+			return;
+		}
+		ContentHandler fragment = new Fragment(getContentHandler());
+		int position = 1;
+		try {
+			for (Object card: cards) {
+				Utilities.runXSLT(new SAXResult(fragment), stylesheet, xsltFilename, logger,
+						ModelReader.createSource(card),
+						Collections.singletonMap(CARD_POSITION_PARAMETER, position++));
+			}
+		} catch (TransformerException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	/**
+	 * Passes on the formatting objects of a card, but not the start and
+	 * end of its document.
+	 */
+	private static class Fragment extends XMLFilterImpl {
+		Fragment(ContentHandler target) {
+			setContentHandler(target);
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+		}
+
+		@Override
+		public void startDocument() {
+		}
+
+		@Override
+		public void endDocument() {
+		}
+	}
+
+}
@@ -1,37 +1,165 @@
 package standup.application;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.bind.util.JAXBSource;
-import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.Templates;
 import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
+import org.apache.fop.apps.FOUserAgent;
 import org.apache.fop.apps.Fop;
 import org.apache.fop.apps.FopFactory;
 import org.apache.fop.apps.MimeConstants;
+import org.apache.fop.render.intermediate.IFContext;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFSerializer;
+import org.apache.fop.render.intermediate.IFUtil;
 import org.apache.log4j.Logger;
+import org.xml.sax.ContentHandler;
 
+import standup.utility.ModelReader;
 import standup.utility.Utilities;
+import standup.utility.XMLResources;
 import standup.xml.StoryList;
+import standup.xml.StoryType;
 import standup.xml.TaskList;
+import standup.xml.TaskType;
 
 
+/**
+ * Renders stories and tasks as PDF cards.
+ * <p>
+ * Formatters are cheap: the JAXB context, FOP factory and compiled
+ * stylesheet come from {@link XMLResources} and are shared by every
+ * instance.
+ * <p>
+ * By default a PDF is rendered on the calling thread.  With more than one
+ * {@linkplain #setRenderThreads(int) render thread} a long list is split
+ * into parts of whole pages, the parts are laid out side by side in FOP's
+ * intermediate format and the pages are then joined into a single PDF in
+ * their original order.  Every card has a fixed size, so the cards land
+ * on the same pages and in the same places either way.
+ */
 public class Formatter {
+	/** Stylesheet that lays out the cards. */
+	static final String STORY_CARDS_XSL = "xslt/story-cards.xsl";
+	/** Story cards on a page of {@link #STORY_CARDS_XSL}: one above the other. */
+	static final int STORIES_PER_PAGE = 2;
+	/** Task cards on a page of {@link #STORY_CARDS_XSL}: two rows of two. */
+	static final int TASKS_PER_PAGE = 4;
+	/** Default number of pages in each part of a list rendered in parts. */
+	static final int DEFAULT_PAGES_PER_PART = 8;
+	/** Stylesheet parameter that has the cards of a list left out. */
+	static final String STREAM_CARDS_PARAMETER = "stream-cards";
+
 	private static final Logger logger = Logger.getLogger(Formatter.class);
 	private final FopFactory fopFactory;
-	private final TransformerFactory xformerFactory;
 	private final JAXBContext jaxb;
+	private volatile int renderThreads = 1;
+	private volatile int pagesPerPart = DEFAULT_PAGES_PER_PART;
+	private volatile boolean streamCards = true;
+	private volatile PageCache pageCache = null;
 
 	public Formatter() throws JAXBException {
-		fopFactory = FopFactory.newInstance();
-		xformerFactory = TransformerFactory.newInstance();
-		jaxb = JAXBContext.newInstance("standup.xml");
+		fopFactory = XMLResources.getFopFactory();
+		jaxb = XMLResources.getJAXBContext();
+	}
+
+	/**
+	 * @return the number of threads that render a PDF
+	 */
+	public int getRenderThreads() {
+		return renderThreads;
+	}
+
+	/**
+	 * Set the number of threads that render a PDF.
+	 *
+	 * @param renderThreads the number of threads; one or less renders
+	 *        every PDF on the calling thread
+	 */
+	public void setRenderThreads(int renderThreads) {
+		this.renderThreads = renderThreads;
+	}
+
+	/**
+	 * @return the number of pages in each part of a list rendered in parts
+	 */
+	public int getPagesPerPart() {
+		return pagesPerPart;
+	}
+
+	/**
+	 * Set the number of pages in each part of a list rendered in parts.
+	 * Smaller parts spread the work more evenly, larger ones cost less to
+	 * join.
+	 */
+	public void setPagesPerPart(int pagesPerPart) {
+		this.pagesPerPart = Math.max(1, pagesPerPart);
+	}
+
+	/**
+	 * @return whether the cards are transformed one at a time
+	 */
+	public boolean isStreamCards() {
+		return streamCards;
+	}
+
+	/**
+	 * Set whether the cards are transformed one at a time.
+	 * <p>
+	 * The stylesheet builds a tree of the document that it transforms, so
+	 * transforming a list in one go holds all of its cards at once.
+	 * Streamed, the list is transformed without its cards and each card
+	 * is then transformed by itself, which holds a single card at a time.
+	 * The formatting objects are the same either way.
+	 */
+	public void setStreamCards(boolean streamCards) {
+		this.streamCards = streamCards;
+	}
+
+	/**
+	 * @return the cache of laid out pages or <code>null</code> if every
+	 *         page is laid out afresh
+	 */
+	public PageCache getPageCache() {
+		return pageCache;
+	}
+
+	/**
+	 * Keep laid out pages in a cache and take the pages whose cards have
+	 * not changed from there, so that rendering an iteration again only
+	 * lays out the pages that changed.  Pages that are not in the cache
+	 * are laid out one by one on the {@linkplain #setRenderThreads(int)
+	 * render threads}.
+	 *
+	 * @param pageCache the cache or <code>null</code> to lay out every
+	 *        page afresh
+	 */
+	public void setPageCache(PageCache pageCache) {
+		this.pageCache = pageCache;
 	}
 
 	private void dump(Object obj, String dumpFilePrefix) {
@@ -46,15 +174,16 @@ public class Formatter {
 
 	public void writeToPDF(StoryList stories, FileOutputStream pdfFile, String dumpFilePrefix) {
 		OutputStream outStream = new BufferedOutputStream(pdfFile);
-		Fop fop;
 		try {
 			if (dumpFilePrefix != null) {
 				dump(stories, dumpFilePrefix);
 			}
-			fop = fopFactory.newFop(MimeConstants.MIME_PDF, outStream);
-			JAXBSource sourceDoc = new JAXBSource(this.jaxb, stories);
-			Utilities.runXSLT(new SAXResult(fop.getDefaultHandler()),
-					"xslt/story-cards.xsl", logger, sourceDoc, xformerFactory);
+			PageCache cache = pageCache;
+			if (cache == null) {
+				render(split(stories), MimeConstants.MIME_PDF, outStream);
+			} else {
+				renderPages(split(stories, STORIES_PER_PAGE), cache, MimeConstants.MIME_PDF, outStream);
+			}
 			outStream.close();
 		} catch (Exception e) {
 			logger.error("failed to generate PDF from StoryList", e);
@@ -63,18 +192,260 @@ public class Formatter {
 
 	public void writeToPDF(TaskList tasks, FileOutputStream pdfFile, String dumpFilePrefix) {
 		OutputStream outStream = new BufferedOutputStream(pdfFile);
-		Fop fop;
 		try {
 			if (dumpFilePrefix != null) {
 				dump(tasks, dumpFilePrefix);
 			}
-			fop = fopFactory.newFop(MimeConstants.MIME_PDF, outStream);
-			JAXBSource sourceDoc = new JAXBSource(this.jaxb, tasks);
-			Utilities.runXSLT(new SAXResult(fop.getDefaultHandler()),
-					"xslt/story-cards.xsl", logger, sourceDoc, xformerFactory);
+			PageCache cache = pageCache;
+			if (cache == null) {
+				render(split(tasks), MimeConstants.MIME_PDF, outStream);
+			} else {
+				renderPages(split(tasks, TASKS_PER_PAGE), cache, MimeConstants.MIME_PDF, outStream);
+			}
 			outStream.close();
 		} catch (Exception e) {
-			logger.error("failed to generate PDF from StoryList", e);
+			logger.error("failed to generate PDF from TaskList", e);
+		}
+	}
+
+	/**
+	 * Split stories into parts of whole pages, or not at all when they
+	 * are rendered on the calling thread or fit in a single part.
+	 */
+	List<StoryList> split(StoryList stories) {
+		return split(stories, getPartSize(STORIES_PER_PAGE));
+	}
+
+	/**
+	 * Split tasks into parts of whole pages, or not at all when they are
+	 * rendered on the calling thread or fit in a single part.
+	 */
+	List<TaskList> split(TaskList tasks) {
+		return split(tasks, getPartSize(TASKS_PER_PAGE));
+	}
+
+	List<StoryList> split(StoryList stories, int partSize) {
+		List<List<StoryType>> parts = split(stories.getStory(), partSize);
+		if (parts.size() < 2) {
+			return Collections.singletonList(stories);
+		}
+		List<StoryList> lists = new ArrayList<StoryList>(parts.size());
+		for (List<StoryType> part: parts) {
+			StoryList list = new StoryList();
+			list.getStory().addAll(part);
+			lists.add(list);
+		}
+		return lists;
+	}
+
+	List<TaskList> split(TaskList tasks, int partSize) {
+		List<List<TaskType>> parts = split(tasks.getTask(), partSize);
+		if (parts.size() < 2) {
+			return Collections.singletonList(tasks);
+		}
+		List<TaskList> lists = new ArrayList<TaskList>(parts.size());
+		for (List<TaskType> part: parts) {
+			TaskList list = new TaskList();
+			list.getTask().addAll(part);
+			lists.add(list);
+		}
+		return lists;
+	}
+
+	private int getPartSize(int cardsPerPage) {
+		return (renderThreads <= 1) ? Integer.MAX_VALUE : pagesPerPart * cardsPerPage;
+	}
+
+	private static <T> List<List<T>> split(List<T> cards, int partSize) {
+		if (cards.size() <= partSize) {
+			return Collections.singletonList(cards);
+		}
+		List<List<T>> parts = new ArrayList<List<T>>();
+		for (int start = 0; start < cards.size(); start += partSize) {
+			parts.add(cards.subList(start, Math.min(start + partSize, cards.size())));
+		}
+		return parts;
+	}
+
+	/**
+	 * Render the parts of a list as one document.
+	 * <p>
+	 * A single part is rendered straight to the output on this thread.
+	 * Otherwise the parts are laid out on a pool of threads and joined in
+	 * order as soon as each one is ready.  Every part but the last must
+	 * fill {@link #getPagesPerPart()} pages, which is what
+	 * {@link #split(StoryList)} and {@link #split(TaskList)} produce.
+	 *
+	 * @param parts the story or task lists to render
+	 * @param outputFormat MIME type of the document to write
+	 * @param out where the document is written
+	 */
+	void render(List<?> parts, String outputFormat, OutputStream out) throws Exception {
+		if (parts.size() == 1) {
+			Fop fop = fopFactory.newFop(outputFormat, out);
+			transform(parts.get(0), null, fop.getDefaultHandler());
+			return;
+		}
+
+		long start = System.nanoTime();
+		ExecutorService pool = newRenderPool(parts.size());
+		try {
+			List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>(parts.size());
+			int firstPage = 1;
+			for (final Object part: parts) {
+				final int partFirstPage = firstPage;
+				pending.add(pool.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return renderIntermediate(part, partFirstPage);
+					}
+				}));
+				firstPage += pagesPerPart;
+			}
+			join(pending, outputFormat, out);
+			logger.debug(String.format("rendered %d parts in %d ms",
+					parts.size(), (System.nanoTime() - start) / 1000000));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Render the pages of a list as one document, taking the pages that
+	 * have been laid out before from the cache.
+	 *
+	 * @param pages the story or task lists that fill one page each
+	 * @param cache the cache of laid out pages
+	 * @param outputFormat MIME type of the document to write
+	 * @param out where the document is written
+	 */
+	void renderPages(List<?> pages, final PageCache cache, String outputFormat,
+			OutputStream out) throws Exception {
+		long start = System.nanoTime();
+		String layoutVersion = PageCache.getLayoutVersion(STORY_CARDS_XSL);
+		ExecutorService pool = newRenderPool(pages.size());
+		try {
+			List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>(pages.size());
+			int laidOut = 0;
+			int pageNumber = 1;
+			for (final Object page: pages) {
+				final String key = PageCache.getKey(layoutVersion, page);
+				final byte[] cached = cache.get(key);
+				if (cached != null) {
+					FutureTask<byte[]> found = new FutureTask<byte[]>(new Callable<byte[]>() {
+						@Override
+						public byte[] call() {
+							return cached;
+						}
+					});
+					found.run();
+					pending.add(found);
+				} else {
+					final int number = pageNumber;
+					pending.add(pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							byte[] laidOutPage = renderIntermediate(page, number);
+							cache.put(key, laidOutPage);
+							return laidOutPage;
+						}
+					}));
+					laidOut++;
+				}
+				pageNumber++;
+			}
+			join(pending, outputFormat, out);
+			logger.debug(String.format("laid out %d of %d pages in %d ms, the rest were cached",
+					laidOut, pages.size(), (System.nanoTime() - start) / 1000000));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Join documents in FOP's intermediate format, in order, as soon as
+	 * each one is ready.
+	 */
+	private void join(List<Future<byte[]>> documents, String outputFormat, OutputStream out)
+			throws Exception {
+		FOUserAgent userAgent = fopFactory.newFOUserAgent();
+		IFDocumentHandler target = fopFactory.getRendererFactory()
+			.createDocumentHandler(userAgent, outputFormat);
+		IFUtil.setupFonts(target);
+		target.setResult(new StreamResult(out));
+		PageJoiner joiner = new PageJoiner(target, userAgent);
+		for (Future<byte[]> document: documents) {
+			joiner.append(new StreamSource(new ByteArrayInputStream(getResult(document))));
+		}
+		joiner.finish();
+	}
+
+	private ExecutorService newRenderPool(int tasks) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(
+				Math.max(1, Math.min(renderThreads, tasks)), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "render-" + threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Lay out one part of a list in FOP's intermediate format, measured
+	 * with the fonts of the PDF that it ends up in.
+	 *
+	 * @param part the story or task list to lay out
+	 * @param firstPage the number of the first page of this part
+	 */
+	private byte[] renderIntermediate(Object part, int firstPage) throws Exception {
+		FOUserAgent userAgent = fopFactory.newFOUserAgent();
+		IFDocumentHandler target = fopFactory.getRendererFactory()
+			.createDocumentHandler(userAgent, MimeConstants.MIME_PDF);
+		IFSerializer serializer = new IFSerializer();
+		serializer.setContext(new IFContext(userAgent));
+		serializer.mimicDocumentHandler(target);
+		userAgent.setDocumentHandlerOverride(serializer);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Fop fop = fopFactory.newFop(MimeConstants.MIME_FOP_IF, userAgent, out);
+		transform(part, Collections.singletonMap("initial-page-number", firstPage),
+				fop.getDefaultHandler());
+		return out.toByteArray();
+	}
+
+	private void transform(Object model, Map<String,?> parameters, ContentHandler handler)
+			throws Exception {
+		Templates stylesheet = XMLResources.getStylesheet(STORY_CARDS_XSL);
+		if (!streamCards) {
+			Utilities.runXSLT(new SAXResult(handler), stylesheet, STORY_CARDS_XSL, logger,
+					ModelReader.createSource(model), parameters);
+			return;
+		}
+		List<?> cards = (model instanceof StoryList)
+			? ((StoryList) model).getStory() : ((TaskList) model).getTask();
+		Map<String,Object> listParameters = new HashMap<String,Object>();
+		if (parameters != null) {
+			listParameters.putAll(parameters);
+		}
+		listParameters.put(STREAM_CARDS_PARAMETER, Boolean.TRUE);
+		Utilities.runXSLT(
+				new SAXResult(new CardSplicer(handler, stylesheet, STORY_CARDS_XSL, cards)),
+				stylesheet, STORY_CARDS_XSL, logger,
+				ModelReader.createListSourceWithoutCards(model), listParameters);
+	}
+
+	private static <T> T getResult(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
 		}
 	}
 
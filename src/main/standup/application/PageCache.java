@@ -0,0 +1,371 @@
+package standup.application;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.fop.Version;
+import org.apache.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import standup.utility.ModelReader;
+import standup.utility.XMLResources;
+
+
+/**
+ * Keeps pages of cards that have been laid out on disk.
+ * <p>
+ * The cards in {@code story-cards.xsl} have a fixed size and a fixed
+ * place on their page, so a page of cards always comes out the same.
+ * Each page is kept in FOP's intermediate format, in a compressed file
+ * named after a digest of the cards on the page and of everything else
+ * that goes into laying them out: the stylesheet, the FOP version and
+ * the FOP configuration.  When a story changes only its page is laid
+ * out again, and editing the stylesheet or the fonts simply leaves the
+ * old pages unused.  A card that is added or removed moves every card
+ * after it, so the pages after it are laid out again as well.
+ * <p>
+ * The cache is bounded: once its files take up more than the limit the
+ * least recently used pages are removed.  Files are written to a
+ * temporary file first and moved into place, so a page is either all
+ * there or not at all.
+ */
+public class PageCache {
+
+	/** Default limit on the size of the files in the cache. */
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	/** Bumped whenever the contents of a page file change. */
+	static final int FORMAT_VERSION = 1;
+
+	private static final String SUFFIX = ".page";
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final Logger logger = Logger.getLogger(PageCache.class);
+
+	private final File directory;
+	private final long maxBytes;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	/** Bytes in the page files, or -1 before the directory has been scanned. */
+	private long size = -1;
+
+	/**
+	 * Create a cache that keeps its files in the default location,
+	 * {@code .standup/pages} in the user's home directory.
+	 */
+	public PageCache() {
+		this(getDefaultDirectory(), DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Create a cache that keeps its files in {@code directory}.  The
+	 * directory is created when the first page is saved.
+	 *
+	 * @param maxBytes the most that the page files may take up
+	 */
+	public PageCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public static File getDefaultDirectory() {
+		File home = new File(System.getProperty("user.home"));
+		return new File(new File(home, ".standup"), "pages");
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the number of pages found in the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of pages looked for and not found
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Digest everything, other than the cards, that decides how a page
+	 * is laid out.
+	 *
+	 * @param xsltFilename resource name of the stylesheet
+	 */
+	static String getLayoutVersion(String xsltFilename) throws IOException {
+		MessageDigest digest = newDigest();
+		update(digest, String.valueOf(FORMAT_VERSION));
+		update(digest, Version.getVersion());
+		URL stylesheet = ClassLoader.getSystemResource(xsltFilename);
+		if (stylesheet == null) {
+			throw new IOException("getSystemResource(" + xsltFilename + ")");
+		}
+		update(digest, stylesheet.openStream());
+		String config = System.getProperty(XMLResources.FOP_CONFIG_PROPERTY);
+		if (config != null) {
+			update(digest, new FileInputStream(config));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Work out the key of a page of cards.
+	 *
+	 * @param layoutVersion the result of {@link #getLayoutVersion(String)}
+	 * @param page a story or task list holding the cards on the page
+	 */
+	static String getKey(String layoutVersion, Object page) throws IOException, SAXException {
+		MessageDigest digest = newDigest();
+		update(digest, layoutVersion);
+		SAXSource source = ModelReader.createSource(page);
+		XMLReader reader = source.getXMLReader();
+		reader.setContentHandler(new DigestHandler(digest));
+		reader.parse(source.getInputSource());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Load a page.
+	 *
+	 * @return the page in FOP's intermediate format or <code>null</code>
+	 *         if it is not in the cache
+	 */
+	byte[] get(String key) {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		try {
+			InputStream in = new GZIPInputStream(new FileInputStream(file));
+			try {
+				ByteArrayOutputStream page = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+					page.write(buffer, 0, n);
+				}
+				// the modification time orders the pages for removal
+				file.setLastModified(System.currentTimeMillis());
+				hitCount.incrementAndGet();
+				return page.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn("ignoring unreadable page " + file, e);
+			missCount.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Save a page, then remove the least recently used pages if the
+	 * cache has grown past its limit.  Failures are logged and otherwise
+	 * ignored; the page is simply laid out again next time.
+	 *
+	 * @param page the page in FOP's intermediate format
+	 */
+	void put(String key, byte[] page) {
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+				throw new IOException("failed to create page directory " + directory);
+			}
+			File file = getFile(key);
+			File tempFile = File.createTempFile(key, ".tmp", directory);
+			try {
+				GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile));
+				try {
+					out.write(page);
+				} finally {
+					out.close();
+				}
+				long length = tempFile.length();
+				synchronized (this) {
+					long replaced = file.length();
+					// renameTo will not replace an existing file everywhere
+					if (!tempFile.renameTo(file)) {
+						file.delete();
+						if (!tempFile.renameTo(file)) {
+							throw new IOException("failed to save page " + file);
+						}
+					}
+					if (size >= 0) {
+						size += length - replaced;
+					}
+					trim();
+				}
+			} finally {
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			logger.warn("failed to save page " + key, e);
+		}
+	}
+
+	/**
+	 * Remove every page.
+	 */
+	public synchronized void clear() {
+		File[] files = listPages();
+		if (files != null) {
+			for (File file: files) {
+				file.delete();
+			}
+		}
+		size = -1;
+	}
+
+	File getFile(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	/**
+	 * Bring the cache back down to three quarters of its limit once it
+	 * has grown past it, so that the directory is not sorted for every
+	 * page saved after that.
+	 */
+	private void trim() {
+		if (size < 0) {
+			size = 0;
+			for (File file: listPages()) {
+				size += file.length();
+			}
+		}
+		if (size <= maxBytes) {
+			return;
+		}
+		File[] files = listPages();
+		final long[] lastModified = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+		}
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return (lastModified[a] < lastModified[b]) ? -1
+					: (lastModified[a] == lastModified[b]) ? 0 : 1;
+			}
+		});
+		int removed = 0;
+		for (int i = 0; i < order.length && size > maxBytes / 4 * 3; i++) {
+			File file = files[order[i]];
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+				removed++;
+			}
+		}
+		logger.debug(String.format("removed %d pages from %s", removed, directory));
+	}
+
+	private File[] listPages() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(SUFFIX);
+			}
+		});
+		return (files == null) ? new File[0] : files;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-1 is not supported", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		try {
+			digest.update(s.getBytes("UTF-8"));
+			// XML text never holds a NUL, so nothing can run into the next string
+			digest.update((byte) 0);
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("UTF-8 is not supported", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Digests the events that a model reader reports.
+	 */
+	private static class DigestHandler extends DefaultHandler {
+		private final MessageDigest digest;
+
+		DigestHandler(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes) {
+			update(digest, "<" + qName);
+			for (int i = 0; i < attributes.getLength(); i++) {
+				update(digest, "@" + attributes.getQName(i));
+				update(digest, attributes.getValue(i));
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			update(digest, ">" + qName);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			update(digest, "#" + new String(ch, start, length));
+		}
+	}
+
+}
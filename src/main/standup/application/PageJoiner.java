@@ -0,0 +1,170 @@
+package standup.application;
+
+import java.awt.Dimension;
+import java.util.Date;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+
+import org.apache.fop.Version;
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.IFParser;
+import org.apache.fop.render.intermediate.util.IFDocumentHandlerProxy;
+import org.apache.xmlgraphics.xmp.Metadata;
+import org.apache.xmlgraphics.xmp.schemas.DublinCoreAdapter;
+import org.apache.xmlgraphics.xmp.schemas.DublinCoreSchema;
+import org.apache.xmlgraphics.xmp.schemas.XMPBasicAdapter;
+import org.apache.xmlgraphics.xmp.schemas.XMPBasicSchema;
+
+
+/**
+ * Joins documents in FOP's intermediate format into one, page after page.
+ * <p>
+ * The pages of every document are put in a single page sequence and
+ * numbered on from the last page of the document before, and the joined
+ * document gets the metadata that FOP gives a document that it lays out
+ * itself.  Parts of a list that were laid out one by one, or pages laid
+ * out at different times, therefore render exactly as the whole list
+ * laid out in one go.  Pages are named after their number, as the page
+ * sequences of {@code story-cards.xsl} name them.
+ * <p>
+ * FOP's own {@code IFConcatenator} does much the same but keeps each
+ * document in a page sequence of its own, drops the document metadata,
+ * and ends the joined document with a page trailer instead of a document
+ * trailer.
+ */
+class PageJoiner {
+	private final IFDocumentHandler target;
+	private final FOUserAgent userAgent;
+	private int documentCount = 0;
+	private int nextPageIndex = 0;
+
+	/**
+	 * @param target the handler that writes the joined document, with its
+	 *        fonts set up and its result set
+	 * @param userAgent the user agent to parse the documents with
+	 */
+	PageJoiner(IFDocumentHandler target, FOUserAgent userAgent) {
+		this.target = target;
+		this.userAgent = userAgent;
+	}
+
+	/**
+	 * Append the pages of a document.
+	 */
+	void append(Source document) throws TransformerException, IFException {
+		if (documentCount == 0) {
+			target.startDocument();
+			target.startDocumentHeader();
+			target.handleExtensionObject(createMetadata());
+			target.endDocumentHeader();
+		}
+		new IFParser().parse(document, new Filter(documentCount == 0), userAgent);
+		documentCount++;
+	}
+
+	/**
+	 * End the joined document.
+	 */
+	void finish() throws IFException {
+		if (documentCount == 0) {
+			throw new IFException("no documents to join", null);
+		}
+		target.endPageSequence();
+		target.startDocumentTrailer();
+		target.endDocumentTrailer();
+		target.endDocument();
+	}
+
+	/**
+	 * Create the metadata that FOP writes into the header of a document.
+	 */
+	private Metadata createMetadata() {
+		Metadata metadata = new Metadata();
+		DublinCoreAdapter dublinCore = DublinCoreSchema.getAdapter(metadata);
+		if (userAgent.getTitle() != null) {
+			dublinCore.setTitle(userAgent.getTitle());
+		}
+		if (userAgent.getAuthor() != null) {
+			dublinCore.addCreator(userAgent.getAuthor());
+		}
+		if (userAgent.getKeywords() != null) {
+			dublinCore.addSubject(userAgent.getKeywords());
+		}
+		XMPBasicAdapter basic = XMPBasicSchema.getAdapter(metadata);
+		basic.setCreatorTool((userAgent.getProducer() != null)
+				? userAgent.getProducer() : Version.getVersion());
+		basic.setMetadataDate(new Date());
+		basic.setCreateDate((userAgent.getCreationDate() != null)
+				? userAgent.getCreationDate() : basic.getMetadataDate());
+		return metadata;
+	}
+
+	/**
+	 * Passes the pages of a document on to the target, and the start of
+	 * the page sequence only for the first document.
+	 */
+	private class Filter extends IFDocumentHandlerProxy {
+		private final boolean first;
+		private boolean inHeader = false;
+
+		Filter(boolean first) {
+			super(target);
+			this.first = first;
+		}
+
+		@Override
+		public void startDocument() {
+		}
+
+		@Override
+		public void startDocumentHeader() {
+			inHeader = true;
+		}
+
+		@Override
+		public void endDocumentHeader() {
+			inHeader = false;
+		}
+
+		@Override
+		public void handleExtensionObject(Object extension) throws IFException {
+			if (!inHeader) {
+				super.handleExtensionObject(extension);
+			}
+		}
+
+		@Override
+		public void startPageSequence(String id) throws IFException {
+			if (first) {
+				super.startPageSequence(id);
+			}
+		}
+
+		@Override
+		public void startPage(int index, String name, String pageMasterName, Dimension size)
+				throws IFException {
+			super.startPage(nextPageIndex, String.valueOf(nextPageIndex + 1), pageMasterName, size);
+			nextPageIndex++;
+		}
+
+		@Override
+		public void endPageSequence() {
+		}
+
+		@Override
+		public void startDocumentTrailer() {
+		}
+
+		@Override
+		public void endDocumentTrailer() {
+		}
+
+		@Override
+		public void endDocument() {
+		}
+	}
+
+}
@@ -2,10 +2,19 @@ package standup.application;
 
 import java.io.BufferedReader;
 import java.io.Console;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -19,8 +28,13 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import standup.connector.rally.Constants;
-import standup.connector.rally.RallyClientFactory;
+import standup.connector.rally.PooledRallyClientFactory;
 import standup.connector.rally.ServerConnection;
+import standup.utility.ModelUtilities;
+import standup.utility.SnapshotStore;
+import standup.utility.SnapshotStore.Snapshot;
+import standup.utility.Utilities;
+import standup.utility.XMLResources;
 import standup.xml.StoryList;
 import standup.xml.StoryType;
 import standup.xml.TaskList;
@@ -35,6 +49,14 @@ public abstract class RetrieveStories {
 	protected static final String HELP_KEY = "help";
 	protected static final String TASK_FILE_KEY = "task-file";
 	protected static final String STORY_FILE_KEY = "story-file";
+	protected static final String SNAPSHOT_DIR_KEY = "snapshot-dir";
+	protected static final String OFFLINE_KEY = "offline";
+	protected static final String PIPELINE_KEY = "pipeline";
+	protected static final String TRANSPORT_KEY = "transport";
+	protected static final String RENDER_THREADS_KEY = "render-threads";
+	protected static final String RENDER_CACHE_KEY = "render-cache";
+	protected static final String POOLED_TRANSPORT = "pooled";
+	protected static final String SESSION_TRANSPORT = "session";
 
 	private final static Logger logger = Logger.getLogger(RetrieveStories.class);
 	private String userName = null;
@@ -42,6 +64,13 @@ public abstract class RetrieveStories {
 	private String storyFilename = null;
 	private String taskFilename = null;
 	private String debugPrefix = "test-output";
+	private String snapshotDirectory = null;
+	private boolean offline = false;
+	private boolean pipelined = false;
+	private boolean pooledTransport = true;
+	private int renderThreads = 1;
+	private String renderCacheDirectory = null;
+	private Formatter formatter = null;
 
 	@SuppressWarnings("static-access")
 	protected Options buildOptions() {
@@ -90,6 +119,45 @@ public abstract class RetrieveStories {
 					.hasArg().withArgName("FILE")
 					.withDescription("use this as a name prefix for intermediate XML files")
 					.create('d'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SNAPSHOT_DIR_KEY)
+					.hasArg().withArgName("DIR")
+					.withDescription("keep a snapshot of the retrieved cards in DIR and render it"
+							+ " while Rally is checked for changes")
+					.create('S'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(OFFLINE_KEY)
+					.withDescription("render the last snapshot without connecting to Rally")
+					.create('o'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(PIPELINE_KEY)
+					.withDescription("fetch the tasks while the story cards are rendered"
+							+ " and render both PDFs at once")
+					.create('P'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(TRANSPORT_KEY)
+					.hasArg().withArgName("MODE")
+					.withDescription("connect to Rally with '" + POOLED_TRANSPORT
+							+ "' kept-alive connections shared between sessions (the default)"
+							+ " or a '" + SESSION_TRANSPORT + "' connection for each session")
+					.create('T'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(RENDER_THREADS_KEY)
+					.hasArg().withArgName("N")
+					.withDescription("render each PDF in parts of whole pages on N threads")
+					.create('r'));
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(RENDER_CACHE_KEY)
+					.hasArg().withArgName("DIR")
+					.withDescription("keep laid out pages in DIR and reuse those whose cards"
+							+ " have not changed")
+					.create('c'));
 		return options;
 	}
 
@@ -111,18 +179,203 @@ public abstract class RetrieveStories {
 			return;
 		}
 
+		// build the JAXB context, FOP factory and stylesheet and render a
+		// throw-away page while the snapshot is loaded and Rally is queried
+		XMLResources.warmUp(Formatter.STORY_CARDS_XSL);
+		final Timings timings = new Timings();
+
+		SnapshotStore store = getSnapshotStore();
+		String snapshotKey = (store == null) ? null : getSnapshotKey();
+		Snapshot snapshot = null;
+		if (snapshotKey != null) {
+			snapshot = store.load(snapshotKey);
+		}
+		if (offline) {
+			if (snapshot == null) {
+				logger.error(String.format("no snapshot of '%s' in %s", snapshotKey,
+						(store == null) ? null : store.getDirectory()));
+			} else {
+				processSnapshot(snapshot);
+			}
+			return;
+		}
+		if (snapshot != null) {
+			// render what we have now, then check Rally for changes
+			long start = System.nanoTime();
+			processSnapshot(snapshot);
+			timings.record("render snapshot", start);
+		}
+
 		ServerConnection rallyServer = new ServerConnection();
+		PooledRallyClientFactory connectionPool = null;
+		if (pooledTransport) {
+			connectionPool = new PooledRallyClientFactory();
+			rallyServer.setConnectionPool(connectionPool);
+		}
 		rallyServer.setUsername(this.userName);
 		rallyServer.setPassword(this.password);
+		// story-cards.xsl never renders task descriptions
+		rallyServer.setIncludeTaskDescriptions(false);
+		// only convert the descriptions that end up on a card
+		rallyServer.setLazyDescriptions(true);
 		
-		StoryList stories = fetchStories(rallyServer);
-		processStories(stories);
-		if (stories.getStory().size() > 0 && getTaskFilename() != null) {
-			TaskList tasks = fetchTasks(rallyServer, stories);
-			processTasks(tasks);
+		try {
+			long start = System.nanoTime();
+			StoryList stories = fetchStories(rallyServer);
+			timings.record("fetch stories", start);
+			TaskList tasks = null;
+			boolean wantTasks = stories.getStory().size() > 0 && getTaskFilename() != null;
+			if (pipelined) {
+				// fetching tasks adds links to the stories, so the tasks are
+				// fetched for a copy while the originals are rendered
+				StoryList taskStories = wantTasks ? ModelUtilities.copy(stories) : null;
+				tasks = fetchAndRender(rallyServer, stories, taskStories, snapshot == null, timings);
+				if (taskStories != null) {
+					stories = taskStories;
+				}
+			} else {
+				if (snapshot == null) {
+					start = System.nanoTime();
+					processStories(stories);
+					timings.record("render stories", start);
+				}
+				if (wantTasks) {
+					start = System.nanoTime();
+					tasks = fetchTasks(rallyServer, stories);
+					timings.record("fetch tasks", start);
+					if (snapshot == null) {
+						start = System.nanoTime();
+						processTasks(tasks);
+						timings.record("render tasks", start);
+					}
+				}
+			}
+			if (snapshotKey != null) {
+				boolean changed = store.save(snapshotKey, stories, tasks);
+				if (snapshot != null && changed) {
+					logger.info("Rally has changed since the snapshot was taken, rendering again");
+					processStories(stories);
+					if (tasks != null) {
+						processTasks(tasks);
+					}
+				}
+			}
+		} finally {
+			rallyServer.close();
+			if (connectionPool != null) {
+				connectionPool.close();
+			}
+			logger.debug(String.format("used %d Rally session(s)",
+					rallyServer.getSessionCount()));
+			logger.debug("stylesheets: " + Utilities.getStylesheetCache().getStatistics());
+			logger.info("timings: " + timings);
 		}
 	}
 
+	/**
+	 * Fetch the tasks and render both PDFs, overlapping as much as possible.
+	 * <p>
+	 * The tasks are fetched on another thread while this one renders the
+	 * story cards.  That thread goes on to render the task cards as soon as
+	 * it has them, so on a machine with more than one core the two PDFs
+	 * are rendered side by side.
+	 *
+	 * @param stories the stories to render
+	 * @param taskStories the stories to fetch the tasks of or
+	 *        <code>null</code> if no tasks are wanted
+	 * @param render <code>false</code> to fetch without rendering
+	 * @return the tasks or <code>null</code> if no tasks are wanted
+	 */
+	private TaskList fetchAndRender(final standup.connector.ServerConnection server,
+			StoryList stories, final StoryList taskStories, final boolean render,
+			final Timings timings) throws Exception {
+		ExecutorService pipeline = null;
+		Future<TaskList> pendingTasks = null;
+		try {
+			if (taskStories != null) {
+				pipeline = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "task-pipeline");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				pendingTasks = pipeline.submit(new Callable<TaskList>() {
+					@Override
+					public TaskList call() throws Exception {
+						long start = System.nanoTime();
+						TaskList tasks = fetchTasks(server, taskStories);
+						timings.record("fetch tasks", start);
+						if (render) {
+							start = System.nanoTime();
+							processTasks(tasks);
+							timings.record("render tasks", start);
+						}
+						return tasks;
+					}
+				});
+			}
+			if (render) {
+				long start = System.nanoTime();
+				processStories(stories);
+				timings.record("render stories", start);
+			}
+			if (pendingTasks == null) {
+				return null;
+			}
+			try {
+				return pendingTasks.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw e;
+			}
+		} finally {
+			if (pipeline != null) {
+				pipeline.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Render a snapshot saved by an earlier run.
+	 */
+	protected void processSnapshot(Snapshot snapshot) throws Exception {
+		logger.info(String.format("Rendering snapshot saved %d seconds ago",
+				snapshot.getAge() / 1000));
+		processStories(snapshot.getStories());
+		if (snapshot.getTasks() != null) {
+			processTasks(snapshot.getTasks());
+		}
+	}
+
+	/**
+	 * @return the store holding snapshots of earlier runs or
+	 *         <code>null</code> if snapshots are not enabled
+	 */
+	protected SnapshotStore getSnapshotStore() throws Exception {
+		if (snapshotDirectory != null) {
+			return new SnapshotStore(new File(snapshotDirectory));
+		} else if (offline) {
+			return new SnapshotStore();
+		}
+		return null;
+	}
+
+	/**
+	 * Identifies the cards that this application renders in the
+	 * snapshot store.
+	 *
+	 * @return the snapshot key or <code>null</code> if the cards
+	 *         should not be saved
+	 */
+	protected String getSnapshotKey() {
+		return null;
+	}
+
 	/**
 	 * @param opts
 	 */
@@ -168,11 +421,34 @@ public abstract class RetrieveStories {
 			Logger.getRootLogger().setLevel(Level.DEBUG);
 		}
 
-		this.userName = retrieveOption(parsedCmdLine, USER_KEY, false);
-		this.password = retrieveOption(parsedCmdLine, PASSWORD_KEY, true);
+		this.offline = parsedCmdLine.hasOption(OFFLINE_KEY);
+		this.pipelined = parsedCmdLine.hasOption(PIPELINE_KEY);
+		this.snapshotDirectory = parsedCmdLine.getOptionValue(SNAPSHOT_DIR_KEY, null);
+		this.renderCacheDirectory = parsedCmdLine.getOptionValue(RENDER_CACHE_KEY, null);
+		String transport = parsedCmdLine.getOptionValue(TRANSPORT_KEY, POOLED_TRANSPORT);
+		if (transport.equals(POOLED_TRANSPORT) || transport.equals(SESSION_TRANSPORT)) {
+			this.pooledTransport = transport.equals(POOLED_TRANSPORT);
+		} else {
+			throw new ParseException(String.format("%s must be %s or %s, not '%s'",
+					TRANSPORT_KEY, POOLED_TRANSPORT, SESSION_TRANSPORT, transport));
+		}
+		String threads = parsedCmdLine.getOptionValue(RENDER_THREADS_KEY, "1");
+		try {
+			this.renderThreads = Integer.parseInt(threads);
+		} catch (NumberFormatException e) {
+			throw new ParseException(String.format("%s must be a number, not '%s'",
+					RENDER_THREADS_KEY, threads));
+		}
+		if (this.offline) {
+			this.userName = "";
+			this.password = "";
+		} else {
+			this.userName = retrieveOption(parsedCmdLine, USER_KEY, false);
+			this.password = retrieveOption(parsedCmdLine, PASSWORD_KEY, true);
+		}
 		this.storyFilename = retrieveOption(parsedCmdLine, STORY_FILE_KEY, false);
 		this.taskFilename = retrieveOption(parsedCmdLine, TASK_FILE_KEY, false);
-		if (this.userName.isEmpty() || this.password.isEmpty()) {
+		if (!this.offline && (this.userName.isEmpty() || this.password.isEmpty())) {
 			throw new MissingOptionException(String.format(
 					"both %s and %s are required", USER_KEY, PASSWORD_KEY));
 		}
@@ -202,8 +478,7 @@ public abstract class RetrieveStories {
 					storyList.size(), pdfFilename));
 			FileOutputStream fos;
 			fos = new FileOutputStream(pdfFilename);
-			Formatter formatter = new Formatter();
-			formatter.writeToPDF(stories, fos, debugPrefix);
+			getFormatter().writeToPDF(stories, fos, getDebugPrefix());
 			fos.close();
 		} else {
 			logger.info(String.format("Found %d stories, no story file specified",
@@ -220,8 +495,7 @@ public abstract class RetrieveStories {
 			logger.info(String.format("Found %d tasks, writing output to '%s'",
 					taskList.size(), pdfFilename));
 			FileOutputStream fos = new FileOutputStream(pdfFilename);
-			Formatter formatter = new Formatter();
-			formatter.writeToPDF(tasks, fos, debugPrefix);
+			getFormatter().writeToPDF(tasks, fos, getDebugPrefix());
 			fos.close();
 		} else {
 			logger.info(String.format("found %d tasks, no task file specified",
@@ -229,6 +503,21 @@ public abstract class RetrieveStories {
 		}
 	}
 
+	/**
+	 * @return the formatter that renders every PDF of this run
+	 */
+	protected synchronized Formatter getFormatter() throws Exception {
+		if (formatter == null) {
+			formatter = new Formatter();
+			formatter.setRenderThreads(renderThreads);
+			if (renderCacheDirectory != null) {
+				formatter.setPageCache(new PageCache(new File(renderCacheDirectory),
+						PageCache.DEFAULT_MAX_BYTES));
+			}
+		}
+		return formatter;
+	}
+
 	/**
 	 * @return the storyFilename
 	 */
@@ -250,10 +539,37 @@ public abstract class RetrieveStories {
 	}
 
 	/**
-	 * @return the debugPrefix
+	 * @return the name prefix of the intermediate XML files or
+	 *         <code>null</code> if they should not be written
 	 */
 	protected String getDebugPrefix() {
 		return debugPrefix;
 	}
 
+	/**
+	 * How long each stage of a run took, and the run as a whole.
+	 */
+	private static class Timings {
+		private final long start = System.nanoTime();
+		private final Map<String,Long> stages = new LinkedHashMap<String,Long>();
+
+		/**
+		 * @param stage the name of the stage
+		 * @param stageStart when the stage started, from {@link System#nanoTime()}
+		 */
+		synchronized void record(String stage, long stageStart) {
+			stages.put(stage, System.nanoTime() - stageStart);
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String,Long> stage: stages.entrySet()) {
+				sb.append(String.format("%s %d ms, ", stage.getKey(), stage.getValue() / 1000000));
+			}
+			sb.append(String.format("total %d ms", (System.nanoTime() - start) / 1000000));
+			return sb.toString();
+		}
+	}
+
 }
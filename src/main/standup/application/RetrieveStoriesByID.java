@@ -1,8 +1,10 @@
 package standup.application;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
+import standup.connector.MissingStoriesException;
 import standup.connector.ServerConnection;
 import standup.xml.StoryList;
 
@@ -22,7 +24,13 @@ public class RetrieveStoriesByID extends RetrieveStories {
 
 	@Override
 	protected StoryList fetchStories(ServerConnection server) throws Exception {
-		return server.retrieveStories(this.storyIdList);
+		try {
+			return server.retrieveStories(this.storyIdList);
+		} catch (MissingStoriesException e) {
+			// print the cards that we do have rather than none at all
+			logger.error("no such stories: " + StringUtils.join(e.getMissingIdentifiers(), ", "));
+			return e.getStories();
+		}
 	}
 
 	public static void main(String[] args) {
@@ -54,6 +54,14 @@ public class RetrieveStoriesForIteration extends RetrieveStories {
 		return server.retrieveStoriesForIteration(this.iterationName);
 	}
 
+	/* (non-Javadoc)
+	 * @see standup.application.RetrieveStories#getSnapshotKey()
+	 */
+	@Override
+	protected String getSnapshotKey() {
+		return "iteration/" + this.iterationName;
+	}
+
 	public static void main(String[] args) {
 		try {
 			RetrieveStories app = new RetrieveStoriesForIteration();
@@ -56,6 +56,14 @@ public class RetrieveStoriesForProjectIteration extends RetrieveStories {
 		return server.retrieveStoriesForProjectIteration(this.projectName, this.iterationName);
 	}
 
+	/* (non-Javadoc)
+	 * @see standup.application.RetrieveStories#getSnapshotKey()
+	 */
+	@Override
+	protected String getSnapshotKey() {
+		return "project/" + this.projectName + "/" + this.iterationName;
+	}
+
 	public static void main(String[] args) {
 		try {
 			RetrieveStories app = new RetrieveStoriesForProjectIteration();
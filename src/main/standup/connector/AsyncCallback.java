@@ -0,0 +1,31 @@
+package standup.connector;
+
+/**
+ * Receives the outcome of an asynchronous connector operation.
+ * <p>
+ * Callbacks are invoked on the thread that completed the operation, so
+ * implementations should hand off any long-running work rather than
+ * doing it in place.
+ *
+ * @param <T> the type of the operation's result
+ * @see AsyncServerConnection
+ */
+public interface AsyncCallback<T> {
+
+	/**
+	 * Called when the operation completes successfully.
+	 * 
+	 * @param result the value that the operation produced
+	 */
+	public void completed(T result);
+
+	/**
+	 * Called when the operation fails.
+	 * 
+	 * @param cause the exception thrown by the operation.  This is the
+	 *        same exception that the blocking {@link ServerConnection}
+	 *        method would have thrown.
+	 */
+	public void failed(Throwable cause);
+
+}
@@ -0,0 +1,95 @@
+package standup.connector;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import standup.connector.ServerConnection.IterationStatus;
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+/**
+ * A non-blocking connection to an Agile Project Management tool.
+ * <p>
+ * This is the asynchronous companion of {@link ServerConnection}.  Each
+ * operation is started on an executor owned by the implementation and
+ * returns immediately.  The result is available from the returned
+ * {@link Future} and, if one is supplied, is also pushed to an
+ * {@link AsyncCallback} so that callers can fan out many requests and
+ * combine the results without parking a thread per request.
+ * <p>
+ * If an operation fails, {@link Future#get()} throws an
+ * {@link java.util.concurrent.ExecutionException} whose cause is the
+ * exception that the blocking method would have thrown.
+ */
+public interface AsyncServerConnection {
+
+	/**
+	 * Retrieves the list of iterations for a specific project.
+	 * 
+	 * @param projectName the project to retrieve the information for.
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of known iterations.
+	 * @see ServerConnection#listIterationsForProject(String)
+	 */
+	public Future<List<IterationStatus>> listIterationsForProject(String projectName,
+			AsyncCallback<List<IterationStatus>> callback);
+
+	/**
+	 * Retrieves the list of iterations that a user is involved in.
+	 * 
+	 * @param userName the user to search for.
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of iterations that the user is associated with.
+	 * @see ServerConnection#listIterationsInvolvingUser(String)
+	 */
+	public Future<List<IterationStatus>> listIterationsInvolvingUser(String userName,
+			AsyncCallback<List<IterationStatus>> callback);
+
+	/**
+	 * Retrieve a list of stories for a named iteration.
+	 * 
+	 * @param iterationName retrieve stories associated with this iteration
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of user stories associated with the iteration.
+	 * @see ServerConnection#retrieveStoriesForIteration(String)
+	 */
+	public Future<StoryList> retrieveStoriesForIteration(String iterationName,
+			AsyncCallback<StoryList> callback);
+
+	/**
+	 * Retrieve a list of stories for a named iteration and project.
+	 * 
+	 * @param project retrieve stories associated with this project
+	 * @param iterationName retrieve stories associated with this iteration
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of user stories associated with the iteration.
+	 * @see ServerConnection#retrieveStoriesForProjectIteration(String, String)
+	 */
+	public Future<StoryList> retrieveStoriesForProjectIteration(String project,
+			String iterationName, AsyncCallback<StoryList> callback);
+
+	/**
+	 * Retrieve a list of stories by their backend identifier.
+	 * 
+	 * @param stories the identifiers to retrieve from the backend
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of story domain objects that match the
+	 *         identifiers passed in as parameters.
+	 * @see ServerConnection#retrieveStories(String[])
+	 */
+	public Future<StoryList> retrieveStories(String[] stories,
+			AsyncCallback<StoryList> callback);
+
+	/**
+	 * Fetch the tasks associated with a bunch of stories.
+	 * 
+	 * @param stories retrieve the tasks for this set of stories
+	 * @param callback notified on completion, may be {@code null}
+	 * @return The pending list of all of the tasks associated with the
+	 *         requested stories.
+	 * @see ServerConnection#retrieveTasks(StoryList)
+	 */
+	public Future<TaskList> retrieveTasks(StoryList stories,
+			AsyncCallback<TaskList> callback);
+
+}
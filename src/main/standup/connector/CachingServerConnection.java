@@ -0,0 +1,439 @@
+package standup.connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.log4j.Logger;
+
+import standup.utility.ModelUtilities;
+import standup.xml.Links;
+import standup.xml.Links.Link;
+import standup.xml.ObjectFactory;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+/**
+ * A caching decorator for another {@link ServerConnection}.
+ * <p>
+ * Story and task lists are remembered by the normalized query that
+ * produced them so that fetching the same iteration repeatedly - story
+ * cards, then task cards, then a re-run after a printer jam - only goes
+ * to the backend once.  The cache is a least-recently-used map bounded
+ * both by entry count and by the approximate heap used by the entries.
+ * Each entry expires after a fixed time to live.
+ * <p>
+ * Lists are copied on the way into and out of the cache since callers
+ * are free to modify them.  {@link #retrieveTasks(StoryList)} adds links
+ * to the stories that it is given, so the links added by the backend are
+ * remembered with the cached tasks and replayed onto the caller's stories
+ * on a hit.
+ * <p>
+ * Iteration listing and the streaming methods are passed straight through.
+ */
+public class CachingServerConnection implements ServerConnection, Closeable {
+	private static final Logger logger = Logger.getLogger(CachingServerConnection.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	public static final long DEFAULT_TIME_TO_LIVE = 10L * 60 * 1000;
+
+	private static final String STORY_TYPE = "stories";
+	private static final String TASK_TYPE = "tasks";
+
+	private final ServerConnection delegate;
+	private final ObjectFactory objFactory = new ObjectFactory();
+	private final LinkedHashMap<CacheKey,CacheEntry> entries =
+		new LinkedHashMap<CacheKey,CacheEntry>(16, 0.75f, true);
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+	private long currentBytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CachingServerConnection(ServerConnection delegate) {
+		this.delegate = delegate;
+	}
+
+	public ServerConnection getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public List<IterationStatus> listIterationsForProject(String projectName)
+			throws IOException, ConnectorException, URISyntaxException {
+		return delegate.listIterationsForProject(projectName);
+	}
+
+	@Override
+	public List<IterationStatus> listIterationsInvolvingUser(String userName)
+			throws IOException, ConnectorException, URISyntaxException {
+		return delegate.listIterationsInvolvingUser(userName);
+	}
+
+	@Override
+	public StoryList retrieveStoriesForIteration(String iterationName)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		CacheKey key = new CacheKey(STORY_TYPE, "Iteration.Name", iterationName);
+		StoryList stories = getStories(key);
+		if (stories == null) {
+			stories = delegate.retrieveStoriesForIteration(iterationName);
+			putStories(key, stories);
+		}
+		return stories;
+	}
+
+	@Override
+	public StoryList retrieveStoriesForProjectIteration(String project,
+			String iterationName) throws IOException, ClientProtocolException,
+			ConnectorException, TransformerException, URISyntaxException {
+		CacheKey key = new CacheKey(STORY_TYPE, "Project.Name", project,
+				"Iteration.Name", iterationName);
+		StoryList stories = getStories(key);
+		if (stories == null) {
+			stories = delegate.retrieveStoriesForProjectIteration(project, iterationName);
+			putStories(key, stories);
+		}
+		return stories;
+	}
+
+	@Override
+	public StoryList retrieveStories(String[] stories) throws IOException,
+			ClientProtocolException, ConnectorException, TransformerException,
+			URISyntaxException {
+		// results follow the argument order, so the key does as well
+		CacheKey key = new CacheKey(STORY_TYPE, "FormattedID", stories);
+		StoryList result = getStories(key);
+		if (result == null) {
+			result = delegate.retrieveStories(stories);
+			putStories(key, result);
+		}
+		return result;
+	}
+
+	@Override
+	public TaskList retrieveTasks(StoryList stories) throws IOException,
+			ClientProtocolException, ConnectorException, TransformerException,
+			URISyntaxException {
+		List<StoryType> storyList = stories.getStory();
+		String[] storyIDs = new String[storyList.size()];
+		for (int i = 0; i < storyIDs.length; i++) {
+			storyIDs[i] = storyList.get(i).getIdentifier();
+		}
+		CacheKey key = new CacheKey(TASK_TYPE, "WorkProduct.FormattedID", storyIDs);
+
+		CacheEntry entry = lookup(key);
+		if (entry != null) {
+			replayLinks(entry.addedLinks, storyList);
+			return ModelUtilities.copy(entry.tasks);
+		}
+
+		int[] linkCounts = new int[storyList.size()];
+		for (int i = 0; i < linkCounts.length; i++) {
+			Links links = storyList.get(i).getLinks();
+			linkCounts[i] = (links == null) ? 0 : links.getLink().size();
+		}
+		TaskList tasks = delegate.retrieveTasks(stories);
+
+		Map<String,List<Link>> addedLinks = new HashMap<String,List<Link>>();
+		for (int i = 0; i < linkCounts.length; i++) {
+			StoryType story = storyList.get(i);
+			Links links = story.getLinks();
+			if (links != null && links.getLink().size() > linkCounts[i]) {
+				List<Link> added = new ArrayList<Link>();
+				for (Link l: links.getLink().subList(linkCounts[i], links.getLink().size())) {
+					added.add(ModelUtilities.copy(l));
+				}
+				addedLinks.put(story.getIdentifier(), added);
+			}
+		}
+		TaskList cached = ModelUtilities.copy(tasks);
+		store(key, new CacheEntry(null, cached, addedLinks,
+				ModelUtilities.estimateSize(cached)));
+		return tasks;
+	}
+
+	@Override
+	public void streamStoriesForIteration(String iterationName,
+			PageHandler<StoryType> handler) throws IOException,
+			ConnectorException, TransformerException, URISyntaxException {
+		delegate.streamStoriesForIteration(iterationName, handler);
+	}
+
+	@Override
+	public void streamStoriesForProjectIteration(String project,
+			String iterationName, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		delegate.streamStoriesForProjectIteration(project, iterationName, handler);
+	}
+
+	@Override
+	public void streamStories(String[] stories, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		delegate.streamStories(stories, handler);
+	}
+
+	@Override
+	public void streamTasks(StoryList stories, PageHandler<TaskType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		delegate.streamTasks(stories, handler);
+	}
+
+	/**
+	 * Discard every cached entry.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	/**
+	 * Discard the cached stories for an iteration, regardless of project.
+	 * 
+	 * @param iterationName the iteration whose stories have changed
+	 */
+	public synchronized void invalidateIteration(String iterationName) {
+		Iterator<Map.Entry<CacheKey,CacheEntry>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<CacheKey,CacheEntry> e = iter.next();
+			if (e.getKey().matches(STORY_TYPE, "Iteration.Name", iterationName)) {
+				currentBytes -= e.getValue().size;
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discard every cached task list.
+	 */
+	public synchronized void invalidateTasks() {
+		Iterator<Map.Entry<CacheKey,CacheEntry>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<CacheKey,CacheEntry> e = iter.next();
+			if (e.getKey().type.equals(TASK_TYPE)) {
+				currentBytes -= e.getValue().size;
+				iter.remove();
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Retrieve the approximate heap used by the cached entries.
+	 * @see ModelUtilities#estimateSize(StoryList)
+	 */
+	public synchronized long getApproximateSize() {
+		return currentBytes;
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the approximate memory budget of the cache.
+	 * 
+	 * @param maxBytes the most heap that cached entries should use
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Set how long an entry stays valid after it is stored.
+	 * <p>
+	 * This applies to entries stored after the call.
+	 * 
+	 * @param timeToLive lifetime of an entry in milliseconds
+	 */
+	public synchronized void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Close the underlying connection if it is closeable.
+	 */
+	@Override
+	public void close() throws IOException {
+		invalidateAll();
+		if (delegate instanceof Closeable) {
+			((Closeable) delegate).close();
+		}
+	}
+
+	private StoryList getStories(CacheKey key) {
+		CacheEntry entry = lookup(key);
+		return (entry == null) ? null : ModelUtilities.copy(entry.stories);
+	}
+
+	private void putStories(CacheKey key, StoryList stories) {
+		StoryList cached = ModelUtilities.copy(stories);
+		store(key, new CacheEntry(cached, null, null, ModelUtilities.estimateSize(cached)));
+	}
+
+	private synchronized CacheEntry lookup(CacheKey key) {
+		CacheEntry entry = entries.get(key);
+		if (entry != null && entry.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			currentBytes -= entry.size;
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			logger.debug("cache miss for " + key);
+		} else {
+			hits.incrementAndGet();
+			logger.debug("cache hit for " + key);
+		}
+		return entry;
+	}
+
+	private synchronized void store(CacheKey key, CacheEntry entry) {
+		entry.expires = System.currentTimeMillis() + timeToLive;
+		CacheEntry previous = entries.put(key, entry);
+		if (previous != null) {
+			currentBytes -= previous.size;
+		}
+		currentBytes += entry.size;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<CacheEntry> iter = entries.values().iterator();
+		while (iter.hasNext() && (entries.size() > maxEntries || currentBytes > maxBytes)) {
+			currentBytes -= iter.next().size;
+			iter.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void replayLinks(Map<String,List<Link>> addedLinks, List<StoryType> storyList) {
+		for (StoryType story: storyList) {
+			List<Link> added = addedLinks.get(story.getIdentifier());
+			if (added != null) {
+				if (story.getLinks() == null) {
+					story.setLinks(objFactory.createLinks());
+				}
+				for (Link l: added) {
+					story.getLinks().getLink().add(ModelUtilities.copy(l));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * A normalized query - the type of object retrieved along with the
+	 * field/value pairs that it was filtered on.
+	 */
+	private static class CacheKey {
+		private final String type;
+		private final List<String> terms;
+
+		CacheKey(String type, String... terms) {
+			this.type = type;
+			this.terms = Arrays.asList(terms);
+		}
+
+		CacheKey(String type, String field, String[] values) {
+			this.type = type;
+			this.terms = new ArrayList<String>(values.length + 1);
+			this.terms.add(field);
+			this.terms.addAll(Arrays.asList(values));
+		}
+
+		boolean matches(String type, String field, String value) {
+			if (this.type.equals(type)) {
+				int index = terms.indexOf(field);
+				return index >= 0 && index + 1 < terms.size()
+					&& terms.get(index + 1).equals(value);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + terms.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof CacheKey) {
+				CacheKey other = (CacheKey) obj;
+				return type.equals(other.type) && terms.equals(other.terms);
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return type + terms;
+		}
+	}
+
+	private static class CacheEntry {
+		final StoryList stories;
+		final TaskList tasks;
+		final Map<String,List<Link>> addedLinks;
+		final long size;
+		long expires;
+
+		CacheEntry(StoryList stories, TaskList tasks,
+				Map<String,List<Link>> addedLinks, long size) {
+			this.stories = stories;
+			this.tasks = tasks;
+			this.addedLinks = addedLinks;
+			this.size = size;
+		}
+	}
+
+}
@@ -20,9 +20,9 @@ import org.apache.log4j.Logger;
 /**
  * Implements a vanilla HTTP client factory.
  * 
- * This class provides the most basic factory implementation.  I had plans on
- * creating peer classes to implement pooled connections but have yet to need
- * such a factory. 
+ * This class provides the most basic factory implementation.  Each client
+ * gets its own single-connection manager; see {@link PooledHttpClientFactory}
+ * for clients that share a connection pool.
  */
 public class DefaultHttpClientFactory implements HttpClientFactory {
 	private static final Logger logger = Logger.getLogger(DefaultHttpClientFactory.class);
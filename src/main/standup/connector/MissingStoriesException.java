@@ -0,0 +1,57 @@
+package standup.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import standup.xml.StoryList;
+
+/**
+ * Some of the requested stories do not exist.
+ *
+ * This exception is thrown when stories are retrieved by identifier and
+ * the backend has nothing for one or more of the identifiers.  The
+ * stories that were found are still available from the exception so
+ * that a caller can carry on without the missing ones.
+ */
+public class MissingStoriesException extends ConnectorException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> missingIdentifiers;
+	private final StoryList stories;
+
+	/**
+	 * Constructs a new exception naming the missing identifiers.
+	 *
+	 * @param missingIdentifiers the identifiers that were not found, in
+	 *                the order that they were requested
+	 * @param stories the stories that were found or {@code null} if they
+	 *                have already been handed to the caller a page at a
+	 *                time
+	 */
+	public MissingStoriesException(List<String> missingIdentifiers, StoryList stories) {
+		super("stories not found: " + missingIdentifiers);
+		this.missingIdentifiers = Collections.unmodifiableList(
+				new ArrayList<String>(missingIdentifiers));
+		this.stories = stories;
+	}
+
+	/**
+	 * Retrieve the identifiers that were not found.
+	 */
+	public List<String> getMissingIdentifiers() {
+		return missingIdentifiers;
+	}
+
+	/**
+	 * Retrieve the stories that were found, in the order that they were
+	 * requested.
+	 *
+	 * @return the stories or {@code null} when they were streamed
+	 */
+	public StoryList getStories() {
+		return stories;
+	}
+
+}
@@ -0,0 +1,30 @@
+package standup.connector;
+
+import java.util.List;
+
+/**
+ * Receives the results of a streaming query one page at a time.
+ * <p>
+ * The streaming methods of {@link ServerConnection} call this as each
+ * page arrives from the backend instead of collecting the whole result
+ * set first.  This lets the consumer start working before the last page
+ * has been retrieved and keeps the memory footprint proportional to the
+ * page size rather than to the result set.
+ *
+ * @param <T> the type of domain object being retrieved
+ */
+public interface PageHandler<T> {
+
+	/**
+	 * Process the next page of results.
+	 * 
+	 * @param page the domain objects in the page, in result order.  The
+	 *        list is not retained by the connection.
+	 * @return {@code true} to continue retrieving pages or {@code false}
+	 *         to stop the query early
+	 * @throws ConnectorException to abort the query.  The exception is
+	 *         propagated to the caller of the streaming method.
+	 */
+	public boolean handlePage(List<T> page) throws ConnectorException;
+
+}
@@ -0,0 +1,193 @@
+package standup.connector;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * Implements an HTTP client factory whose clients share a connection pool.
+ * <p>
+ * Every client returned by {@link #getHttpClient()} draws its connections
+ * from the same thread-safe pool, so connections opened by one client are
+ * kept alive and reused by the next one instead of being torn down after
+ * each request.  The pool is bounded both per route and in total.  Idle
+ * and expired connections are evicted in the background.  Clients ask
+ * for gzip or deflate encoded responses and decode them transparently.
+ * <p>
+ * The clients must not shut down their connection manager since it is
+ * shared; call {@link #close()} on the factory instead once none of its
+ * clients are in use.
+ */
+public class PooledHttpClientFactory extends DefaultHttpClientFactory implements Closeable {
+	private static final Logger logger = Logger.getLogger(PooledHttpClientFactory.class);
+
+	/** Default limit on the connections in the pool. */
+	public static final int DEFAULT_MAX_TOTAL = 20;
+	/** Default limit on the pooled connections to a single route. */
+	public static final int DEFAULT_MAX_PER_ROUTE = 4;
+	/** How long a connection is kept when the server does not say. */
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+	/** How long a connection may sit unused before it is closed. */
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+	private final PoolingClientConnectionManager connectionManager;
+	private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+	private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private ScheduledExecutorService evictor;
+
+	public PooledHttpClientFactory() {
+		this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE);
+	}
+
+	/**
+	 * @param maxTotal the most connections that the pool holds
+	 * @param maxPerRoute the most connections that the pool holds for
+	 *        any one route
+	 */
+	public PooledHttpClientFactory(int maxTotal, int maxPerRoute) {
+		connectionManager = new PoolingClientConnectionManager(
+				SchemeRegistryFactory.createDefault());
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+	}
+
+	public int getMaxTotal() {
+		return connectionManager.getMaxTotal();
+	}
+
+	public void setMaxTotal(int maxTotal) {
+		connectionManager.setMaxTotal(maxTotal);
+	}
+
+	public int getDefaultMaxPerRoute() {
+		return connectionManager.getDefaultMaxPerRoute();
+	}
+
+	public void setDefaultMaxPerRoute(int maxPerRoute) {
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+	}
+
+	/**
+	 * Override the per-route limit for a single host.
+	 *
+	 * @param host the host, including scheme and port
+	 * @param maxPerRoute the most connections that the pool holds for it
+	 */
+	public void setMaxPerRoute(HttpHost host, int maxPerRoute) {
+		connectionManager.setMaxPerRoute(new HttpRoute(host), maxPerRoute);
+	}
+
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+
+	/**
+	 * Set how long a connection is kept for reuse when the server's
+	 * response does not include a {@code Keep-Alive} timeout.
+	 *
+	 * @param keepAliveMillis time to keep connections, in milliseconds
+	 */
+	public void setKeepAliveMillis(long keepAliveMillis) {
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * Set how long a pooled connection may go unused before it is closed.
+	 * <p>
+	 * This must be set before the first client is created.
+	 *
+	 * @param idleTimeoutMillis idle time, in milliseconds
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Retrieve the pool shared by this factory's clients.
+	 */
+	public PoolingClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/* (non-Javadoc)
+	 * @see standup.connector.DefaultHttpClientFactory#getHttpClient()
+	 */
+	@Override
+	public AbstractHttpClient getHttpClient() {
+		startEvictor();
+		DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+		httpClient.addRequestInterceptor(new RequestAcceptEncoding());
+		httpClient.addResponseInterceptor(new ResponseContentEncoding());
+		httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return (duration > 0) ? duration : keepAliveMillis;
+			}
+		});
+		return httpClient;
+	}
+
+	/**
+	 * Close every pooled connection and stop the eviction thread.
+	 * <p>
+	 * Clients created by this factory cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = evictor;
+			evictor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		connectionManager.shutdown();
+	}
+
+	private synchronized void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "http-connection-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = Math.max(idleTimeoutMillis / 2, 1000);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+				if (logger.isDebugEnabled()) {
+					logger.debug("connection pool: " + connectionManager.getTotalStats());
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+}
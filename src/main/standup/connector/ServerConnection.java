@@ -11,7 +11,9 @@ import javax.xml.transform.TransformerException;
 import org.apache.http.client.ClientProtocolException;
 
 import standup.xml.StoryList;
+import standup.xml.StoryType;
 import standup.xml.TaskList;
+import standup.xml.TaskType;
 
 /**
  * A connection to an Agile Project Management tool.
@@ -138,8 +140,8 @@ public interface ServerConnection {
  	 * 'US' for user stories and 'DE' for defects.  To retrieve a Rally story,
  	 * you would use identifiers like 'US123' or 'DE42'.
  	 * 
- 	 * Note that the order of stories in the result set is not necessarily
- 	 * tied to the order of the {@code stories} parameter.
+ 	 * The stories are returned in the order of the {@code stories}
+ 	 * parameter.  An identifier that is repeated is only retrieved once.
  	 * 
  	 * @param stories the identifiers to retrieve from the backend
  	 * 
@@ -149,6 +151,8 @@ public interface ServerConnection {
  	 * @throws IOException when a low-level IO operation fails
  	 * @throws ClientProtocolException when an error occurs in the protocol
  	 *         layer - e.g., a non-successful HTTP result code is returned 
+ 	 * @throws MissingStoriesException when some of the identifiers do not
+ 	 *         match a story.  The stories that were found are attached.
  	 * @throws ConnectorException when an error occurs in the connector
  	 *         layer other than either a transport or IO layer failure
  	 * @throws TransformerException when an XSLT exception is thrown while
@@ -184,4 +188,87 @@ public interface ServerConnection {
  		       TransformerException, URISyntaxException;
 
 
+ 	/**
+ 	 * Stream the stories for a named iteration a page at a time.
+ 	 * 
+ 	 * This is the streaming equivalent of
+ 	 * {@link #retrieveStoriesForIteration(String)}.  The handler is called
+ 	 * once for each page as it arrives.  Stories are delivered before
+ 	 * defects, which is the same order that the list-based method uses.
+ 	 * 
+ 	 * @param iterationName  retrieve stories associated with this iteration
+ 	 * @param handler receives each page of stories
+ 	 * 
+ 	 * @throws IOException when a low-level IO operation fails
+ 	 * @throws ConnectorException when an error occurs in the connector
+ 	 *         layer or is thrown by {@code handler}
+ 	 * @throws TransformerException when an XSLT exception is thrown while
+ 	 *         transforming the backend result into the model.
+ 	 * @throws URISyntaxException 
+ 	 */
+ 	public void streamStoriesForIteration(String iterationName, PageHandler<StoryType> handler)
+ 		throws IOException, ConnectorException, TransformerException, URISyntaxException;
+
+ 	/**
+ 	 * Stream the stories for a named iteration and project a page at a time.
+ 	 * 
+ 	 * This is the streaming equivalent of
+ 	 * {@link #retrieveStoriesForProjectIteration(String, String)}.
+ 	 * 
+ 	 * @param project retrieve stories associated with this project
+ 	 * @param iterationName  retrieve stories associated with this iteration
+ 	 * @param handler receives each page of stories
+ 	 * 
+ 	 * @throws IOException when a low-level IO operation fails
+ 	 * @throws ConnectorException when an error occurs in the connector
+ 	 *         layer or is thrown by {@code handler}
+ 	 * @throws TransformerException when an XSLT exception is thrown while
+ 	 *         transforming the backend result into the model.
+ 	 * @throws URISyntaxException 
+ 	 */
+ 	public void streamStoriesForProjectIteration(String project, String iterationName,
+ 			PageHandler<StoryType> handler)
+ 		throws IOException, ConnectorException, TransformerException, URISyntaxException;
+
+ 	/**
+ 	 * Stream stories by their backend identifier a page at a time.
+ 	 * 
+ 	 * This is the streaming equivalent of {@link #retrieveStories(String[])}.
+ 	 * 
+ 	 * @param stories the identifiers to retrieve from the backend
+ 	 * @param handler receives each page of stories
+ 	 * 
+ 	 * @throws IOException when a low-level IO operation fails
+ 	 * @throws MissingStoriesException once the stories that were found
+ 	 *         have been handed over when some of the identifiers do not
+ 	 *         match a story
+ 	 * @throws ConnectorException when an error occurs in the connector
+ 	 *         layer or is thrown by {@code handler}
+ 	 * @throws TransformerException when an XSLT exception is thrown while
+ 	 *         transforming the backend result into the model.
+ 	 * @throws URISyntaxException 
+ 	 */
+ 	public void streamStories(String[] stories, PageHandler<StoryType> handler)
+ 		throws IOException, ConnectorException, TransformerException, URISyntaxException;
+
+ 	/**
+ 	 * Stream the tasks associated with a bunch of stories a page at a time.
+ 	 * 
+ 	 * This is the streaming equivalent of {@link #retrieveTasks(StoryList)}.
+ 	 * Like that method, it updates the links of the stories in
+ 	 * {@code stories} as tasks are retrieved.
+ 	 * 
+ 	 * @param stories retrieve the tasks for this set of stories
+ 	 * @param handler receives each page of tasks
+ 	 * 
+ 	 * @throws IOException when a low-level IO operation fails
+ 	 * @throws ConnectorException when an error occurs in the connector
+ 	 *         layer or is thrown by {@code handler}
+ 	 * @throws TransformerException when an XSLT exception is thrown while
+ 	 *         transforming the backend result into the model.
+ 	 * @throws URISyntaxException 
+ 	 */
+ 	public void streamTasks(StoryList stories, PageHandler<TaskType> handler)
+ 		throws IOException, ConnectorException, TransformerException, URISyntaxException;
+
 }
@@ -0,0 +1,194 @@
+package standup.connector.rally;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import standup.connector.AsyncCallback;
+import standup.connector.ServerConnection.IterationStatus;
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+
+/**
+ * An asynchronous connection to the Rally Server.
+ * <p>
+ * Each operation is run by the blocking {@link ServerConnection} on an
+ * executor.  The executor can be supplied by the caller - for example a
+ * pool shared by a whole dashboard - otherwise a fixed pool sized by
+ * {@link ServerConnection#getMaxConcurrentQueries()} is created and is
+ * shut down by {@link #close()}.
+ * <p>
+ * Concurrent operations each borrow their own Rally session from the
+ * underlying connection so they do not serialize on the network.
+ */
+public class AsyncServerConnection
+	implements standup.connector.AsyncServerConnection, Closeable
+{
+	private static final Logger logger = Logger.getLogger(AsyncServerConnection.class);
+
+	private final ServerConnection connection;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+
+	/**
+	 * Create an asynchronous connection that runs on its own thread pool.
+	 * 
+	 * @param connection the connection used to talk to Rally
+	 */
+	public AsyncServerConnection(ServerConnection connection) {
+		this(connection, Executors.newFixedThreadPool(
+				Math.max(1, connection.getMaxConcurrentQueries()),
+				new ThreadFactory() {
+					private int threadNumber = 0;
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "rally-async-" + (++threadNumber));
+						t.setDaemon(true);
+						return t;
+					}
+				}), true);
+	}
+
+	/**
+	 * Create an asynchronous connection that runs on {@code executor}.
+	 * <p>
+	 * The executor is not shut down by {@link #close()}.
+	 * 
+	 * @param connection the connection used to talk to Rally
+	 * @param executor runs each operation
+	 */
+	public AsyncServerConnection(ServerConnection connection, ExecutorService executor) {
+		this(connection, executor, false);
+	}
+
+	private AsyncServerConnection(ServerConnection connection, ExecutorService executor,
+			boolean ownsExecutor) {
+		this.connection = connection;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * Retrieve the blocking connection that does the actual work.
+	 */
+	public ServerConnection getConnection() {
+		return connection;
+	}
+
+	@Override
+	public Future<List<IterationStatus>> listIterationsForProject(
+			final String projectName, AsyncCallback<List<IterationStatus>> callback) {
+		return submit(new Callable<List<IterationStatus>>() {
+			@Override
+			public List<IterationStatus> call() throws Exception {
+				return connection.listIterationsForProject(projectName);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<List<IterationStatus>> listIterationsInvolvingUser(
+			final String userName, AsyncCallback<List<IterationStatus>> callback) {
+		return submit(new Callable<List<IterationStatus>>() {
+			@Override
+			public List<IterationStatus> call() throws Exception {
+				return connection.listIterationsInvolvingUser(userName);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<StoryList> retrieveStoriesForIteration(final String iterationName,
+			AsyncCallback<StoryList> callback) {
+		return submit(new Callable<StoryList>() {
+			@Override
+			public StoryList call() throws Exception {
+				return connection.retrieveStoriesForIteration(iterationName);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<StoryList> retrieveStoriesForProjectIteration(final String project,
+			final String iterationName, AsyncCallback<StoryList> callback) {
+		return submit(new Callable<StoryList>() {
+			@Override
+			public StoryList call() throws Exception {
+				return connection.retrieveStoriesForProjectIteration(project, iterationName);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<StoryList> retrieveStories(final String[] stories,
+			AsyncCallback<StoryList> callback) {
+		return submit(new Callable<StoryList>() {
+			@Override
+			public StoryList call() throws Exception {
+				return connection.retrieveStories(stories);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<TaskList> retrieveTasks(final StoryList stories,
+			AsyncCallback<TaskList> callback) {
+		return submit(new Callable<TaskList>() {
+			@Override
+			public TaskList call() throws Exception {
+				return connection.retrieveTasks(stories);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Shut down the thread pool if this object created it.
+	 * <p>
+	 * Operations that are already running are allowed to finish.  The
+	 * underlying {@link ServerConnection} is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	private <T> Future<T> submit(Callable<T> operation, final AsyncCallback<T> callback) {
+		FutureTask<T> task = new FutureTask<T>(operation) {
+			@Override
+			protected void done() {
+				if (callback == null || isCancelled()) {
+					return;
+				}
+				try {
+					T result;
+					try {
+						result = get();
+					} catch (ExecutionException e) {
+						callback.failed(e.getCause());
+						return;
+					}
+					callback.completed(result);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					logger.error("asynchronous callback failed", e);
+				}
+			}
+		};
+		executor.execute(task);
+		return task;
+	}
+
+}
@@ -0,0 +1,493 @@
+package standup.connector.rally;
+
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import standup.xml.Description;
+import standup.xml.FormattingElement;
+import standup.xml.InlineElement;
+import standup.xml.ObjectFactory;
+import standup.xml.SimpleList;
+
+/**
+ * Converts a Rally description into a {@link Description}.
+ * <p>
+ * Rally hands descriptions over as HTML that has been escaped to some
+ * degree.  They used to be cleaned up with a series of regular expressions,
+ * wrapped in a {@code <description>} element and unmarshalled.  This class
+ * produces exactly the same result in a single pass: the clean-up is done
+ * by a {@link Reader} as the characters are consumed by a StAX parser, and
+ * the model objects are created directly from the parse events.
+ * <p>
+ * The clean-up is:
+ * <ul>
+ * <li>{@code &lt;} and {@code &gt;} become markup</li>
+ * <li>{@code &nbsp;} and {@code &amp;nbsp;} become spaces</li>
+ * <li>{@code <br>} becomes {@code <br/>}</li>
+ * <li>any other ampersand, including the one in {@code &amp;}, is text</li>
+ * </ul>
+ * Elements are mapped the same way that JAXB maps them: elements that the
+ * schema does not allow where they appear are dropped along with their
+ * content, text is dropped where the schema does not allow it, and
+ * whitespace-only text in front of a top-level element is ignored.
+ * <p>
+ * Instances are safe to share between threads.
+ */
+public class DescriptionParser {
+
+	private static final Logger logger = Logger.getLogger(DescriptionParser.class);
+	private static final ObjectFactory objFactory = new ObjectFactory();
+
+	/** Where an element appears and what it may contain. */
+	private enum Scope {
+		DESCRIPTION(Description.class),
+		FORMATTING(FormattingElement.class),
+		LIST(SimpleList.class),
+		ITEM(SimpleList.Li.class),
+		ITEM_PARAGRAPH(SimpleList.Li.P.class),
+		INLINE(InlineElement.class),
+		BREAK(Object.class);
+
+		final Class<?> type;
+		final Map<String,Scope> children = new HashMap<String,Scope>();
+
+		Scope(Class<?> type) {
+			this.type = type;
+		}
+
+		void allow(Scope child, String... names) {
+			for (String name: names) {
+				children.put(name, child);
+			}
+		}
+
+		Object newInstance() {
+			switch (this) {
+			case FORMATTING:		return objFactory.createFormattingElement();
+			case LIST:				return objFactory.createSimpleList();
+			case ITEM:				return objFactory.createSimpleListLi();
+			case ITEM_PARAGRAPH:	return objFactory.createSimpleListLiP();
+			case INLINE:			return objFactory.createInlineElement();
+			default:				return objFactory.createDescription();
+			}
+		}
+
+		List<Serializable> getContent(Object target) {
+			switch (this) {
+			case DESCRIPTION:		return ((Description) target).getContent();
+			case FORMATTING:		return ((FormattingElement) target).getContent();
+			case ITEM:				return ((SimpleList.Li) target).getContent();
+			case ITEM_PARAGRAPH:	return ((SimpleList.Li.P) target).getContent();
+			case INLINE:			return ((InlineElement) target).getContent();
+			default:				return null;	// no mixed content
+			}
+		}
+
+		Map<QName,String> getOtherAttributes(Object target) {
+			switch (this) {
+			case FORMATTING:		return ((FormattingElement) target).getOtherAttributes();
+			case ITEM:				return ((SimpleList.Li) target).getOtherAttributes();
+			case ITEM_PARAGRAPH:	return ((SimpleList.Li.P) target).getOtherAttributes();
+			case INLINE:			return ((InlineElement) target).getOtherAttributes();
+			default:				return null;	// no xs:anyAttribute
+			}
+		}
+	}
+
+	static {
+		// mirrors story-list.xsd
+		Scope.DESCRIPTION.allow(Scope.FORMATTING, "p", "div", "i", "b", "tt", "font");
+		Scope.DESCRIPTION.allow(Scope.LIST, "ul", "ol");
+		Scope.DESCRIPTION.allow(Scope.BREAK, "br");
+		Scope.FORMATTING.children.putAll(Scope.DESCRIPTION.children);
+		Scope.LIST.allow(Scope.ITEM, "li");
+		Scope.ITEM.allow(Scope.INLINE, "i", "b", "tt", "div", "font");
+		Scope.ITEM.allow(Scope.ITEM_PARAGRAPH, "p");
+		Scope.ITEM.allow(Scope.LIST, "ul", "ol");
+		Scope.ITEM.allow(Scope.BREAK, "br");
+		Scope.ITEM_PARAGRAPH.allow(Scope.INLINE, "i", "b", "tt", "div", "font");
+		Scope.ITEM_PARAGRAPH.allow(Scope.BREAK, "br");
+		Scope.INLINE.children.putAll(Scope.ITEM_PARAGRAPH.children);
+	}
+
+	private static final Map<String,QName> names = new HashMap<String,QName>();
+	static {
+		for (Scope scope: Scope.values()) {
+			for (String name: scope.children.keySet()) {
+				names.put(name, new QName("", name));
+			}
+		}
+	}
+
+	/** {@code <br>} is untyped so JAXB hands it over as DOM. */
+	private static final ThreadLocal<Document> breakDocument = new ThreadLocal<Document>() {
+		@Override
+		protected Document initialValue() {
+			try {
+				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+				factory.setNamespaceAware(true);
+				return factory.newDocumentBuilder().newDocument();
+			} catch (ParserConfigurationException e) {
+				throw new Error("failed to create a DOM document", e);
+			}
+		}
+	};
+
+	private final XMLInputFactory inputFactory;
+
+	public DescriptionParser() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	/**
+	 * Convert a description as Rally returns it.
+	 *
+	 * @param text the description; Rally returns an empty string when
+	 *        there is none
+	 * @return the converted description or an empty description if
+	 *         <code>text</code> cannot be converted
+	 */
+	public Description parse(String text) {
+		Description description = objFactory.createDescription();
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(new DescriptionReader(text));
+			try {
+				reader.nextTag();
+				new Builder(reader).readContent(Scope.DESCRIPTION, description, 0);
+				while (reader.hasNext()) {
+					reader.next();	// trailing garbage is an error too
+				}
+			} finally {
+				reader.close();
+			}
+			return description;
+		} catch (XMLStreamException e) {
+			logger.error("failed to parse description <<"+text+">>", e);
+		}
+		return objFactory.createDescription();
+	}
+
+	/**
+	 * Builds the model for a single description.
+	 * <p>
+	 * Whether whitespace in front of an element is kept depends on whether
+	 * JAXB considers the enclosing element to be mixed content.  That is
+	 * obvious for the schema types, but {@code <br>} content inherits the
+	 * flag from its parent only the first time JAXB reaches that depth,
+	 * so the depth JAXB has reached is tracked as well.
+	 */
+	private static class Builder {
+		private final XMLStreamReader reader;
+		private int stateDepth = 0;
+
+		Builder(XMLStreamReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Read the content of the current element up to and including its
+		 * end tag.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void readContent(Scope scope, Object target, int depth) throws XMLStreamException {
+			List<Serializable> content = scope.getContent(target);
+			boolean mixed = (content != null) && (scope != Scope.DESCRIPTION);
+			StringBuilder text = new StringBuilder();
+			while (true) {
+				switch (reader.next()) {
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (content != null) {
+						text.append(reader.getTextCharacters(), reader.getTextStart(),
+								reader.getTextLength());
+					}
+					break;
+				case XMLStreamConstants.START_ELEMENT:
+					addText(content, text, !mixed);
+					Scope child = getChildScope(reader, scope);
+					if (child == null) {
+						skipElement(depth + 1);
+					} else if (child == Scope.ITEM) {
+						((SimpleList) target).getLi().add(
+								(SimpleList.Li) readElement(child, depth + 1, mixed));
+					} else {
+						Object value = readElement(child, depth + 1, mixed);
+						content.add(new JAXBElement(names.get(reader.getLocalName()),
+								child.type, scope.type, value));
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					addText(content, text, false);
+					stateDepth = depth;
+					return;
+				default:
+					break;	// comments and processing instructions
+				}
+			}
+		}
+
+		private Object readElement(Scope scope, int depth, boolean parentMixed)
+				throws XMLStreamException {
+			boolean mixed = (depth > stateDepth) && parentMixed;
+			stateDepth = Math.max(stateDepth, depth);
+			if (scope == Scope.BREAK) {
+				Document doc = breakDocument.get();
+				Element element = doc.createElementNS(null, reader.getLocalName());
+				readDOM(doc, element, depth, mixed);
+				return element;
+			}
+			Object value = scope.newInstance();
+			Map<QName,String> attributes = scope.getOtherAttributes(value);
+			if (attributes != null) {
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					String uri = nonNull(reader.getAttributeNamespace(i));
+					if (!uri.equals(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI)) {
+						attributes.put(new QName(uri, reader.getAttributeLocalName(i),
+								nonNull(reader.getAttributePrefix(i))),
+							reader.getAttributeValue(i));
+					}
+				}
+			}
+			readContent(scope, value, depth);
+			return value;
+		}
+
+		private void readDOM(Document doc, Element element, int depth, boolean mixed)
+				throws XMLStreamException {
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				QName name = reader.getAttributeName(i);
+				element.setAttributeNS(emptyToNull(name.getNamespaceURI()),
+						getQualifiedName(name), reader.getAttributeValue(i));
+			}
+			StringBuilder text = new StringBuilder();
+			while (true) {
+				switch (reader.next()) {
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					text.append(reader.getTextCharacters(), reader.getTextStart(),
+							reader.getTextLength());
+					break;
+				case XMLStreamConstants.START_ELEMENT:
+					addText(doc, element, text, !mixed);
+					QName name = reader.getName();
+					Element child = doc.createElementNS(emptyToNull(name.getNamespaceURI()),
+							getQualifiedName(name));
+					element.appendChild(child);
+					boolean childMixed = (depth + 1 > stateDepth) && mixed;
+					stateDepth = Math.max(stateDepth, depth + 1);
+					readDOM(doc, child, depth + 1, childMixed);
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					addText(doc, element, text, false);
+					stateDepth = depth;
+					return;
+				default:
+					break;
+				}
+			}
+		}
+
+		private void skipElement(int depth) throws XMLStreamException {
+			int level = 1;
+			while (level > 0) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					level++;
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					level--;
+				}
+			}
+			stateDepth = depth;
+		}
+	}
+
+	private static Scope getChildScope(XMLStreamReader reader, Scope scope) {
+		if (nonNull(reader.getNamespaceURI()).length() != 0) {
+			return null;
+		}
+		return scope.children.get(reader.getLocalName());
+	}
+
+	private static String getQualifiedName(QName name) {
+		if (name.getPrefix().length() == 0) {
+			return name.getLocalPart();
+		}
+		return name.getPrefix() + ":" + name.getLocalPart();
+	}
+
+	/**
+	 * Flush buffered text.  Whitespace in front of an element is only
+	 * content where JAXB considers the enclosing element mixed.
+	 */
+	private static void addText(List<Serializable> content, StringBuilder text,
+			boolean ignoreWhiteSpace) {
+		if (content != null && text.length() > 0
+				&& !(ignoreWhiteSpace && isWhiteSpace(text))) {
+			content.add(text.toString());
+		}
+		text.setLength(0);
+	}
+
+	private static void addText(Document doc, Node node, StringBuilder text,
+			boolean ignoreWhiteSpace) {
+		if (text.length() > 0 && !(ignoreWhiteSpace && isWhiteSpace(text))) {
+			node.appendChild(doc.createTextNode(text.toString()));
+		}
+		text.setLength(0);
+	}
+
+	private static boolean isWhiteSpace(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String nonNull(String s) {
+		return (s == null) ? "" : s;
+	}
+
+	private static String emptyToNull(String s) {
+		return (s == null || s.length() == 0) ? null : s;
+	}
+
+	/**
+	 * Presents a Rally description as a {@code <description>} document,
+	 * cleaning up the escaping as it goes.
+	 */
+	static class DescriptionReader extends Reader {
+		private static final String START_TAG = "<description>";
+		private static final String END_TAG = "</description>";
+		private static final char EOF = '\uFFFF';
+
+		private final String text;
+		private int pos = 0;
+		private String pending = START_TAG;
+		private int pendingPos = 0;
+		private boolean finished = false;
+
+		DescriptionReader(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public int read(char[] buf, int off, int len) {
+			int count = 0;
+			while (count < len) {
+				if (pending != null) {
+					int n = Math.min(len - count, pending.length() - pendingPos);
+					pending.getChars(pendingPos, pendingPos + n, buf, off + count);
+					count += n;
+					pendingPos += n;
+					if (pendingPos == pending.length()) {
+						pending = null;
+					}
+				} else if (pos < text.length()) {
+					char c = next();
+					if (c == '&') {
+						setPending("&amp;");
+					} else if (c == '<' && skipBreak()) {
+						setPending("<br/>");
+					} else {
+						buf[off + count++] = c;
+					}
+				} else if (!finished) {
+					finished = true;
+					setPending(END_TAG);
+				} else {
+					break;
+				}
+			}
+			return (count == 0 && len > 0) ? -1 : count;
+		}
+
+		@Override
+		public void close() {
+			pos = text.length();
+			pending = null;
+			finished = true;
+		}
+
+		private void setPending(String s) {
+			pending = s;
+			pendingPos = 0;
+		}
+
+		/**
+		 * Decode the next character of the description.  A literal
+		 * ampersand is returned as '&amp;'.
+		 */
+		private char next() {
+			if (pos >= text.length()) {
+				return EOF;
+			}
+			char c = text.charAt(pos++);
+			if (c == '&') {
+				if (text.startsWith("lt;", pos)) {
+					pos += 3;
+					return '<';
+				} else if (text.startsWith("gt;", pos)) {
+					pos += 3;
+					return '>';
+				} else if (text.startsWith("nbsp;", pos)) {
+					pos += 5;
+					return ' ';
+				} else if (text.startsWith("amp;", pos)) {
+					pos += 4;
+					if (text.startsWith("nbsp;", pos)) {
+						pos += 5;
+						return ' ';
+					}
+				}
+			}
+			return c;
+		}
+
+		/**
+		 * Consume the rest of a {@code <br>} tag if one follows a '<'.
+		 *
+		 * @return <code>true</code> if a tag was consumed
+		 */
+		private boolean skipBreak() {
+			int start = pos;
+			if (next() == 'b' && next() == 'r') {
+				char c = next();
+				while (c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+						|| c == '\f' || c == '\r') {
+					c = next();
+				}
+				if (c == '>') {
+					return true;
+				}
+			}
+			pos = start;
+			return false;
+		}
+	}
+
+}
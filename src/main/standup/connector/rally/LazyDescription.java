@@ -0,0 +1,106 @@
+package standup.connector.rally;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+
+import standup.xml.Description;
+
+/**
+ * A description that is converted the first time its content is used.
+ * <p>
+ * The raw Rally text is kept until the content list is touched - through
+ * {@link #getContent()} or by JAXB when the description is marshalled -
+ * and is then converted with a {@link DescriptionParser} and dropped.
+ * Consumers that never look at descriptions never pay for converting them.
+ * <p>
+ * JAXB treats instances as plain {@link Description}s.  Conversion is
+ * thread-safe so a description can be shared between copies of a story.
+ */
+public class LazyDescription extends Description {
+
+	public LazyDescription(DescriptionParser parser, String text) {
+		this.content = new LazyContent(parser, text);
+	}
+
+	/**
+	 * @return <code>true</code> if the description has been converted
+	 */
+	public boolean isMaterialized() {
+		return !(content instanceof LazyContent) || ((LazyContent) content).delegate != null;
+	}
+
+	/**
+	 * Cheap stand-in for the size of the description that does not
+	 * convert it, for callers such as caches that only need an estimate.
+	 *
+	 * @return the length of the raw Rally text, or {@code -1} once the
+	 *         description has been converted
+	 */
+	public int getRawLength() {
+		return (content instanceof LazyContent) ? ((LazyContent) content).rawLength() : -1;
+	}
+
+	/**
+	 * Content list that converts the description on first use.  The
+	 * list has to stay in place since JAXB reads the field directly.
+	 */
+	private static class LazyContent extends AbstractList<Serializable> {
+		private DescriptionParser parser;
+		private String text;
+		private volatile List<Serializable> delegate;
+
+		LazyContent(DescriptionParser parser, String text) {
+			this.parser = parser;
+			this.text = text;
+		}
+
+		private List<Serializable> materialize() {
+			List<Serializable> result = delegate;
+			if (result == null) {
+				synchronized (this) {
+					result = delegate;
+					if (result == null) {
+						result = parser.parse(text).getContent();
+						delegate = result;
+						parser = null;
+						text = null;
+					}
+				}
+			}
+			return result;
+		}
+
+		synchronized int rawLength() {
+			return (delegate == null) ? text.length() : -1;
+		}
+
+		@Override
+		public Serializable get(int index) {
+			return materialize().get(index);
+		}
+
+		@Override
+		public int size() {
+			return materialize().size();
+		}
+
+		@Override
+		public Serializable set(int index, Serializable element) {
+			return materialize().set(index, element);
+		}
+
+		@Override
+		public void add(int index, Serializable element) {
+			materialize().add(index, element);
+			modCount++;
+		}
+
+		@Override
+		public Serializable remove(int index) {
+			modCount++;
+			return materialize().remove(index);
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package standup.connector.rally;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import standup.connector.PooledHttpClientFactory;
+
+
+/**
+ * HTTP Client Factory for Rally connections that share a connection pool.
+ * <p>
+ * Requests carry the same headers as those of {@link RallyClientFactory},
+ * but the clients draw kept-alive connections from a pool that belongs to
+ * the factory.  The pool stays open until the factory is closed, so call
+ * {@link #close()} once none of its clients are in use.
+ */
+public class PooledRallyClientFactory extends PooledHttpClientFactory {
+
+	@Override
+	protected void configureRequest(HttpUriRequest request) {
+		super.configureRequest(request);
+		RallyClientFactory.addIntegrationHeaders(request);
+	}
+
+}
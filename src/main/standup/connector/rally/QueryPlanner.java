@@ -0,0 +1,166 @@
+package standup.connector.rally;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.stream.JsonReader;
+import com.rallydev.rest.request.QueryRequest;
+import com.rallydev.rest.util.Fetch;
+import com.rallydev.rest.util.QueryFilter;
+import com.rallydev.rest.util.Ref;
+
+
+/**
+ * Turns iteration and project names into filters on iteration references.
+ * <p>
+ * Filtering artifacts on {@code Iteration.Name} or {@code Project.Name}
+ * makes Rally join against the iterations and projects for every query,
+ * and a name filter without a project matches every iteration of that name
+ * in the workspace.  The planner looks the iterations up once, remembers
+ * their references for a while, and filters on {@code Iteration} directly.
+ * <p>
+ * A name that does not match any iteration is not remembered and is
+ * planned as the original name filter, so an iteration that is created
+ * later is picked up straight away.
+ */
+class QueryPlanner {
+	private static final Logger logger = Logger.getLogger(QueryPlanner.class);
+
+	/** Default time that a resolved iteration is remembered for. */
+	static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+	private final ServerConnection connection;
+	private final ConcurrentMap<String,Entry> iterations = new ConcurrentHashMap<String,Entry>();
+	private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+	QueryPlanner(ServerConnection connection) {
+		this.connection = connection;
+	}
+
+	long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Forget every resolved iteration.
+	 */
+	void clear() {
+		iterations.clear();
+	}
+
+	/**
+	 * Plan the filter for the artifacts in an iteration.
+	 *
+	 * @param project the project that the iteration belongs to or
+	 *        {@code null} for iterations of that name in any project
+	 * @param iterationName the name of the iteration
+	 */
+	QueryFilter iterationFilter(String project, String iterationName)
+			throws IOException, URISyntaxException {
+		List<String> refs = resolveIteration(project, iterationName);
+		if (refs.isEmpty()) {
+			return nameFilter(project, iterationName);
+		}
+		QueryFilter filter = null;
+		for (String ref: refs) {
+			QueryFilter term = new QueryFilter("Iteration", "=", ref);
+			filter = (filter == null) ? term : filter.or(term);
+		}
+		return filter;
+	}
+
+	/**
+	 * The filter that matches an iteration by name, which is what the
+	 * planner falls back to.
+	 */
+	static QueryFilter nameFilter(String project, String iterationName) {
+		QueryFilter filter = new QueryFilter("Iteration.Name", "=", iterationName);
+		if (project != null) {
+			filter = QueryFilter.and(new QueryFilter("Project.Name", "=", project), filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * Find the relative references of the matching iterations, asking
+	 * Rally only when they are not already known.
+	 */
+	List<String> resolveIteration(String project, String iterationName)
+			throws IOException, URISyntaxException {
+		String key = (project == null) ? "\u0000" + iterationName : project + "\u0000" + iterationName;
+		long now = System.currentTimeMillis();
+		Entry entry = iterations.get(key);
+		if (entry != null && entry.expires > now) {
+			return entry.refs;
+		}
+
+		QueryFilter filter = new QueryFilter("Name", "=", iterationName);
+		if (project != null) {
+			filter = QueryFilter.and(new QueryFilter("Project.Name", "=", project), filter);
+		}
+		QueryRequest request = new QueryRequest("Iteration");
+		request.setFetch(new Fetch("Name"));
+		request.setQueryFilter(filter);
+		QueryResultReader.Page<String> page = connection.queryItems(request,
+				new QueryResultReader.ItemReader<String>() {
+					@Override
+					public String read(JsonReader reader) throws IOException {
+						return readRef(reader);
+					}
+				});
+		if (!page.wasSuccessful()) {
+			logger.warn("failed to resolve iteration " + iterationName + ": " + page.getErrors());
+			return Collections.emptyList();
+		}
+
+		List<String> refs = new ArrayList<String>(page.getResults().size());
+		for (String ref: page.getResults()) {
+			if (ref != null) {
+				refs.add(Ref.getRelativeRef(ref));
+			}
+		}
+		refs = Collections.unmodifiableList(refs);
+		if (!refs.isEmpty()) {
+			iterations.put(key, new Entry(refs, now + ttlMillis));
+		}
+		logger.debug(String.format("resolved iteration %s%s to %s", iterationName,
+				(project == null) ? "" : " in " + project, refs));
+		return refs;
+	}
+
+	private static String readRef(JsonReader reader) throws IOException {
+		String ref = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("_ref")) {
+				ref = QueryResultReader.nextString(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return ref;
+	}
+
+	private static class Entry {
+		final List<String> refs;
+		final long expires;
+
+		Entry(List<String> refs, long expires) {
+			this.refs = refs;
+			this.expires = expires;
+		}
+	}
+
+}
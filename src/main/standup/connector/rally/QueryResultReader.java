@@ -0,0 +1,172 @@
+package standup.connector.rally;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+
+/**
+ * Decodes a Rally query response without building a JSON tree.
+ * <p>
+ * {@link com.rallydev.rest.response.QueryResponse} parses the whole
+ * response into Gson objects which are then copied into the model, so for
+ * a while every result exists twice.  This reader walks the response with
+ * a {@link JsonReader} instead and hands each result to an
+ * {@link ItemReader} that builds the model object straight from the
+ * stream.  Only the results and the few header fields that drive paging
+ * are kept.
+ */
+final class QueryResultReader {
+
+	/**
+	 * Builds one model object from the result that the reader is
+	 * positioned at.  Implementations must consume the whole value.
+	 */
+	interface ItemReader<T> {
+		T read(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * One page of decoded results.
+	 */
+	static final class Page<T> {
+		private final List<T> results;
+		private final List<String> errors;
+		private final int totalResultCount;
+
+		Page(List<T> results, List<String> errors, int totalResultCount) {
+			this.results = results;
+			this.errors = errors;
+			this.totalResultCount = totalResultCount;
+		}
+
+		List<T> getResults() {
+			return results;
+		}
+
+		List<String> getErrors() {
+			return errors;
+		}
+
+		boolean wasSuccessful() {
+			return errors.isEmpty();
+		}
+
+		int getTotalResultCount() {
+			return totalResultCount;
+		}
+	}
+
+	private QueryResultReader() {
+	}
+
+	/**
+	 * The results of a page whose item type was lost along the way, as
+	 * when queries with different item readers run together.  The caller
+	 * must ask for the type that the page's item reader produced.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> List<T> resultsOf(Page<?> page) {
+		return (List<T>) page.getResults();
+	}
+
+	/**
+	 * Decode a query response.
+	 *
+	 * @param in the response, which is closed once it has been read
+	 * @param itemReader builds the model objects
+	 * @throws IOException if the response is not a query result
+	 */
+	static <T> Page<T> read(Reader in, ItemReader<T> itemReader) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		try {
+			Page<T> page = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("QueryResult")) {
+					page = readQueryResult(reader, itemReader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (page == null) {
+				throw new IOException("response does not contain a QueryResult");
+			}
+			return page;
+		} catch (IllegalStateException e) {
+			throw new IOException("unexpected Rally response: " + e.getMessage(), e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static <T> Page<T> readQueryResult(JsonReader reader, ItemReader<T> itemReader)
+			throws IOException {
+		List<T> results = new ArrayList<T>();
+		List<String> errors = Collections.emptyList();
+		int totalResultCount = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("Results")) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.peek() == JsonToken.NULL) {
+						reader.nextNull();
+					} else {
+						results.add(itemReader.read(reader));
+					}
+				}
+				reader.endArray();
+			} else if (name.equals("Errors")) {
+				errors = readStrings(reader);
+			} else if (name.equals("TotalResultCount")) {
+				totalResultCount = reader.nextInt();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new Page<T>(results, errors, totalResultCount);
+	}
+
+	private static List<String> readStrings(JsonReader reader) throws IOException {
+		List<String> strings = new ArrayList<String>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			strings.add(reader.nextString());
+		}
+		reader.endArray();
+		return strings;
+	}
+
+	/**
+	 * Read a string value, treating {@code null} as missing.
+	 */
+	static String nextString(JsonReader reader, String defaultValue) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return defaultValue;
+		}
+		return reader.nextString();
+	}
+
+	/**
+	 * Read a number value, treating {@code null} as missing.
+	 */
+	static double nextDouble(JsonReader reader, double defaultValue) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return defaultValue;
+		}
+		return reader.nextDouble();
+	}
+
+}
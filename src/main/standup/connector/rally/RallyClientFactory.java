@@ -5,6 +5,9 @@ import java.util.Map;
 import java.util.Properties;
 
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.AbstractHttpClient;
 
 import standup.connector.DefaultHttpClientFactory;
 
@@ -13,7 +16,11 @@ import standup.connector.DefaultHttpClientFactory;
  * HTTP Client Factory for Rally connections.
  * <p>
  * This client factory ensures that requests include the HTTP headers that
- * the Rally API wants on each request.
+ * the Rally API wants on each request.  Its clients ask for compressed
+ * responses and decode them transparently.  Each client has a connection
+ * of its own, so there is nothing to release once the clients are gone;
+ * see {@link PooledRallyClientFactory} for clients that share a pool of
+ * keep-alive connections.
  */
 public class RallyClientFactory extends DefaultHttpClientFactory {
 	private static final Map<String,String> HEADER_MAP;
@@ -39,6 +46,24 @@ public class RallyClientFactory extends DefaultHttpClientFactory {
 	@Override
 	protected void configureRequest(HttpUriRequest request) {
 		super.configureRequest(request);
+		addIntegrationHeaders(request);
+	}
+
+	/* (non-Javadoc)
+	 * @see standup.connector.DefaultHttpClientFactory#getHttpClient()
+	 */
+	@Override
+	public AbstractHttpClient getHttpClient() {
+		AbstractHttpClient httpClient = super.getHttpClient();
+		httpClient.addRequestInterceptor(new RequestAcceptEncoding());
+		httpClient.addResponseInterceptor(new ResponseContentEncoding());
+		return httpClient;
+	}
+
+	/**
+	 * Add the headers that identify this integration to Rally.
+	 */
+	static void addIntegrationHeaders(HttpUriRequest request) {
 		for (String key: HEADER_MAP.keySet()) {
 			request.addHeader(key, HEADER_MAP.get(key));
 		}
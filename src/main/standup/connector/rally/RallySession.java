@@ -0,0 +1,111 @@
+package standup.connector.rally;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import com.rallydev.rest.RallyRestApi;
+import com.rallydev.rest.client.BasicAuthClient;
+
+import standup.connector.HttpClientFactory;
+import standup.connector.PooledHttpClientFactory;
+
+
+/**
+ * A Rally session whose requests are made by an HTTP client factory.
+ * <p>
+ * A plain {@link RallyRestApi} sends its requests on an HTTP client of its
+ * own, so neither the request configuration of a factory - the integration
+ * headers of {@link RallyClientFactory}, say - nor its client setup ever
+ * apply to Rally traffic.  This session creates its GET requests with the
+ * factory and sends them on a client from the same factory that shares the
+ * session's credentials.  Everything this connection asks of Rally is a
+ * GET; other requests still take the Rally client's own path.
+ * <p>
+ * The clients of a {@link PooledHttpClientFactory} borrow kept-alive
+ * connections from the factory's pool, and closing the session leaves the
+ * pool alone.  Clients of other factories have a connection of their own,
+ * which is closed along with the session.
+ */
+class RallySession extends RallyRestApi {
+	private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	RallySession(URI server, String username, String password, HttpClientFactory factory) {
+		super(new FactoryClient(server, username, password, factory));
+	}
+
+	/**
+	 * Send a GET request and read the response as it arrives instead of
+	 * collecting it into a string first.  Closing the reader hands the
+	 * connection back.
+	 *
+	 * @param url the query, relative to the web service address
+	 */
+	Reader openQuery(String url) throws IOException {
+		HttpEntity entity = ((FactoryClient) client).get(url);
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		if (charset == null) {
+			charset = DEFAULT_CHARSET;
+		}
+		return new InputStreamReader(entity.getContent(), charset);
+	}
+
+	private static class FactoryClient extends BasicAuthClient {
+		private final HttpClientFactory factory;
+		private final AbstractHttpClient httpClient;
+
+		FactoryClient(URI server, String username, String password,
+				HttpClientFactory factory) {
+			super(server, username, password);
+			this.factory = factory;
+			// the superclass constructor has stored the credentials
+			this.httpClient = factory.getHttpClient(getCredentialsProvider());
+		}
+
+		@Override
+		public String doGet(String url) throws IOException {
+			return EntityUtils.toString(get(url), "utf-8");
+		}
+
+		/**
+		 * Send a GET request and return the entity of a successful response.
+		 */
+		HttpEntity get(String url) throws IOException {
+			URI uri = URI.create(getWsapiUrl() + url);
+			HttpUriRequest request = factory.getRequestObject(HttpGet.METHOD_NAME, uri);
+			if (request == null) {
+				throw new IOException("failed to create request for " + uri);
+			}
+			HttpResponse response = httpClient.execute(request);
+			HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				EntityUtils.consumeQuietly(entity);
+				throw new IOException(response.getStatusLine().toString());
+			}
+			if (entity == null) {
+				throw new IOException("empty response to " + uri);
+			}
+			return entity;
+		}
+
+		@Override
+		public void close() {
+			// a pool belongs to the factory that made it
+			if (!(factory instanceof PooledHttpClientFactory)) {
+				httpClient.getConnectionManager().shutdown();
+			}
+		}
+	}
+
+}
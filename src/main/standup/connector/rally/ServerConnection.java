@@ -1,32 +1,42 @@
 package standup.connector.rally;
 
+import java.io.Closeable;
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Pattern;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.util.JAXBResult;
-import javax.xml.bind.util.JAXBSource;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.rallydev.rest.RallyRestApi;
 import com.rallydev.rest.request.QueryRequest;
 import com.rallydev.rest.response.QueryResponse;
@@ -34,9 +44,12 @@ import com.rallydev.rest.util.Fetch;
 import com.rallydev.rest.util.QueryFilter;
 
 import standup.connector.ConnectorException;
-import standup.connector.DefaultHttpClientFactory;
 import standup.connector.HttpClientFactory;
+import standup.connector.MissingStoriesException;
+import standup.connector.PageHandler;
+import standup.connector.PooledHttpClientFactory;
 import standup.connector.UnexpectedResponseException;
+import standup.utility.ModelUtilities;
 import standup.utility.Utilities;
 import standup.xml.Description;
 import standup.xml.Links;
@@ -55,10 +68,29 @@ import standup.xml.TopLevelObject;
  * <p>
  * The connection maintains the authorization information for the
  * session along with the working set of HTTP headers.
+ * <p>
+ * {@link RallyRestApi} sessions are opened lazily and returned to an
+ * idle list when a request finishes so that sequential requests share a
+ * single session.  The Rally client is not safe for concurrent use, so
+ * requests that run in parallel (see {@link #setMaxConcurrentQueries(int)})
+ * each borrow their own session.  Changing the credentials discards the
+ * open sessions so that the next request authenticates with the new ones.
+ * Sessions can share a pool of HTTP connections; see
+ * {@link #setConnectionPool(PooledHttpClientFactory)}.
+ * Call {@link #close()} when the connection is no longer needed to release
+ * the underlying HTTP clients and query threads.
+ * <p>
+ * A single connection may be shared by any number of threads.  Turning
+ * responses into model objects does not touch any shared mutable state -
+ * descriptions are converted by a stateless {@link DescriptionParser} -
+ * and settings changed while a request is running take effect for the
+ * requests that follow it.  {@link #retrieveTasks(StoryList)} adds links
+ * to the stories that it is given, so concurrent calls must not pass the
+ * same stories.
  */
 public class ServerConnection
 	implements standup.connector.ServerConnection,
-	           Serializable
+	           Closeable, Serializable
 {
 	private static final long serialVersionUID = -4302496608447788915L;
 	private static final Logger logger = Logger.getLogger(ServerConnection.class);
@@ -68,50 +100,85 @@ public class ServerConnection
 	static final String RALLY_PARENT_URL_REL = "Parent URL";
 	static final String RALLY_OBJECT_URL_REL = "Object URL";
 
+	/** Default number of stories whose tasks are fetched by one query. */
+	public static final int DEFAULT_TASK_BATCH_SIZE = 25;
+	/** Longest query filter that we are willing to put into a request URL. */
+	static final int MAX_FILTER_LENGTH = 1500;
+	/**
+	 * Story and defect fields read by {@link #readStory(JsonReader)}.
+	 * {@code Description} is added separately so that it can be left out.
+	 */
+	static final String[] STORY_FIELDS = {
+		"Name", "FormattedID", "Owner", "PlanEstimate"
+	};
+	/**
+	 * Task fields read by {@link #readTask(JsonReader)}.
+	 * {@code WorkProduct} is needed to split batched results back out by
+	 * story and {@code Description} is added separately.
+	 */
+	static final String[] TASK_FIELDS = {
+		"Name", "FormattedID", "Owner", "Estimate", "Actuals", "WorkProduct"
+	};
+	static final String DESCRIPTION_FIELD = "Description";
+	static final String STORY_TYPE = "HierarchicalRequirement";
+	static final String DEFECT_TYPE = "Defect";
+	/** Types requested by an artifact query. */
+	static final String ARTIFACT_TYPES = "hierarchicalrequirement,defect";
+	static final String LAST_UPDATE_FIELD = "LastUpdateDate";
 
-	private static final Pattern ltPattern = Pattern.compile("&lt;");
-	private static final Pattern gtPattern = Pattern.compile("&gt;");
-	private static final Pattern ampPattern = Pattern.compile("&amp;");
-	private static final Pattern nbspPattern = Pattern.compile("&nbsp;");
-	private static final Pattern brPattern = Pattern.compile("<br\\s*>");
-	private static final Pattern ampPattern2 = Pattern.compile("&");
-	private static final Pattern quotPattern = Pattern.compile("\"");
-	
-	private ObjectFactory objFactory = new ObjectFactory();
-	private JAXBContext jaxb;
-	private Unmarshaller unmarshaller;
+	/** Default number of stories looked up by identifier in one query. */
+	public static final int DEFAULT_IDENTIFIER_CHUNK_SIZE = 100;
+	/** Default number of results requested per page. */
+	public static final int DEFAULT_PAGE_SIZE = 200;
+	/** Default number of Rally queries that may be in flight at once. */
+	public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
+
+	private static final DescriptionParser descriptionParser = new DescriptionParser();
 	
-	private String username;
-	private String password;
+	private static final ObjectFactory objFactory = new ObjectFactory();
+	/** Makes the HTTP clients of sessions that do not share a pool. */
+	private static final HttpClientFactory SESSION_CLIENT_FACTORY = new RallyClientFactory();
 	
-	public ServerConnection() {
-		try {
-			this.jaxb = JAXBContext.newInstance("standup.xml");
-			this.unmarshaller = jaxb.createUnmarshaller();
-		} catch (JAXBException e) {
-			throw new Error("failed to initialize XML bindings", e);
-		}
-	}
+	// settings are volatile so that requests running on other threads see
+	// changes without taking the connection lock
+	private volatile String username;
+	private volatile String password;
+
+	private volatile int taskBatchSize = DEFAULT_TASK_BATCH_SIZE;
+	private volatile int maxConcurrentQueries = DEFAULT_MAX_CONCURRENT_QUERIES;
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+	private volatile int identifierChunkSize = DEFAULT_IDENTIFIER_CHUNK_SIZE;
+	private volatile boolean includeStoryDescriptions = true;
+	private volatile boolean includeTaskDescriptions = true;
+	private volatile boolean lazyDescriptions = false;
+	private volatile boolean resolveIterations = true;
+	private volatile boolean singleArtifactQuery = false;
+
+	private transient volatile PooledHttpClientFactory connectionPool;
+	private transient LinkedList<RallyRestApi> idleSessions;
+	private transient Set<RallyRestApi> liveSessions;
+	private transient ExecutorService queryExecutor;
+	private transient Map<String,SyncState> syncStates;
+	private transient QueryPlanner queryPlanner;
+	private int sessionCount = 0;
 	
 	@Override
 	public List<IterationStatus> listIterationsForProject(String projectName)
 			throws IOException, ConnectorException, URISyntaxException {
 		List<IterationStatus> iterationList = new ArrayList<IterationStatus>();
-		RallyRestApi restApi = new RallyRestApi(new URI(RALLY_SERVER_URL), username, password);
 
 		QueryRequest query = new QueryRequest("Iterations");
 
 		query.setFetch(new Fetch("Name"));
 		query.setQueryFilter(new QueryFilter("Project.Name", "=", "Adrenalin SeaDAC Renderer"));
 		
-		QueryResponse resp = restApi.query(query);
+		QueryResponse resp = query(query);
 		
 		for(JsonElement r : resp.getResults()) {
 			JsonObject result = r.getAsJsonObject();
 			iterationList.add(new IterationStatus(result.get("Name").getAsString(), new URI(result.get("_ref").getAsString())));
 		}
 		
-		restApi.close();
 		return iterationList;
 	}
 	@Override
@@ -119,21 +186,19 @@ public class ServerConnection
 			throws IOException, ConnectorException, URISyntaxException {
 	
 		List<IterationStatus> iterationList = new ArrayList<IterationStatus>();
-		RallyRestApi restApi = new RallyRestApi(new URI(RALLY_SERVER_URL), username, password);
 
 		QueryRequest query = new QueryRequest("Iterations");
 
 		query.setFetch(new Fetch("Name"));
 		query.setQueryFilter(new QueryFilter("UserIterationCapacities.User.Name", "=", userName));
 		
-		QueryResponse resp = restApi.query(query);
+		QueryResponse resp = query(query);
 		
 		for(JsonElement r : resp.getResults()) {
 			JsonObject result = r.getAsJsonObject();
 			iterationList.add(new IterationStatus(result.get("Name").getAsString(), new URI(result.get("_ref").getAsString())));
 		}
 		
-		restApi.close();
 		return iterationList;
 		
 	}
@@ -141,189 +206,1685 @@ public class ServerConnection
 	public StoryList retrieveStoriesForIteration(String iterationName)
 			throws IOException,  ConnectorException,
 			TransformerException, URISyntaxException {
-		QueryFilter filter = new QueryFilter("Iteration.Name", "=", iterationName);
-		return this.retrieveStoriesByQuery(filter);
+		return this.retrieveStoriesByQuery(iterationFilter(iterationName));
 	}
 	@Override
 	public StoryList retrieveStoriesForProjectIteration(String project,
 			String iterationName) throws IOException, ClientProtocolException, TransformerException, ConnectorException, URISyntaxException {
-		QueryFilter filter = QueryFilter.and(new QueryFilter("Project.Name", "=", project),
-											 new QueryFilter("Iteration.Name", "=", iterationName));
-		return this.retrieveStoriesByQuery(filter);
+		return this.retrieveStoriesByQuery(projectIterationFilter(project, iterationName));
 	}
 	@Override
 	public StoryList retrieveStories(String[] stories) throws IOException,
 			ClientProtocolException, ConnectorException, TransformerException, URISyntaxException {
-		if(stories.length == 0) {
-			return objFactory.createStoryList();
-		}
-		QueryFilter filter = new QueryFilter("FormattedID", "=", stories[0]);
-		for(int i = 1; i < stories.length; i++) {
-			filter = filter.or(new QueryFilter("FormattedID", "=", stories[0]));
+		StoryList storyList = objFactory.createStoryList();
+		List<String> missing = streamStoriesByIdentifier(stories,
+				new Collector<StoryType>(storyList.getStory()));
+		if (!missing.isEmpty()) {
+			throw new MissingStoriesException(missing, storyList);
 		}
-	
-		return this.retrieveStoriesByQuery(filter);
+		return storyList;
 	}
 	@Override
 	public TaskList retrieveTasks(StoryList stories) throws IOException,
 			ClientProtocolException, ConnectorException, TransformerException, URISyntaxException {
-		RallyRestApi restApi = new RallyRestApi(new URI(RALLY_SERVER_URL), username, password);
-		QueryRequest taskQuery = new QueryRequest("Task");
-	
 		TaskList taskList = objFactory.createTaskList();
-		try {
-			for (StoryType story: stories.getStory()) {
-				String storyID = story.getIdentifier();
-				Link storyLink = findLinkByRel(story, RALLY_OBJECT_URL_REL);
-				if (storyLink != null) {
-					storyLink.setRel(RALLY_PARENT_URL_REL);
+		streamTasks(stories, new Collector<TaskType>(taskList.getTask()));
+		return taskList;
+	}
+
+	@Override
+	public void streamStoriesForIteration(String iterationName,
+			PageHandler<StoryType> handler) throws IOException,
+			ConnectorException, TransformerException, URISyntaxException {
+		streamStoriesByQuery(iterationFilter(iterationName), handler);
+	}
+
+	@Override
+	public void streamStoriesForProjectIteration(String project,
+			String iterationName, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		streamStoriesByQuery(projectIterationFilter(project, iterationName), handler);
+	}
+
+	@Override
+	public void streamStories(String[] stories, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		List<String> missing = streamStoriesByIdentifier(stories, handler);
+		if (!missing.isEmpty()) {
+			throw new MissingStoriesException(missing, null);
+		}
+	}
+
+	@Override
+	public void streamTasks(StoryList stories, PageHandler<TaskType> handler)
+			throws IOException, ConnectorException, TransformerException,
+			URISyntaxException {
+		List<StoryType> storyList = stories.getStory();
+		int batchSize = getTaskBatchSize();
+
+		if (batchSize > 1) {
+			for (int first = 0; first < storyList.size(); ) {
+				List<TaskType> page = new ArrayList<TaskType>();
+				first = retrieveTaskBatch(storyList, first, batchSize, page);
+				if (!handler.handlePage(page)) {
+					return;
 				}
-			
+			}
+		} else {
+			QueryRequest taskQuery = new QueryRequest("Task");
+			taskQuery.setFetch(getTaskFetch());
+			allPages(taskQuery);
+			for (StoryType story: storyList) {
+				String storyID = story.getIdentifier();
+				Link storyLink = getParentLink(story);
+
 				NDC.push("retrieving tasks for "+ storyID);
-				logger.debug(NDC.peek());
-				QueryFilter filter = new QueryFilter("WorkProduct.FormattedID", "=", storyID);
-				taskQuery.setQueryFilter(filter);
-				QueryResponse query = restApi.query(taskQuery);
-				if(query.wasSuccessful()) {
-					for(JsonElement e : query.getResults()) {
-						if(e == null)
-							continue;
-						TaskType task = objFactory.createTaskType();
-						JsonObject jsonTask = e.getAsJsonObject();
-						String taskName = jsonTask.get("Name").getAsString();
-						
-						task.setParentIdentifier(storyID);
-						task.setDescription(fixDescription(getValueOrDefault(jsonTask.get("Description"), "")));
-						if(!jsonTask.get("Owner").isJsonNull()) {
-							task.setOwner(getValueOrDefault(jsonTask.get("Owner").getAsJsonObject().get("_refObjectName"), ""));
+				try {
+					logger.debug(NDC.peek());
+					QueryFilter filter = new QueryFilter("WorkProduct.FormattedID", "=", storyID);
+					taskQuery.setQueryFilter(filter);
+					QueryResultReader.Page<TaskRecord> query = queryItems(taskQuery, taskReader());
+					if(query.wasSuccessful()) {
+						List<TaskType> page = new ArrayList<TaskType>();
+						for(TaskRecord record : query.getResults()) {
+							page.add(createTask(record, story, storyLink));
+						}
+						if (!handler.handlePage(page)) {
+							return;
 						}
-						task.setFullName(taskName);
-						task.setShortName((taskName.length() > 30)? taskName.substring(0, 30) : taskName);
-						task.setIdentifier(jsonTask.get("FormattedID").getAsString());
-						task.setDetailedEstimate(getValueOrDefault(jsonTask.get("Estimate"), new Double(0.0)));
-						task.setTodoRemaining(getValueOrDefault(jsonTask.get("Estimate"), new Double(0.0)));
-						task.setEffortApplied(getValueOrDefault(jsonTask.get("Actuals"), new Double(0.0)));
-						task.setDescription(fixDescription(getValueOrDefault(jsonTask.get("Description"), "")));
-						addLink(story, jsonTask.get("_ref").getAsString(), RALLY_OBJECT_URL_REL);
-						
-						addLink(task, jsonTask.get("_ref").getAsString(), RALLY_OBJECT_URL_REL);
-						addLink(task, storyLink);
-						taskList.getTask().add(task);
+					}
+				} finally {
+					NDC.pop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the stories for an iteration, transferring only what has
+	 * changed since the previous call for the same iteration.
+	 * <p>
+	 * The first call retrieves the whole iteration and remembers it along
+	 * with the latest {@code LastUpdateDate} seen.  Later calls only fetch
+	 * artifacts updated since then, and merge them by {@code FormattedID}
+	 * into the remembered list.  A query that retrieves nothing but the
+	 * identifiers of the current members of the iteration is used to drop
+	 * stories that were removed and to keep the result in the same order
+	 * as {@link #retrieveStoriesForIteration(String)}.
+	 *
+	 * @param iterationName retrieve stories associated with this iteration
+	 * @return A list of user stories associated with the iteration.  The
+	 *         list belongs to the caller.
+	 * @see #clearSyncState()
+	 */
+	public StoryList syncStoriesForIteration(String iterationName)
+			throws IOException, ConnectorException, URISyntaxException {
+		return syncStoriesByQuery(iterationFilter(iterationName));
+	}
+
+	/**
+	 * Retrieve the stories for a project iteration, transferring only what
+	 * has changed since the previous call for the same iteration.
+	 *
+	 * @param project retrieve stories associated with this project
+	 * @param iterationName retrieve stories associated with this iteration
+	 * @return A list of user stories associated with the iteration.
+	 * @see #syncStoriesForIteration(String)
+	 */
+	public StoryList syncStoriesForProjectIteration(String project, String iterationName)
+			throws IOException, ConnectorException, URISyntaxException {
+		return syncStoriesByQuery(projectIterationFilter(project, iterationName));
+	}
+
+	/**
+	 * Retrieve the tasks for a set of stories, transferring only what has
+	 * changed since the previous call for the same stories.
+	 * <p>
+	 * This works like {@link #syncStoriesForIteration(String)} and produces
+	 * the same tasks, in the same order, as {@link #retrieveTasks(StoryList)}.
+	 * The links of {@code stories} are updated in the same way as well.
+	 *
+	 * @param stories retrieve the tasks for this set of stories
+	 * @return A list of all of the tasks associated with the stories.
+	 */
+	public TaskList syncTasks(StoryList stories)
+			throws IOException, ConnectorException, URISyntaxException {
+		List<StoryType> storyList = stories.getStory();
+		StringBuilder key = new StringBuilder("Task:");
+		for (StoryType story: storyList) {
+			key.append(story.getIdentifier()).append(',');
+		}
+		SyncState previous = getSyncState(key.toString());
+
+		Fetch changedFetch = getTaskFetch();
+		changedFetch.add(LAST_UPDATE_FIELD);
+		List<Callable<QueryResultReader.Page<?>>> calls = new ArrayList<Callable<QueryResultReader.Page<?>>>();
+		for (int first = 0; first < storyList.size(); ) {
+			int last = nextTaskBatch(storyList, first, getTaskBatchSize());
+			QueryFilter filter = workProductFilter(storyList.subList(first, last));
+			calls.add(itemQuery(newQuery("Task", changedFetch, changedSince(filter, previous)),
+					taskReader()));
+			if (previous != null) {
+				calls.add(itemQuery(newQuery("Task", new Fetch("FormattedID", "WorkProduct"), filter),
+						taskMembershipReader()));
+			}
+			first = last;
+		}
+		List<QueryResultReader.Page<?>> responses = runAll(calls);
+		int stride = (previous == null) ? 1 : 2;
+
+		// Map the current membership of each story, then make sure that
+		// every task is either changed or remembered before touching the
+		// caller's stories.
+		Map<String,String> idsByRef = getIdentifiersByRef(storyList);
+		Map<String,TaskRecord> changed = new HashMap<String,TaskRecord>();
+		Map<String,List<String>> membership = new HashMap<String,List<String>>();
+		String highWater = (previous == null) ? null : previous.highWater;
+		for (int i = 0; i < responses.size(); i++) {
+			QueryResultReader.Page<?> resp = responses.get(i);
+			if (!resp.wasSuccessful()) {
+				logger.warn("task synchronization failed, retrieving all tasks");
+				removeSyncState(key.toString());
+				return retrieveTasksQuietly(stories);
+			}
+			boolean isChangedQuery = (i % stride == 0);
+			for (TaskRecord record: QueryResultReader.<TaskRecord>resultsOf(resp)) {
+				String taskID = record.task.getIdentifier();
+				if (isChangedQuery) {
+					changed.put(taskID, record);
+					highWater = later(highWater, record.lastUpdate);
+				}
+				if (isChangedQuery == (previous == null)) {
+					String storyID = getWorkProductID(record, idsByRef);
+					if (!membership.containsKey(storyID)) {
+						membership.put(storyID, new ArrayList<String>());
+					}
+					membership.get(storyID).add(taskID);
+				}
+			}
+		}
+		Map<String,TaskType> known = new HashMap<String,TaskType>();
+		if (previous != null) {
+			for (TaskType task: previous.tasks.getTask()) {
+				known.put(task.getIdentifier(), task);
+			}
+			for (List<String> taskIDs: membership.values()) {
+				for (String taskID: taskIDs) {
+					if (!changed.containsKey(taskID) && !known.containsKey(taskID)) {
+						logger.warn("lost track of task " + taskID + ", retrieving all tasks");
+						removeSyncState(key.toString());
+						return syncTasks(stories);
 					}
 				}
 			}
-		}  finally {
-			NDC.pop();
-			restApi.close();
 		}
+
+		TaskList taskList = objFactory.createTaskList();
+		for (StoryType story: storyList) {
+			List<String> taskIDs = membership.get(story.getIdentifier());
+			if (taskIDs == null) {
+				continue;
+			}
+			Link storyLink = getParentLink(story);
+			for (String taskID: taskIDs) {
+				TaskRecord record = changed.get(taskID);
+				if (record != null) {
+					taskList.getTask().add(createTask(record, story, storyLink));
+				} else {
+					TaskType task = ModelUtilities.copy(known.get(taskID));
+					Link taskLink = findLinkByRel(task, RALLY_OBJECT_URL_REL);
+					if (taskLink != null) {
+						addLink(story, taskLink.getValue(), RALLY_OBJECT_URL_REL);
+					}
+					taskList.getTask().add(task);
+				}
+			}
+		}
+		logger.debug(String.format("synchronized %d tasks, %d changed",
+				taskList.getTask().size(), changed.size()));
+
+		putSyncState(key.toString(), new SyncState(highWater, null, ModelUtilities.copy(taskList)));
 		return taskList;
 	}
+
+	/**
+	 * Forget everything remembered by the {@code sync} methods so that
+	 * the next call retrieves everything again.
+	 */
+	public synchronized void clearSyncState() {
+		syncStates = null;
+	}
+
+	/**
+	 * Retrieve the tasks for a run of stories with a single query.
+	 * <p>
+	 * Stories are added to an OR'ed filter starting at {@code first}
+	 * until either {@code batchSize} stories are included or the filter
+	 * would exceed {@link #MAX_FILTER_LENGTH}.  The results are split
+	 * back out by work product and appended to {@code tasks} in story
+	 * order so that the output matches the story-at-a-time path.
+	 *
+	 * @return the index of the first story that was not included
+	 */
+	private int retrieveTaskBatch(List<StoryType> storyList, int first, int batchSize,
+			List<TaskType> tasks) throws IOException, URISyntaxException {
+		int last = nextTaskBatch(storyList, first, batchSize);
+		QueryFilter filter = workProductFilter(storyList.subList(first, last));
+
+		List<StoryType> batch = storyList.subList(first, last);
+		Map<String,List<TaskRecord>> tasksByStory = new HashMap<String,List<TaskRecord>>();
+		Map<String,String> idsByRef = getIdentifiersByRef(batch);
+		for (StoryType story: batch) {
+			tasksByStory.put(story.getIdentifier(), new ArrayList<TaskRecord>());
+		}
+
+		NDC.push(String.format("retrieving tasks for %d stories starting at %s",
+				batch.size(), storyList.get(first).getIdentifier()));
+		try {
+			logger.debug(NDC.peek());
+			QueryRequest taskQuery = new QueryRequest("Task");
+			taskQuery.setFetch(getTaskFetch());
+			taskQuery.setQueryFilter(filter);
+			allPages(taskQuery);
+			QueryResultReader.Page<TaskRecord> query = queryItems(taskQuery, taskReader());
+			if (query.wasSuccessful()) {
+				for (TaskRecord record : query.getResults()) {
+					String storyID = getWorkProductID(record, idsByRef);
+					List<TaskRecord> storyTasks = tasksByStory.get(storyID);
+					if (storyTasks != null) {
+						storyTasks.add(record);
+					} else {
+						logger.warn("ignoring task with unexpected work product "
+								+ record.ref);
+					}
+				}
+			}
+		} finally {
+			NDC.pop();
+		}
+
+		for (StoryType story: batch) {
+			Link storyLink = getParentLink(story);
+			for (TaskRecord record: tasksByStory.get(story.getIdentifier())) {
+				tasks.add(createTask(record, story, storyLink));
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Find the end of the task batch starting at {@code first}.
+	 *
+	 * @return the index of the first story that does not fit in the batch
+	 */
+	private int nextTaskBatch(List<StoryType> storyList, int first, int batchSize) {
+		QueryFilter filter = null;
+		int last = first;
+		while (last < storyList.size() && last - first < Math.max(1, batchSize)) {
+			QueryFilter term = new QueryFilter("WorkProduct.FormattedID", "=",
+					storyList.get(last).getIdentifier());
+			QueryFilter candidate = (filter == null) ? term : filter.or(term);
+			if (filter != null && candidate.toString().length() > MAX_FILTER_LENGTH) {
+				break;
+			}
+			filter = candidate;
+			last++;
+		}
+		return last;
+	}
+
+	private static QueryFilter workProductFilter(List<StoryType> stories) {
+		QueryFilter filter = null;
+		for (StoryType story: stories) {
+			QueryFilter term = new QueryFilter("WorkProduct.FormattedID", "=", story.getIdentifier());
+			filter = (filter == null) ? term : filter.or(term);
+		}
+		return filter;
+	}
+
+	private Map<String,String> getIdentifiersByRef(List<StoryType> stories) {
+		Map<String,String> idsByRef = new HashMap<String,String>();
+		for (StoryType story: stories) {
+			Link objectLink = findLinkByRel(story, RALLY_OBJECT_URL_REL);
+			if (objectLink != null) {
+				idsByRef.put(objectLink.getValue(), story.getIdentifier());
+			}
+		}
+		return idsByRef;
+	}
+
+	/**
+	 * Determine which story a task belongs to.
+	 * <p>
+	 * Rally does not always include the formatted ID of the work product
+	 * in the nested object so fall back to matching its reference against
+	 * the stories in the batch.
+	 */
+	private String getWorkProductID(TaskRecord record, Map<String,String> idsByRef) {
+		if (record.workProductID != null) {
+			return record.workProductID;
+		}
+		if (record.workProductRef != null) {
+			return idsByRef.get(record.workProductRef);
+		}
+		return null;
+	}
+
+	private Link getParentLink(StoryType story) {
+		Link storyLink = findLinkByRel(story, RALLY_OBJECT_URL_REL);
+		if (storyLink != null) {
+			storyLink.setRel(RALLY_PARENT_URL_REL);
+		}
+		return storyLink;
+	}
+
+	/**
+	 * Attach a decoded task to its story.
+	 */
+	private TaskType createTask(TaskRecord record, StoryType story, Link storyLink) {
+		TaskType task = record.task;
+		task.setParentIdentifier(story.getIdentifier());
+		addLink(story, record.ref, RALLY_OBJECT_URL_REL);
+
+		addLink(task, record.ref, RALLY_OBJECT_URL_REL);
+		addLink(task, storyLink);
+		return task;
+	}
 	
 	
 	private StoryList retrieveStoriesByQuery(QueryFilter filter)
 			throws IOException,  ConnectorException,
 			TransformerException, URISyntaxException {
-		RallyRestApi restApi = new RallyRestApi(new URI(RALLY_SERVER_URL), username, password);
+		StoryList stories = objFactory.createStoryList();
+
+		if (singleArtifactQuery) {
+			QueryRequest artifactQuery = newArtifactQuery(getStoryFetch(), filter);
+			QueryResultReader.Page<ArtifactRecord> resp = queryItems(artifactQuery, artifactReader());
+			if (resp.wasSuccessful()) {
+				stories.getStory().addAll(storiesThenDefects(resp.getResults()));
+			}
+			return stories;
+		}
 
 		QueryRequest storyQuery = new QueryRequest("HierarchicalRequirement");
 		QueryRequest defectQuery = new QueryRequest("Defect");
 
-		StoryList stories = objFactory.createStoryList();
+		defectQuery.setFetch(getStoryFetch());
+		defectQuery.setQueryFilter(filter);
+		allPages(defectQuery);
+		storyQuery.setFetch(getStoryFetch());
+		storyQuery.setQueryFilter(filter);
+		allPages(storyQuery);
 		
+		// The two queries are independent so they run side by side, each
+		// decoding its own response.  The results are combined here,
+		// stories first, exactly as they were when they ran in sequence.
+		List<QueryResultReader.Page<StoryType>> responses =
+			runItemQueries(storyReader(), storyQuery, defectQuery);
+		for (QueryResultReader.Page<StoryType> resp: responses) {
+			if (resp.wasSuccessful()) {
+				stories.getStory().addAll(resp.getResults());
+			}
+		}
+		return stories;
+	}
+
+	/**
+	 * Ask for every page of a query rather than just the first.
+	 */
+	private void allPages(QueryRequest request) {
+		request.setPageSize(getPageSize());
+		request.setLimit(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Build a query for stories and defects together.
+	 */
+	private QueryRequest newArtifactQuery(Fetch fetch, QueryFilter filter) {
+		QueryRequest request = newQuery("Artifact", fetch, filter);
+		request.addParam("types", ARTIFACT_TYPES);
+		return request;
+	}
+
+	/**
+	 * Put the results of an artifact query in the order that separate
+	 * story and defect queries return them: stories first, each type in
+	 * the order that Rally returned it.
+	 */
+	private static List<StoryType> storiesThenDefects(List<ArtifactRecord> artifacts) {
+		List<StoryType> stories = new ArrayList<StoryType>(artifacts.size());
+		List<StoryType> defects = new ArrayList<StoryType>();
+		for (ArtifactRecord artifact: artifacts) {
+			if (STORY_TYPE.equalsIgnoreCase(artifact.type)) {
+				stories.add(artifact.story);
+			} else if (DEFECT_TYPE.equalsIgnoreCase(artifact.type)) {
+				defects.add(artifact.story);
+			} else {
+				logger.warn(String.format("ignoring %s %s", artifact.type,
+						artifact.story.getIdentifier()));
+			}
+		}
+		stories.addAll(defects);
+		return stories;
+	}
+
+	private StoryList syncStoriesByQuery(QueryFilter filter)
+			throws IOException, ConnectorException, URISyntaxException {
+		String key = "Story:" + filter;
+		SyncState previous = getSyncState(key);
+
+		Fetch changedFetch = getStoryFetch();
+		changedFetch.add(LAST_UPDATE_FIELD);
+		QueryFilter changedFilter = changedSince(filter, previous);
+		List<Callable<QueryResultReader.Page<?>>> calls = new ArrayList<Callable<QueryResultReader.Page<?>>>();
+		for (String type: new String[] {"HierarchicalRequirement", "Defect"}) {
+			calls.add(itemQuery(newQuery(type, changedFetch, changedFilter), artifactReader()));
+			if (previous != null) {
+				calls.add(itemQuery(newQuery(type, new Fetch("FormattedID"), filter),
+						identifierReader()));
+			}
+		}
+		List<QueryResultReader.Page<?>> responses = runAll(calls);
+		for (QueryResultReader.Page<?> resp: responses) {
+			if (!resp.wasSuccessful()) {
+				logger.warn("story synchronization failed, retrieving all stories");
+				removeSyncState(key);
+				return ModelUtilities.copy(retrieveStoriesQuietly(filter));
+			}
+		}
+
+		int stride = (previous == null) ? 1 : 2;
+		List<StoryType> merged = new ArrayList<StoryType>();
+		int changedCount = 0;
+		String highWater = (previous == null) ? null : previous.highWater;
+		for (int i = 0; i < responses.size(); i += stride) {
+			for (ArtifactRecord artifact: QueryResultReader.<ArtifactRecord>resultsOf(responses.get(i))) {
+				highWater = later(highWater, artifact.lastUpdate);
+			}
+		}
+		if (previous == null) {
+			for (QueryResultReader.Page<?> resp: responses) {
+				for (ArtifactRecord artifact: QueryResultReader.<ArtifactRecord>resultsOf(resp)) {
+					merged.add(artifact.story);
+				}
+			}
+			changedCount = merged.size();
+		} else {
+			Map<String,StoryType> known = new HashMap<String,StoryType>();
+			for (StoryType story: previous.stories.getStory()) {
+				known.put(story.getIdentifier(), story);
+			}
+			for (int i = 0; i < responses.size(); i += stride) {
+				for (ArtifactRecord artifact: QueryResultReader.<ArtifactRecord>resultsOf(responses.get(i))) {
+					known.put(artifact.story.getIdentifier(), artifact.story);
+					changedCount++;
+				}
+			}
+			for (int i = 1; i < responses.size(); i += stride) {
+				for (String storyID: QueryResultReader.<String>resultsOf(responses.get(i))) {
+					StoryType story = known.get(storyID);
+					if (story == null) {
+						logger.warn("lost track of story " + storyID + ", retrieving all stories");
+						removeSyncState(key);
+						return syncStoriesByQuery(filter);
+					}
+					merged.add(story);
+				}
+			}
+		}
+		logger.debug(String.format("synchronized %d stories, %d changed",
+				merged.size(), changedCount));
+
+		StoryList stories = objFactory.createStoryList();
+		stories.getStory().addAll(merged);
+		putSyncState(key, new SyncState(highWater, stories, null));
+		return ModelUtilities.copy(stories);
+	}
+
+	/**
+	 * Build a query that retrieves every page of its results.
+	 */
+	private QueryRequest newQuery(String type, Fetch fetch, QueryFilter filter) {
+		QueryRequest request = new QueryRequest(type);
+		request.setFetch(fetch);
+		request.setQueryFilter(filter);
+		allPages(request);
+		return request;
+	}
+
+	private static QueryFilter changedSince(QueryFilter filter, SyncState previous) {
+		if (previous == null || previous.highWater == null) {
+			return filter;
+		}
+		// >= since several artifacts can share a timestamp; merging is idempotent
+		return filter.and(new QueryFilter(LAST_UPDATE_FIELD, ">=", previous.highWater));
+	}
+
+	/**
+	 * Advance the latest update time seen by a change query.  Rally
+	 * formats these as ISO-8601 UTC timestamps so they compare as strings.
+	 */
+	private static String later(String highWater, String updated) {
+		if (updated != null && (highWater == null || updated.compareTo(highWater) > 0)) {
+			return updated;
+		}
+		return highWater;
+	}
+
+	private StoryList retrieveStoriesQuietly(QueryFilter filter)
+			throws IOException, ConnectorException, URISyntaxException {
+		try {
+			return retrieveStoriesByQuery(filter);
+		} catch (TransformerException e) {
+			throw new ConnectorException("failed to retrieve stories", e);
+		}
+	}
+
+	private TaskList retrieveTasksQuietly(StoryList stories)
+			throws IOException, ConnectorException, URISyntaxException {
 		try {
+			return retrieveTasks(stories);
+		} catch (TransformerException e) {
+			throw new ConnectorException("failed to retrieve tasks", e);
+		}
+	}
+
+	private synchronized SyncState getSyncState(String key) {
+		return (syncStates == null) ? null : syncStates.get(key);
+	}
+
+	private synchronized void putSyncState(String key, SyncState state) {
+		if (syncStates == null) {
+			syncStates = new HashMap<String,SyncState>();
+		}
+		syncStates.put(key, state);
+	}
+
+	private synchronized void removeSyncState(String key) {
+		if (syncStates != null) {
+			syncStates.remove(key);
+		}
+	}
+
+	private void streamStoriesByQuery(QueryFilter filter, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException {
+		QueryRequest storyQuery = new QueryRequest("HierarchicalRequirement");
+		storyQuery.setFetch(getStoryFetch());
+		storyQuery.setQueryFilter(filter);
+		if (streamStoryPages(storyQuery, handler)) {
+			QueryRequest defectQuery = new QueryRequest("Defect");
+			defectQuery.setFetch(getStoryFetch());
 			defectQuery.setQueryFilter(filter);
-			storyQuery.setQueryFilter(filter);
-			
-			QueryResponse storyResp = restApi.query(storyQuery);
-			QueryResponse defectResp = restApi.query(defectQuery);
-			
-			if(storyResp.wasSuccessful()) {
-				List<StoryType> storyList = getStoryList(storyResp.getResults());
-				stories.getStory().addAll(storyList);
-			}
-			
-			if(defectResp.wasSuccessful()) {
-				List<StoryType> defectList = getStoryList(defectResp.getResults());
-				stories.getStory().addAll(defectList);
+			streamStoryPages(defectQuery, handler);
+		}
+	}
+
+	/**
+	 * Retrieve a query one page at a time, passing each page to
+	 * {@code handler} as soon as it is mapped.
+	 *
+	 * @return {@code false} if the handler stopped the query
+	 */
+	private boolean streamStoryPages(QueryRequest request, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException {
+		int pageSize = getPageSize();
+		request.setPageSize(pageSize);
+		request.setLimit(pageSize);
+		int start = 1;
+		QueryResultReader.Page<StoryType> resp;
+		do {
+			request.setStart(start);
+			resp = queryPage(request, storyReader());
+			if (!resp.wasSuccessful()) {
+				break;
 			}
-		} finally {
-			restApi.close();
+			if (!handler.handlePage(resp.getResults())) {
+				return false;
+			}
+			start += pageSize;
+		} while (start <= resp.getTotalResultCount());
+		return true;
+	}
+
+	private QueryFilter iterationFilter(String iterationName)
+			throws IOException, URISyntaxException {
+		return projectIterationFilter(null, iterationName);
+	}
+
+	private QueryFilter projectIterationFilter(String project, String iterationName)
+			throws IOException, URISyntaxException {
+		if (!resolveIterations) {
+			return QueryPlanner.nameFilter(project, iterationName);
 		}
-		return stories;
-	}	
+		return getQueryPlanner().iterationFilter(project, iterationName);
+	}
+
+	/**
+	 * Look stories up by identifier, handing them over a chunk at a time
+	 * in the order that they were asked for.
+	 * <p>
+	 * Repeated identifiers are only looked up once.  The rest are split
+	 * into chunks of at most {@link #getIdentifierChunkSize()} whose
+	 * filters fit in a request URL, and each chunk is retrieved with a
+	 * story and a defect query, or a single artifact query.  Up to
+	 * {@link #getMaxConcurrentQueries()} of these queries run at once.
+	 *
+	 * @return the identifiers that did not match anything, in the order
+	 *         that they were asked for.  If the handler stops early only
+	 *         the chunks that it saw are included.
+	 */
+	private List<String> streamStoriesByIdentifier(String[] stories, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException {
+		List<String> ids = new ArrayList<String>(stories.length);
+		Set<String> seen = new HashSet<String>();
+		for (String id: stories) {
+			id = StringUtils.trimToNull(id);
+			if (id != null && seen.add(identifierKey(id))) {
+				ids.add(id);
+			}
+		}
+
+		List<String> missing = new ArrayList<String>();
+		int queriesPerChunk = singleArtifactQuery ? 1 : 2;
+		int chunksAtOnce = Math.max(1, getMaxConcurrentQueries() / queriesPerChunk);
+		for (int first = 0; first < ids.size(); ) {
+			List<List<String>> chunks = new ArrayList<List<String>>();
+			List<QueryRequest> requests = new ArrayList<QueryRequest>();
+			while (first < ids.size() && chunks.size() < chunksAtOnce) {
+				int last = nextIdentifierChunk(ids, first, getIdentifierChunkSize());
+				List<String> chunk = ids.subList(first, last);
+				QueryFilter filter = anyOf("FormattedID", chunk);
+				chunks.add(chunk);
+				if (singleArtifactQuery) {
+					requests.add(identifierQuery(null, filter, chunk.size()));
+				} else {
+					requests.add(identifierQuery(STORY_TYPE, filter, chunk.size()));
+					requests.add(identifierQuery(DEFECT_TYPE, filter, chunk.size()));
+				}
+				first = last;
+			}
+			List<QueryResultReader.Page<StoryType>> pages = runItemQueries(storyReader(),
+					requests.toArray(new QueryRequest[requests.size()]));
+
+			for (int i = 0; i < chunks.size(); i++) {
+				Map<String,StoryType> found = new HashMap<String,StoryType>();
+				for (QueryResultReader.Page<StoryType> resp:
+						pages.subList(queriesPerChunk * i, queriesPerChunk * (i + 1))) {
+					if (!resp.wasSuccessful()) {
+						throw new UnexpectedResponseException("story lookup failed: "
+								+ resp.getErrors());
+					}
+					for (StoryType story: resp.getResults()) {
+						found.put(identifierKey(story.getIdentifier()), story);
+					}
+				}
+				List<StoryType> page = new ArrayList<StoryType>(chunks.get(i).size());
+				for (String id: chunks.get(i)) {
+					StoryType story = found.get(identifierKey(id));
+					if (story != null) {
+						page.add(story);
+					} else {
+						missing.add(id);
+					}
+				}
+				if (!handler.handlePage(page)) {
+					return missing;
+				}
+			}
+		}
+		if (!missing.isEmpty()) {
+			logger.warn("stories not found: " + missing);
+		}
+		return missing;
+	}
+
+	/**
+	 * @param type the type to look up or {@code null} for both stories
+	 *        and defects
+	 */
+	private QueryRequest identifierQuery(String type, QueryFilter filter, int count) {
+		QueryRequest request = (type == null)
+			? newArtifactQuery(getStoryFetch(), filter)
+			: newQuery(type, getStoryFetch(), filter);
+		// every identifier matches at most once, so one page holds them all
+		request.setPageSize(Math.max(1, count));
+		return request;
+	}
+
+	/**
+	 * Rally does not care about the case of an identifier.
+	 */
+	private static String identifierKey(String id) {
+		return id.toUpperCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Find the end of the identifier chunk starting at {@code first}.
+	 *
+	 * @return the index of the first identifier that does not fit
+	 */
+	private static int nextIdentifierChunk(List<String> ids, int first, int chunkSize) {
+		int length = 0;
+		int last = first;
+		while (last < ids.size() && last - first < Math.max(1, chunkSize)) {
+			// "(FormattedID = x)" and the " OR " that joins it, plus the
+			// parentheses that wrap the whole thing so far
+			length += ids.get(last).length() + 23;
+			if (last > first && length > MAX_FILTER_LENGTH) {
+				break;
+			}
+			last++;
+		}
+		return last;
+	}
+
+	private static QueryFilter anyOf(String field, List<String> values) {
+		QueryFilter filter = null;
+		for (String value: values) {
+			QueryFilter term = new QueryFilter(field, "=", value);
+			filter = (filter == null) ? term : filter.or(term);
+		}
+		return filter;
+	}
+
 	public String getUsername() {
 		return username;
 	}
 	public void setUsername(String username) {
-		this.username = username;
+		List<RallyRestApi> closing;
+		synchronized (this) {
+			if (StringUtils.equals(this.username, username)) {
+				return;
+			}
+			this.username = username;
+			closing = discardSessions();
+		}
+		closeQuietly(closing);
 	}
 	public String getPassword() {
 		return password;
 	}
 	public void setPassword(String password) {
-		this.password = password;
+		List<RallyRestApi> closing;
+		synchronized (this) {
+			if (StringUtils.equals(this.password, password)) {
+				return;
+			}
+			this.password = password;
+			closing = discardSessions();
+		}
+		closeQuietly(closing);
 	}
 
+	/**
+	 * Retrieve the maximum number of stories whose tasks are fetched
+	 * by a single query.
+	 */
+	public int getTaskBatchSize() {
+		return taskBatchSize;
+	}
 
-	private List<StoryType> getStoryList(JsonArray jsonStories) {
-		List<StoryType> storyList = new ArrayList<StoryType>();
+	/**
+	 * Set the maximum number of stories whose tasks are fetched by a
+	 * single query in {@link #retrieveTasks(StoryList)}.
+	 * <p>
+	 * Batches are also cut short when the filter would grow past what
+	 * fits comfortably in a request URL.  A value of one or less falls
+	 * back to a separate query for each story.
+	 *
+	 * @param taskBatchSize stories per task query
+	 */
+	public void setTaskBatchSize(int taskBatchSize) {
+		this.taskBatchSize = taskBatchSize;
+	}
 
-		for(JsonElement e : jsonStories) {
-			if(e == null)
-				continue;
-			JsonObject jsonStory = e.getAsJsonObject();
-			StoryType story = objFactory.createStoryType();
-			String storyName = jsonStory.get("Name").getAsString();
-			if(!jsonStory.get("Owner").isJsonNull()) {
-				story.setOwner(getValueOrDefault(jsonStory.get("Owner").getAsJsonObject().get("_refObjectName"), ""));
-			}
-			story.setFullName(storyName);
-			story.setShortName((storyName.length() > 30)? storyName.substring(0, 30) : storyName);
-			story.setIdentifier(jsonStory.get("FormattedID").getAsString());
-			story.setEstimate(getValueOrDefault(jsonStory.get("PlanEstimate"), new Double(0.0)));
-			story.setDescription(fixDescription(getValueOrDefault(jsonStory.get("Description"), "")));
-			addLink(story, jsonStory.get("_ref").getAsString(), RALLY_OBJECT_URL_REL);
-			storyList.add(story);
-			
-			logger.info(String.format("%s - %s", jsonStory.get("FormattedID").getAsString(), storyName));
+	public int getIdentifierChunkSize() {
+		return identifierChunkSize;
+	}
+
+	/**
+	 * Set the maximum number of identifiers looked up by a single query
+	 * in {@link #retrieveStories(String[])}.
+	 * <p>
+	 * Chunks are also cut short when the filter would grow past what fits
+	 * comfortably in a request URL.
+	 *
+	 * @param identifierChunkSize identifiers per query
+	 */
+	public void setIdentifierChunkSize(int identifierChunkSize) {
+		this.identifierChunkSize = identifierChunkSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Set the number of results requested per page.
+	 * <p>
+	 * The streaming methods hand each page over as it arrives; everything
+	 * else follows the pages until it has the whole result.  Rally caps
+	 * this at 2000 per request.
+	 *
+	 * @param pageSize results per page
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public boolean isIncludeStoryDescriptions() {
+		return includeStoryDescriptions;
+	}
+
+	/**
+	 * Control whether story and defect descriptions are retrieved.
+	 * <p>
+	 * Descriptions are by far the largest part of a Rally response.  When
+	 * they are left out the stories are given empty descriptions.
+	 *
+	 * @param includeStoryDescriptions {@code false} to skip descriptions
+	 */
+	public void setIncludeStoryDescriptions(boolean includeStoryDescriptions) {
+		this.includeStoryDescriptions = includeStoryDescriptions;
+	}
+
+	public boolean isIncludeTaskDescriptions() {
+		return includeTaskDescriptions;
+	}
+
+	/**
+	 * Control whether task descriptions are retrieved.
+	 * <p>
+	 * When they are left out the tasks are given empty descriptions.
+	 *
+	 * @param includeTaskDescriptions {@code false} to skip descriptions
+	 */
+	public void setIncludeTaskDescriptions(boolean includeTaskDescriptions) {
+		this.includeTaskDescriptions = includeTaskDescriptions;
+	}
+
+	public boolean isLazyDescriptions() {
+		return lazyDescriptions;
+	}
+
+	/**
+	 * Control whether descriptions are converted as they are retrieved or
+	 * the first time they are used.
+	 * <p>
+	 * Lazy descriptions hold on to the raw Rally text until their content
+	 * is accessed or marshalled.  This saves the conversion entirely when
+	 * descriptions are retrieved but never shown.
+	 *
+	 * @param lazyDescriptions {@code true} to convert descriptions on demand
+	 * @see LazyDescription
+	 */
+	public void setLazyDescriptions(boolean lazyDescriptions) {
+		this.lazyDescriptions = lazyDescriptions;
+	}
+
+	/**
+	 * Retrieve whether stories and defects are retrieved by one
+	 * {@code Artifact} query.
+	 */
+	public boolean isSingleArtifactQuery() {
+		return singleArtifactQuery;
+	}
+
+	/**
+	 * Control whether stories and defects are retrieved by one
+	 * {@code Artifact} query instead of a query for each type.
+	 * <p>
+	 * This halves the round trips of the list-based retrievals and of
+	 * the lookups by identifier.  The results are sorted back into
+	 * stories followed by defects, so the output is the same either way.
+	 * Streaming an iteration and the {@code sync} methods always query
+	 * each type separately.
+	 *
+	 * @param singleArtifactQuery {@code true} to use a single query
+	 */
+	public void setSingleArtifactQuery(boolean singleArtifactQuery) {
+		this.singleArtifactQuery = singleArtifactQuery;
+	}
+
+	public boolean isResolveIterations() {
+		return resolveIterations;
+	}
+
+	/**
+	 * Control whether iteration names are resolved to references before
+	 * stories are queried.
+	 * <p>
+	 * When this is on, the iterations matching a name are looked up once
+	 * and remembered for {@link #getIterationCacheMillis()}, and story
+	 * queries filter on the iteration itself rather than joining on
+	 * {@code Iteration.Name} and {@code Project.Name}.
+	 *
+	 * @param resolveIterations {@code false} to filter on names
+	 */
+	public void setResolveIterations(boolean resolveIterations) {
+		this.resolveIterations = resolveIterations;
+	}
+
+	public long getIterationCacheMillis() {
+		return getQueryPlanner().getTtlMillis();
+	}
+
+	/**
+	 * Set how long resolved iterations are remembered.
+	 *
+	 * @param millis time to remember an iteration, in milliseconds
+	 */
+	public void setIterationCacheMillis(long millis) {
+		getQueryPlanner().setTtlMillis(millis);
+	}
+
+	/**
+	 * Retrieve the maximum number of Rally queries that this connection
+	 * runs at the same time.
+	 */
+	public int getMaxConcurrentQueries() {
+		return maxConcurrentQueries;
+	}
+
+	/**
+	 * Set the maximum number of Rally queries that this connection runs
+	 * at the same time.
+	 * <p>
+	 * Independent queries - such as the story and defect halves of an
+	 * iteration - are sent in parallel on a fixed pool of this many
+	 * threads.  A value of one or less runs every query on the calling
+	 * thread.  Changing the size shuts the current pool down: queries
+	 * that are already running finish on it and the next parallel query
+	 * starts a pool of the new size.
+	 *
+	 * @param maxConcurrentQueries size of the query thread pool
+	 */
+	public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+		synchronized (this) {
+			if (this.maxConcurrentQueries == maxConcurrentQueries) {
+				return;
+			}
+			this.maxConcurrentQueries = maxConcurrentQueries;
 		}
-		
-		return storyList;
+		shutdownQueryExecutor();
+	}
+
+	public PooledHttpClientFactory getConnectionPool() {
+		return connectionPool;
 	}
 
-	@SuppressWarnings("unchecked")
-	private <T> T getValueOrDefault(JsonElement obj, T value) {
-		if (!obj.isJsonNull()) {
-			if(value instanceof String) {
-				return (T) obj.getAsString();
-			} else if (value instanceof Double) {
-				return (T) new Double(obj.getAsDouble());
+	/**
+	 * Choose how Rally sessions connect to the server.
+	 * <p>
+	 * By default every session owns a single HTTP connection, made by a
+	 * {@link RallyClientFactory}, that is closed along with the session.
+	 * With a pool, sessions send their requests through the pool's clients
+	 * instead, so its request configuration applies and parallel queries
+	 * and sessions opened after the credentials change reuse connections
+	 * that are already established.  The pool is not closed by this
+	 * connection.  Changing the pool discards the open sessions.
+	 *
+	 * @param connectionPool the pool to draw connections from or
+	 *        {@code null} for a connection per session
+	 */
+	public void setConnectionPool(PooledHttpClientFactory connectionPool) {
+		List<RallyRestApi> closing;
+		synchronized (this) {
+			if (this.connectionPool == connectionPool) {
+				return;
 			}
+			this.connectionPool = connectionPool;
+			closing = discardSessions();
 		}
-		return value;
+		closeQuietly(closing);
 	}
-	
-	Description fixDescription(String descString) {
-		descString = ltPattern.matcher(descString).replaceAll("<");		// &lt; -> "<"
-		descString = gtPattern.matcher(descString).replaceAll(">");		// &gt; -> ">"
-		descString = ampPattern.matcher(descString).replaceAll("&");	// necessary to catch &nbsp;
-		descString = nbspPattern.matcher(descString).replaceAll(" ");	// &nbsp; -> " "
-		descString = brPattern.matcher(descString).replaceAll("<br/>");	// <br> -> <br/>
-		descString = quotPattern.matcher(descString).replaceAll("\"");	// &quot; -> "
-		descString = ampPattern2.matcher(descString).replaceAll("&amp;"); // & -> &amp;
-		
-		descString = String.format("<description>%s</description>", descString);
 
+	/**
+	 * Retrieve the number of Rally sessions opened by this connection.
+	 * <p>
+	 * A session is opened lazily when a request finds no idle session -
+	 * after the credentials change, after the connection is closed, or
+	 * when queries run in parallel.
+	 *
+	 * @return the number of sessions opened since construction
+	 */
+	public synchronized int getSessionCount() {
+		return sessionCount;
+	}
+
+	/**
+	 * Release the open Rally sessions and the query threads.
+	 * <p>
+	 * The connection remains usable - the next request will simply
+	 * open a new session.
+	 */
+	@Override
+	public void close() throws IOException {
+		shutdownQueryExecutor();
+		closeSessions();
+	}
+
+	/**
+	 * Open a new session with the current credentials.
+	 * <p>
+	 * This is the only place that Rally clients are created so it is
+	 * a convenient seam for tests.
+	 */
+	protected RallyRestApi openSession() throws URISyntaxException {
+		HttpClientFactory factory = connectionPool;
+		if (factory == null) {
+			factory = SESSION_CLIENT_FACTORY;
+		}
+		return new RallySession(getServerURI(), username, password, factory);
+	}
+
+	/**
+	 * Retrieve the address of the Rally server.
+	 */
+	protected URI getServerURI() throws URISyntaxException {
+		return new URI(RALLY_SERVER_URL);
+	}
+
+	/**
+	 * Open the response to a single page of a query on an idle session.
+	 * The session is released when the reader is closed.
+	 * <p>
+	 * Every query goes through here so it is a convenient seam for tests.
+	 */
+	Reader openQuery(QueryRequest request) throws IOException, URISyntaxException {
+		final RallyRestApi restApi = acquireSession();
+		boolean opened = false;
 		try {
-			Object obj = unmarshaller.unmarshal(new StringReader(descString));
-			if (obj instanceof Description) {
-				return (Description) obj;
+			Reader response;
+			if (restApi instanceof RallySession) {
+				response = ((RallySession) restApi).openQuery(request.toUrl());
+			} else {
+				response = new StringReader(restApi.getClient().doGet(request.toUrl()));
+			}
+			opened = true;
+			return new FilterReader(response) {
+				private boolean closed = false;
+
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						try {
+							super.close();
+						} finally {
+							releaseSession(restApi);
+						}
+					}
+				}
+			};
+		} finally {
+			if (!opened) {
+				releaseSession(restApi);
 			}
-		} catch (JAXBException e) {
-			logger.error("failed to unmarshal description <<"+descString+">>", e);
 		}
-		return objFactory.createDescription();
-		
+	}
+
+	/**
+	 * Retrieve the text of a single page of a query.
+	 */
+	private String queryText(QueryRequest request) throws IOException, URISyntaxException {
+		Reader in = openQuery(request);
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				text.append(buffer, 0, n);
+			}
+			return text.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Run a single query and parse the response into a JSON tree.
+	 * <p>
+	 * Like {@link RallyRestApi#query(QueryRequest)}, further pages are
+	 * retrieved and appended while the request's limit allows.  If any
+	 * page fails, the response of that page is returned instead.
+	 */
+	QueryResponse query(QueryRequest request) throws IOException, URISyntaxException {
+		QueryResponse resp = new QueryResponse(queryText(request));
+		if (resp.wasSuccessful()) {
+			int fetched = request.getPageSize();
+			while (fetched < request.getLimit()
+					&& fetched + request.getStart() - 1 < resp.getTotalResultCount()) {
+				QueryRequest next = request.clone();
+				next.setStart(request.getStart() + fetched);
+				QueryResponse nextResp = new QueryResponse(queryText(next));
+				if (!nextResp.wasSuccessful()) {
+					// part of a result is no result at all
+					return nextResp;
+				}
+				resp.getResults().addAll(nextResp.getResults());
+				fetched += next.getPageSize();
+			}
+		}
+		return resp;
+	}
+
+	/**
+	 * Run a single query and decode the response straight into model
+	 * objects, following pages in the same way as {@link #query(QueryRequest)}.
+	 * <p>
+	 * If any page fails the returned page carries its errors and no
+	 * results.
+	 */
+	<T> QueryResultReader.Page<T> queryItems(QueryRequest request,
+			QueryResultReader.ItemReader<T> itemReader) throws IOException, URISyntaxException {
+		QueryResultReader.Page<T> page = queryPage(request, itemReader);
+		if (page.wasSuccessful()) {
+			int fetched = request.getPageSize();
+			while (fetched < request.getLimit()
+					&& fetched + request.getStart() - 1 < page.getTotalResultCount()) {
+				QueryRequest next = request.clone();
+				next.setStart(request.getStart() + fetched);
+				QueryResultReader.Page<T> nextPage = queryPage(next, itemReader);
+				if (!nextPage.wasSuccessful()) {
+					return new QueryResultReader.Page<T>(new ArrayList<T>(),
+							nextPage.getErrors(), nextPage.getTotalResultCount());
+				}
+				page.getResults().addAll(nextPage.getResults());
+				fetched += next.getPageSize();
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Retrieve and decode a single page of a query as it arrives.
+	 */
+	private <T> QueryResultReader.Page<T> queryPage(QueryRequest request,
+			QueryResultReader.ItemReader<T> itemReader) throws IOException, URISyntaxException {
+		return QueryResultReader.read(openQuery(request), itemReader);
+	}
+
+	/**
+	 * Run a set of independent queries that decode straight into model
+	 * objects, in parallel when allowed.
+	 *
+	 * @return the decoded pages in the same order as the requests
+	 */
+	<T> List<QueryResultReader.Page<T>> runItemQueries(
+			final QueryResultReader.ItemReader<T> itemReader, QueryRequest... requests)
+			throws IOException, URISyntaxException, ConnectorException {
+		List<Callable<QueryResultReader.Page<T>>> calls =
+			new ArrayList<Callable<QueryResultReader.Page<T>>>(requests.length);
+		for (final QueryRequest request: requests) {
+			calls.add(new Callable<QueryResultReader.Page<T>>() {
+				@Override
+				public QueryResultReader.Page<T> call() throws Exception {
+					return queryItems(request, itemReader);
+				}
+			});
+		}
+		return runAll(calls);
+	}
+
+	/**
+	 * Wrap a query that decodes straight into model objects so that
+	 * queries with different kinds of results can share one
+	 * {@link #runAll(List)}.  {@link QueryResultReader#resultsOf} recovers
+	 * the type of the results.
+	 */
+	private <T> Callable<QueryResultReader.Page<?>> itemQuery(final QueryRequest request,
+			final QueryResultReader.ItemReader<T> itemReader) {
+		return new Callable<QueryResultReader.Page<?>>() {
+			@Override
+			public QueryResultReader.Page<?> call() throws Exception {
+				return queryItems(request, itemReader);
+			}
+		};
+	}
+
+	/**
+	 * Run a set of independent calls on the query thread pool when more
+	 * than one query may be in flight, or one after the other otherwise.
+	 *
+	 * @return the results in the same order as the calls
+	 */
+	private <T> List<T> runAll(List<Callable<T>> calls) throws IOException,
+			URISyntaxException, ConnectorException {
+		List<T> results = new ArrayList<T>(calls.size());
+		if (getMaxConcurrentQueries() > 1 && calls.size() > 1) {
+			List<Future<T>> futures = new ArrayList<Future<T>>(calls.size());
+			for (Callable<T> call: calls) {
+				futures.add(getQueryExecutor().submit(call));
+			}
+			try {
+				for (Future<T> future: futures) {
+					results.add(waitFor(future));
+				}
+			} finally {
+				for (Future<T> future: futures) {
+					future.cancel(true);
+				}
+			}
+		} else {
+			for (Callable<T> call: calls) {
+				FutureTask<T> task = new FutureTask<T>(call);
+				task.run();
+				results.add(waitFor(task));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Wait for a submitted query and unwrap whatever it threw.
+	 */
+	static <T> T waitFor(Future<T> future) throws IOException, URISyntaxException,
+			ConnectorException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Utilities.generateException(InterruptedIOException.class, e,
+					"interrupted while waiting for Rally");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof URISyntaxException) {
+				throw (URISyntaxException) cause;
+			} else if (cause instanceof ConnectorException) {
+				throw (ConnectorException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ConnectorException("Rally query failed", cause);
+		}
+	}
+
+	private synchronized QueryPlanner getQueryPlanner() {
+		if (queryPlanner == null) {
+			queryPlanner = new QueryPlanner(this);
+		}
+		return queryPlanner;
+	}
+
+	private synchronized ExecutorService getQueryExecutor() {
+		if (queryExecutor == null) {
+			queryExecutor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentQueries),
+				new ThreadFactory() {
+					private int threadNumber = 0;
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "rally-query-" + (++threadNumber));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return queryExecutor;
+	}
+
+	/**
+	 * Let the query threads finish what they are doing and exit.  The
+	 * next parallel query starts a new pool.
+	 */
+	private void shutdownQueryExecutor() {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = this.queryExecutor;
+			this.queryExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	private synchronized RallyRestApi acquireSession() throws URISyntaxException {
+		if (idleSessions == null) {
+			idleSessions = new LinkedList<RallyRestApi>();
+			liveSessions = new HashSet<RallyRestApi>();
+		}
+		RallyRestApi restApi = idleSessions.poll();
+		if (restApi == null) {
+			restApi = openSession();
+			liveSessions.add(restApi);
+			sessionCount++;
+			logger.debug(String.format("opened Rally session %d for %s", sessionCount, username));
+		}
+		return restApi;
+	}
+
+	private void releaseSession(RallyRestApi restApi) {
+		synchronized (this) {
+			// sessions that were discarded while in use are closed instead
+			if (liveSessions != null && liveSessions.contains(restApi)) {
+				idleSessions.push(restApi);
+				return;
+			}
+		}
+		closeQuietly(restApi);
+	}
+
+	private void closeSessions() {
+		List<RallyRestApi> closing;
+		synchronized (this) {
+			closing = discardSessions();
+		}
+		closeQuietly(closing);
+	}
+
+	/**
+	 * Forget every open session.  The idle sessions are returned so that
+	 * they can be closed outside of the lock; sessions that are in use
+	 * are closed when they are released.
+	 */
+	private List<RallyRestApi> discardSessions() {
+		// other credentials may see other iterations
+		if (queryPlanner != null) {
+			queryPlanner.clear();
+		}
+		if (idleSessions == null) {
+			return Collections.emptyList();
+		}
+		List<RallyRestApi> closing = new ArrayList<RallyRestApi>(idleSessions);
+		idleSessions.clear();
+		liveSessions.clear();
+		return closing;
+	}
+
+	private void closeQuietly(List<RallyRestApi> sessions) {
+		for (RallyRestApi restApi: sessions) {
+			closeQuietly(restApi);
+		}
+	}
+
+	private void closeQuietly(RallyRestApi restApi) {
+		try {
+			restApi.close();
+		} catch (IOException e) {
+			logger.warn("failed to close Rally session", e);
+		}
+	}
+
+
+	private Fetch getStoryFetch() {
+		Fetch fetch = new Fetch(STORY_FIELDS);
+		if (includeStoryDescriptions) {
+			fetch.add(DESCRIPTION_FIELD);
+		}
+		return fetch;
+	}
+
+	private Fetch getTaskFetch() {
+		Fetch fetch = new Fetch(TASK_FIELDS);
+		if (includeTaskDescriptions) {
+			fetch.add(DESCRIPTION_FIELD);
+		}
+		return fetch;
+	}
+
+	/**
+	 * Decode a story or defect from a query response without building the
+	 * JSON object first.
+	 */
+	StoryType readStory(JsonReader reader) throws IOException {
+		return readArtifact(reader).story;
+	}
+
+	/**
+	 * Decode a story or defect along with its type.
+	 */
+	ArtifactRecord readArtifact(JsonReader reader) throws IOException {
+		ArtifactRecord artifact = new ArtifactRecord();
+		StoryType story = artifact.story;
+		String storyName = null;
+		String ref = null;
+		String description = "";
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("Name")) {
+				storyName = reader.nextString();
+			} else if (name.equals("FormattedID")) {
+				story.setIdentifier(reader.nextString());
+			} else if (name.equals("Owner")) {
+				story.setOwner(readOwner(reader));
+			} else if (name.equals("PlanEstimate")) {
+				story.setEstimate(QueryResultReader.nextDouble(reader, 0.0));
+			} else if (name.equals("Description")) {
+				description = QueryResultReader.nextString(reader, "");
+			} else if (name.equals("_ref")) {
+				ref = reader.nextString();
+			} else if (name.equals("_type")) {
+				artifact.type = QueryResultReader.nextString(reader, null);
+			} else if (name.equals(LAST_UPDATE_FIELD)) {
+				artifact.lastUpdate = QueryResultReader.nextString(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (storyName == null || ref == null || story.getIdentifier() == null) {
+			throw new IOException("incomplete story in Rally response");
+		}
+		story.setFullName(storyName);
+		story.setShortName((storyName.length() > 30)? storyName.substring(0, 30) : storyName);
+		story.setDescription(fixDescription(description));
+		addLink(story, ref, RALLY_OBJECT_URL_REL);
+
+		logger.info(String.format("%s - %s", story.getIdentifier(), storyName));
+		return artifact;
+	}
+
+	/**
+	 * Decode a task from a query response.  The task is attached to its
+	 * story by {@link #createTask(TaskRecord, StoryType, Link)} once the
+	 * story is known.
+	 */
+	TaskRecord readTask(JsonReader reader) throws IOException {
+		TaskRecord record = new TaskRecord();
+		TaskType task = record.task;
+		String taskName = null;
+		String description = "";
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("Name")) {
+				taskName = reader.nextString();
+			} else if (name.equals("FormattedID")) {
+				task.setIdentifier(reader.nextString());
+			} else if (name.equals("Owner")) {
+				task.setOwner(readOwner(reader));
+			} else if (name.equals("Estimate")) {
+				double estimate = QueryResultReader.nextDouble(reader, 0.0);
+				task.setDetailedEstimate(estimate);
+				task.setTodoRemaining(estimate);
+			} else if (name.equals("Actuals")) {
+				task.setEffortApplied(QueryResultReader.nextDouble(reader, 0.0));
+			} else if (name.equals("Description")) {
+				description = QueryResultReader.nextString(reader, "");
+			} else if (name.equals("WorkProduct")) {
+				readWorkProduct(reader, record);
+			} else if (name.equals("_ref")) {
+				record.ref = reader.nextString();
+			} else if (name.equals(LAST_UPDATE_FIELD)) {
+				record.lastUpdate = QueryResultReader.nextString(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (taskName == null || record.ref == null || task.getIdentifier() == null) {
+			throw new IOException("incomplete task in Rally response");
+		}
+		task.setFullName(taskName);
+		task.setShortName((taskName.length() > 30)? taskName.substring(0, 30) : taskName);
+		task.setDescription(fixDescription(description));
+		return record;
+	}
+
+	/**
+	 * Decode only the identifier of a task and its story, which is all
+	 * that the membership queries of {@link #syncTasks(StoryList)} fetch.
+	 */
+	TaskRecord readTaskMembership(JsonReader reader) throws IOException {
+		TaskRecord record = new TaskRecord();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("FormattedID")) {
+				record.task.setIdentifier(reader.nextString());
+			} else if (name.equals("WorkProduct")) {
+				readWorkProduct(reader, record);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (record.task.getIdentifier() == null) {
+			throw new IOException("incomplete task in Rally response");
+		}
+		return record;
+	}
+
+	private static void readWorkProduct(JsonReader reader, TaskRecord record) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("FormattedID")) {
+				record.workProductID = QueryResultReader.nextString(reader, null);
+			} else if (name.equals("_ref")) {
+				record.workProductRef = QueryResultReader.nextString(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	/**
+	 * Decode only the formatted ID of an artifact.
+	 */
+	static String readIdentifier(JsonReader reader) throws IOException {
+		String identifier = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("FormattedID")) {
+				identifier = QueryResultReader.nextString(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (identifier == null) {
+			throw new IOException("artifact without an identifier in Rally response");
+		}
+		return identifier;
+	}
+
+	/**
+	 * Read the name of an artifact's owner.  An artifact without an owner
+	 * has none, an owner without a name has an empty one.
+	 */
+	private static String readOwner(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		String owner = "";
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("_refObjectName")) {
+				owner = QueryResultReader.nextString(reader, "");
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return owner;
+	}
+
+	private QueryResultReader.ItemReader<StoryType> storyReader() {
+		return new QueryResultReader.ItemReader<StoryType>() {
+			@Override
+			public StoryType read(JsonReader reader) throws IOException {
+				return readStory(reader);
+			}
+		};
+	}
+
+	private QueryResultReader.ItemReader<ArtifactRecord> artifactReader() {
+		return new QueryResultReader.ItemReader<ArtifactRecord>() {
+			@Override
+			public ArtifactRecord read(JsonReader reader) throws IOException {
+				return readArtifact(reader);
+			}
+		};
+	}
+
+	private QueryResultReader.ItemReader<TaskRecord> taskReader() {
+		return new QueryResultReader.ItemReader<TaskRecord>() {
+			@Override
+			public TaskRecord read(JsonReader reader) throws IOException {
+				return readTask(reader);
+			}
+		};
+	}
+
+	private QueryResultReader.ItemReader<TaskRecord> taskMembershipReader() {
+		return new QueryResultReader.ItemReader<TaskRecord>() {
+			@Override
+			public TaskRecord read(JsonReader reader) throws IOException {
+				return readTaskMembership(reader);
+			}
+		};
+	}
+
+	private static QueryResultReader.ItemReader<String> identifierReader() {
+		return new QueryResultReader.ItemReader<String>() {
+			@Override
+			public String read(JsonReader reader) throws IOException {
+				return readIdentifier(reader);
+			}
+		};
+	}
+
+	/**
+	 * A story or defect decoded from a query response along with its
+	 * Rally type and, for change queries, when it was last updated.
+	 */
+	static class ArtifactRecord {
+		final StoryType story = objFactory.createStoryType();
+		String type;
+		String lastUpdate;
+	}
+
+	/**
+	 * A task decoded from a query response along with the references
+	 * needed to attach it to its story.
+	 */
+	static class TaskRecord {
+		final TaskType task = objFactory.createTaskType();
+		String ref;
+		String workProductID;
+		String workProductRef;
+		String lastUpdate;
+	}
+
+	Description fixDescription(String descString) {
+		if (lazyDescriptions) {
+			return new LazyDescription(descriptionParser, descString);
+		}
+		return descriptionParser.parse(descString);
 	}
 
 	private void addLink(TopLevelObject obj, String linkURI, String linkRel) {
@@ -359,4 +1920,37 @@ public class ServerConnection
 		return null;
 	}
 	
+	/**
+	 * What the {@code sync} methods remember about a query: the merged
+	 * result and the latest update time that it reflects.
+	 */
+	private static class SyncState {
+		final String highWater;
+		final StoryList stories;
+		final TaskList tasks;
+
+		SyncState(String highWater, StoryList stories, TaskList tasks) {
+			this.highWater = highWater;
+			this.stories = stories;
+			this.tasks = tasks;
+		}
+	}
+
+	/**
+	 * Page handler that simply accumulates every page into a list.
+	 */
+	private static class Collector<T> implements PageHandler<T> {
+		private final List<T> items;
+
+		Collector(List<T> items) {
+			this.items = items;
+		}
+
+		@Override
+		public boolean handlePage(List<T> page) {
+			items.addAll(page);
+			return true;
+		}
+	}
+
 }
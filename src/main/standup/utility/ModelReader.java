@@ -0,0 +1,410 @@
+package standup.utility;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.transform.sax.SAXSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+import standup.xml.Description;
+import standup.xml.FormattingElement;
+import standup.xml.InlineElement;
+import standup.xml.Links;
+import standup.xml.Links.Link;
+import standup.xml.OutOfLineElement;
+import standup.xml.SimpleList;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+/**
+ * Reports stories and tasks as SAX events, straight from the model.
+ * <p>
+ * A {@link javax.xml.bind.util.JAXBSource} does the same through the JAXB
+ * marshaller, which looks every property up through the JAXB runtime.
+ * This reader walks the handful of generated classes directly and emits
+ * exactly the events that the marshaller would, so a stylesheet cannot
+ * tell the two apart.
+ * <p>
+ * Besides whole lists, a reader can report a single card, or a list
+ * without its cards.  Together they let a stylesheet transform a list
+ * one card at a time, which is what {@code story-cards.xsl} does when
+ * its cards are streamed.
+ * <p>
+ * Use {@link #createSource(Object)} and
+ * {@link #createListSourceWithoutCards(Object)} to get a source for a
+ * transform.  A reader can be parsed more than once but is not safe for
+ * concurrent use.
+ */
+public class ModelReader implements XMLReader {
+	private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+	private static final String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+	private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+	private static final String CDATA = "CDATA";
+
+	private final Object model;
+	private final boolean withCards;
+	private final AttributesImpl attributes = new AttributesImpl();
+	private ContentHandler contentHandler;
+	private DTDHandler dtdHandler;
+	private EntityResolver entityResolver;
+	private ErrorHandler errorHandler;
+	private LexicalHandler lexicalHandler;
+	private boolean namespacePrefixes = false;
+
+	/**
+	 * @param model a {@link StoryList}, {@link TaskList}, {@link StoryType}
+	 *        or {@link TaskType}
+	 * @param withCards {@code false} to leave the stories or tasks out of
+	 *        a list
+	 */
+	private ModelReader(Object model, boolean withCards) {
+		if (!(model instanceof StoryList || model instanceof TaskList
+				|| model instanceof StoryType || model instanceof TaskType)) {
+			throw new IllegalArgumentException("not a story or task: " + model);
+		}
+		this.model = model;
+		this.withCards = withCards;
+	}
+
+	/**
+	 * Create a source that reports a list or a single card.
+	 *
+	 * @param model a {@link StoryList}, {@link TaskList}, {@link StoryType}
+	 *        or {@link TaskType}
+	 */
+	public static SAXSource createSource(Object model) {
+		return new SAXSource(new ModelReader(model, true), new InputSource());
+	}
+
+	/**
+	 * Create a source that reports a list without its stories or tasks.
+	 *
+	 * @param list a {@link StoryList} or {@link TaskList}
+	 */
+	public static SAXSource createListSourceWithoutCards(Object list) {
+		return new SAXSource(new ModelReader(list, false), new InputSource());
+	}
+
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException {
+		if (NAMESPACES_FEATURE.equals(name)) {
+			return true;
+		} else if (NAMESPACE_PREFIXES_FEATURE.equals(name)) {
+			return namespacePrefixes;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+		if (NAMESPACES_FEATURE.equals(name) && value) {
+			return;
+		} else if (NAMESPACE_PREFIXES_FEATURE.equals(name)) {
+			namespacePrefixes = value;
+			return;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public Object getProperty(String name) throws SAXNotRecognizedException {
+		if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+			return lexicalHandler;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+		if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+			lexicalHandler = (LexicalHandler) value;
+			return;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		dtdHandler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		contentHandler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		errorHandler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	/**
+	 * Report the model.  The input source is ignored.
+	 */
+	@Override
+	public void parse(InputSource input) throws SAXException {
+		parse();
+	}
+
+	/**
+	 * Report the model.  The system identifier is ignored.
+	 */
+	@Override
+	public void parse(String systemId) throws SAXException {
+		parse();
+	}
+
+	private void parse() throws SAXException {
+		if (contentHandler == null) {
+			throw new SAXException("no content handler");
+		}
+		contentHandler.startDocument();
+		if (model instanceof StoryList) {
+			StoryList stories = (StoryList) model;
+			startElement("story-list");
+			writeLinks(stories.getLinks());
+			if (withCards) {
+				for (StoryType story: stories.getStory()) {
+					writeStory(story);
+				}
+			}
+			endElement("story-list");
+		} else if (model instanceof TaskList) {
+			TaskList tasks = (TaskList) model;
+			startElement("task-list");
+			writeLinks(tasks.getLinks());
+			if (withCards) {
+				for (TaskType task: tasks.getTask()) {
+					writeTask(task);
+				}
+			}
+			endElement("task-list");
+		} else if (model instanceof StoryType) {
+			writeStory((StoryType) model);
+		} else {
+			writeTask((TaskType) model);
+		}
+		contentHandler.endDocument();
+	}
+
+	private void writeStory(StoryType story) throws SAXException {
+		startElement("story");
+		writeLinks(story.getLinks());
+		writeElement("short-name", story.getShortName());
+		writeElement("full-name", story.getFullName());
+		writeElement("identifier", story.getIdentifier());
+		writeDescription(story.getDescription());
+		writeElement("owner", story.getOwner());
+		writeElement("estimate", DatatypeConverter.printDouble(story.getEstimate()));
+		writeElement("state", story.getState());
+		endElement("story");
+	}
+
+	private void writeTask(TaskType task) throws SAXException {
+		startElement("task");
+		writeLinks(task.getLinks());
+		writeElement("short-name", task.getShortName());
+		writeElement("full-name", task.getFullName());
+		writeElement("identifier", task.getIdentifier());
+		writeElement("parent-identifier", task.getParentIdentifier());
+		writeDescription(task.getDescription());
+		writeElement("owner", task.getOwner());
+		writeElement("detailed-estimate", DatatypeConverter.printDouble(task.getDetailedEstimate()));
+		writeElement("todo-remaining", DatatypeConverter.printDouble(task.getTodoRemaining()));
+		writeElement("effort-applied", DatatypeConverter.printDouble(task.getEffortApplied()));
+		writeElement("state", task.getState());
+		endElement("task");
+	}
+
+	private void writeLinks(Links links) throws SAXException {
+		if (links == null) {
+			return;
+		}
+		startElement("links");
+		for (Link link: links.getLink()) {
+			attributes.clear();
+			if (link.getOwner() != null) {
+				attributes.addAttribute("", "owner", "owner", CDATA, link.getOwner());
+			}
+			if (link.getRel() != null) {
+				attributes.addAttribute("", "rel", "rel", CDATA, link.getRel());
+			}
+			contentHandler.startElement("", "link", "link", attributes);
+			characters(link.getValue());
+			endElement("link");
+		}
+		endElement("links");
+	}
+
+	private void writeDescription(Description description) throws SAXException {
+		if (description == null) {
+			return;
+		}
+		startElement("description");
+		writeContent(description.getContent());
+		endElement("description");
+	}
+
+	private void writeContent(List<Serializable> content) throws SAXException {
+		for (Object item: content) {
+			if (item instanceof String) {
+				characters((String) item);
+			} else if (item instanceof JAXBElement<?>) {
+				JAXBElement<?> element = (JAXBElement<?>) item;
+				writeElement(element.getName().getLocalPart(), element.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Report an element of a description.
+	 */
+	private void writeElement(String name, Object value) throws SAXException {
+		if (value instanceof FormattingElement) {
+			FormattingElement element = (FormattingElement) value;
+			startElement(name, element.getOtherAttributes());
+			writeContent(element.getContent());
+		} else if (value instanceof InlineElement) {
+			InlineElement element = (InlineElement) value;
+			startElement(name, element.getOtherAttributes());
+			writeContent(element.getContent());
+		} else if (value instanceof OutOfLineElement) {
+			OutOfLineElement element = (OutOfLineElement) value;
+			startElement(name, element.getOtherAttributes());
+			writeContent(element.getContent());
+		} else if (value instanceof SimpleList) {
+			startElement(name);
+			for (SimpleList.Li li: ((SimpleList) value).getLi()) {
+				startElement("li", li.getOtherAttributes());
+				writeContent(li.getContent());
+				endElement("li");
+			}
+		} else if (value instanceof SimpleList.Li.P) {
+			SimpleList.Li.P element = (SimpleList.Li.P) value;
+			startElement(name, element.getOtherAttributes());
+			writeContent(element.getContent());
+		} else if (value instanceof Element) {
+			// line breaks are xs:anyType and parsed into DOM elements
+			Element element = (Element) value;
+			attributes.clear();
+			NamedNodeMap nodeAttributes = element.getAttributes();
+			for (int i = 0; i < nodeAttributes.getLength(); i++) {
+				addAttribute((Attr) nodeAttributes.item(i));
+			}
+			contentHandler.startElement("", name, name, attributes);
+			writeChildren(element);
+		} else {
+			startElement(name);
+		}
+		endElement(name);
+	}
+
+	private void writeChildren(Node parent) throws SAXException {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				String name = child.getLocalName() == null ? child.getNodeName() : child.getLocalName();
+				writeElement(name, child);
+			} else if (child.getNodeType() == Node.TEXT_NODE
+					|| child.getNodeType() == Node.CDATA_SECTION_NODE) {
+				characters(child.getNodeValue());
+			}
+		}
+	}
+
+	/**
+	 * Report an element of a card that holds text, unless it is missing.
+	 */
+	private void writeElement(String name, String text) throws SAXException {
+		if (text != null) {
+			startElement(name);
+			characters(text);
+			endElement(name);
+		}
+	}
+
+	private void startElement(String name) throws SAXException {
+		attributes.clear();
+		contentHandler.startElement("", name, name, attributes);
+	}
+
+	private void startElement(String name, Map<QName,String> otherAttributes) throws SAXException {
+		attributes.clear();
+		for (Map.Entry<QName,String> attribute: otherAttributes.entrySet()) {
+			QName attributeName = attribute.getKey();
+			String prefix = attributeName.getPrefix();
+			String qName = (prefix == null || prefix.isEmpty())
+				? attributeName.getLocalPart()
+				: prefix + ":" + attributeName.getLocalPart();
+			attributes.addAttribute(attributeName.getNamespaceURI(),
+					attributeName.getLocalPart(), qName, CDATA, attribute.getValue());
+		}
+		contentHandler.startElement("", name, name, attributes);
+	}
+
+	private void addAttribute(Attr attribute) {
+		if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+			return;
+		}
+		String uri = (attribute.getNamespaceURI() == null) ? "" : attribute.getNamespaceURI();
+		String localName = (attribute.getLocalName() == null)
+			? attribute.getName() : attribute.getLocalName();
+		attributes.addAttribute(uri, localName, attribute.getName(), CDATA, attribute.getValue());
+	}
+
+	private void endElement(String name) throws SAXException {
+		contentHandler.endElement("", name, name);
+	}
+
+	private void characters(String text) throws SAXException {
+		if (text != null && !text.isEmpty()) {
+			contentHandler.characters(text.toCharArray(), 0, text.length());
+		}
+	}
+
+}
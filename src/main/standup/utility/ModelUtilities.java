@@ -0,0 +1,225 @@
+package standup.utility;
+
+import java.io.Serializable;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import standup.connector.rally.LazyDescription;
+
+import standup.xml.Description;
+import standup.xml.FormattingElement;
+import standup.xml.InlineElement;
+import standup.xml.Links;
+import standup.xml.Links.Link;
+import standup.xml.ObjectFactory;
+import standup.xml.OutOfLineElement;
+import standup.xml.SimpleList;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+/**
+ * Helpers for working with the JAXB-generated domain model.
+ * <p>
+ * The generated classes are plain mutable beans without copy constructors
+ * or any notion of their own size.  These helpers fill in the gaps for
+ * code that needs to hold on to model objects - caches and the like.
+ */
+public class ModelUtilities {
+
+	private static final ObjectFactory objFactory = new ObjectFactory();
+
+	/** Rough cost of an object header plus a few reference fields. */
+	private static final long OBJECT_OVERHEAD = 48;
+
+	/**
+	 * Copy a story list.
+	 * <p>
+	 * The stories and their links are copied so that the copy can be
+	 * modified freely - {@code retrieveTasks} adds links to stories, for
+	 * example.  Descriptions are shared since nothing modifies them once
+	 * they are created.
+	 *
+	 * @param stories the list to copy
+	 * @return a new list containing copies of each story
+	 */
+	static public StoryList copy(StoryList stories) {
+		StoryList result = objFactory.createStoryList();
+		result.setLinks(copy(stories.getLinks()));
+		for (StoryType story: stories.getStory()) {
+			result.getStory().add(copy(story));
+		}
+		return result;
+	}
+
+	/**
+	 * Copy a task list.
+	 *
+	 * @param tasks the list to copy
+	 * @return a new list containing copies of each task
+	 * @see #copy(StoryList)
+	 */
+	static public TaskList copy(TaskList tasks) {
+		TaskList result = objFactory.createTaskList();
+		result.setLinks(copy(tasks.getLinks()));
+		for (TaskType task: tasks.getTask()) {
+			result.getTask().add(copy(task));
+		}
+		return result;
+	}
+
+	static public StoryType copy(StoryType story) {
+		StoryType result = objFactory.createStoryType();
+		result.setLinks(copy(story.getLinks()));
+		result.setShortName(story.getShortName());
+		result.setFullName(story.getFullName());
+		result.setIdentifier(story.getIdentifier());
+		result.setDescription(story.getDescription());
+		result.setOwner(story.getOwner());
+		result.setEstimate(story.getEstimate());
+		result.setState(story.getState());
+		return result;
+	}
+
+	static public TaskType copy(TaskType task) {
+		TaskType result = objFactory.createTaskType();
+		result.setLinks(copy(task.getLinks()));
+		result.setShortName(task.getShortName());
+		result.setFullName(task.getFullName());
+		result.setIdentifier(task.getIdentifier());
+		result.setParentIdentifier(task.getParentIdentifier());
+		result.setDescription(task.getDescription());
+		result.setOwner(task.getOwner());
+		result.setDetailedEstimate(task.getDetailedEstimate());
+		result.setTodoRemaining(task.getTodoRemaining());
+		result.setEffortApplied(task.getEffortApplied());
+		result.setState(task.getState());
+		return result;
+	}
+
+	static public Links copy(Links links) {
+		if (links == null) {
+			return null;
+		}
+		Links result = objFactory.createLinks();
+		for (Link link: links.getLink()) {
+			result.getLink().add(copy(link));
+		}
+		return result;
+	}
+
+	static public Link copy(Link link) {
+		Link result = objFactory.createLinksLink();
+		result.setOwner(link.getOwner());
+		result.setRel(link.getRel());
+		result.setValue(link.getValue());
+		return result;
+	}
+
+	/**
+	 * Estimate the heap used by a story list.
+	 * <p>
+	 * This is not meant to be exact.  It counts strings at two bytes per
+	 * character plus a fixed overhead for each object, which is close
+	 * enough to bound a cache.  A {@link LazyDescription} that has not
+	 * been converted yet is measured by its raw text so that measuring
+	 * does not convert it.
+	 *
+	 * @param stories the list to measure
+	 * @return the approximate size in bytes
+	 */
+	static public long estimateSize(StoryList stories) {
+		long size = OBJECT_OVERHEAD + estimateSize(stories.getLinks());
+		for (StoryType story: stories.getStory()) {
+			size += OBJECT_OVERHEAD + estimateSize(story.getLinks())
+				+ estimateSize(story.getShortName()) + estimateSize(story.getFullName())
+				+ estimateSize(story.getIdentifier()) + estimateSize(story.getOwner())
+				+ estimateSize(story.getState()) + estimateSize(story.getDescription());
+		}
+		return size;
+	}
+
+	/**
+	 * Estimate the heap used by a task list.
+	 *
+	 * @param tasks the list to measure
+	 * @return the approximate size in bytes
+	 * @see #estimateSize(StoryList)
+	 */
+	static public long estimateSize(TaskList tasks) {
+		long size = OBJECT_OVERHEAD + estimateSize(tasks.getLinks());
+		for (TaskType task: tasks.getTask()) {
+			size += OBJECT_OVERHEAD + estimateSize(task.getLinks())
+				+ estimateSize(task.getShortName()) + estimateSize(task.getFullName())
+				+ estimateSize(task.getIdentifier()) + estimateSize(task.getParentIdentifier())
+				+ estimateSize(task.getOwner()) + estimateSize(task.getState())
+				+ estimateSize(task.getDescription());
+		}
+		return size;
+	}
+
+	private static long estimateSize(Links links) {
+		long size = 0;
+		if (links != null) {
+			size += OBJECT_OVERHEAD;
+			for (Link link: links.getLink()) {
+				size += OBJECT_OVERHEAD + estimateSize(link.getOwner())
+					+ estimateSize(link.getRel()) + estimateSize(link.getValue());
+			}
+		}
+		return size;
+	}
+
+	private static long estimateSize(Description description) {
+		if (description == null) {
+			return 0;
+		}
+		if (description instanceof LazyDescription) {
+			// measuring the content would convert it; the raw text is
+			// close enough to the converted size
+			int rawLength = ((LazyDescription) description).getRawLength();
+			if (rawLength >= 0) {
+				return 2 * OBJECT_OVERHEAD + 2L * rawLength;
+			}
+		}
+		return OBJECT_OVERHEAD + estimateSize(description.getContent());
+	}
+
+	private static long estimateSize(List<Serializable> content) {
+		long size = OBJECT_OVERHEAD;
+		for (Object item: content) {
+			size += estimateContentSize(item);
+		}
+		return size;
+	}
+
+	private static long estimateContentSize(Object item) {
+		if (item instanceof String) {
+			return estimateSize((String) item);
+		} else if (item instanceof JAXBElement<?>) {
+			return OBJECT_OVERHEAD + estimateContentSize(((JAXBElement<?>) item).getValue());
+		} else if (item instanceof FormattingElement) {
+			return estimateSize(((FormattingElement) item).getContent());
+		} else if (item instanceof InlineElement) {
+			return estimateSize(((InlineElement) item).getContent());
+		} else if (item instanceof OutOfLineElement) {
+			return estimateSize(((OutOfLineElement) item).getContent());
+		} else if (item instanceof SimpleList) {
+			long size = OBJECT_OVERHEAD;
+			for (SimpleList.Li li: ((SimpleList) item).getLi()) {
+				size += estimateSize(li.getContent());
+			}
+			return size;
+		} else if (item instanceof SimpleList.Li.P) {
+			return estimateSize(((SimpleList.Li.P) item).getContent());
+		}
+		return OBJECT_OVERHEAD;
+	}
+
+	private static long estimateSize(String s) {
+		return (s == null) ? 0 : OBJECT_OVERHEAD + 2L * s.length();
+	}
+
+}
@@ -0,0 +1,352 @@
+package standup.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.apache.log4j.Logger;
+
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+/**
+ * Keeps the most recently retrieved stories and tasks on disk.
+ * <p>
+ * Each snapshot is stored in its own file named after a caller supplied
+ * key - a project and iteration name, for example.  The file holds a small
+ * header followed by the compressed XML form of the story list and,
+ * optionally, the task list.  Reads take the whole file into memory in
+ * one go rather than mapping it: a mapped file cannot be replaced on
+ * Windows for as long as the mapping is reachable.
+ * <p>
+ * Writers build the new snapshot in a temporary file and move it into
+ * place while holding an exclusive lock on a companion {@code .lock} file,
+ * so concurrent writers never interleave and readers always see either
+ * the old snapshot or the new one.  Files written by a different format
+ * version are ignored.
+ */
+public class SnapshotStore {
+
+	/** Bumped whenever the layout of a snapshot file changes. */
+	public static final short FORMAT_VERSION = 1;
+
+	private static final int MAGIC = 0x534e4150; // "SNAP"
+	private static final int HEADER_LENGTH = 4 + 2 + 8 + 4 + 4;
+	private static final String SUFFIX = ".snapshot";
+	private static final Logger logger = Logger.getLogger(SnapshotStore.class);
+
+	private final File directory;
+	private final JAXBContext jaxb;
+
+	/**
+	 * Create a store that keeps its files in the default location,
+	 * {@code .standup/snapshots} in the user's home directory.
+	 */
+	public SnapshotStore() throws JAXBException {
+		this(getDefaultDirectory());
+	}
+
+	/**
+	 * Create a store that keeps its files in {@code directory}.  The
+	 * directory is created when the first snapshot is saved.
+	 */
+	public SnapshotStore(File directory) throws JAXBException {
+		this.directory = directory;
+		this.jaxb = XMLResources.getJAXBContext();
+	}
+
+	public static File getDefaultDirectory() {
+		File home = new File(System.getProperty("user.home"));
+		return new File(new File(home, ".standup"), "snapshots");
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Load a snapshot.
+	 *
+	 * @param key the key that the snapshot was saved under
+	 * @return the snapshot or <code>null</code> if there is no usable
+	 *         snapshot for <code>key</code>
+	 */
+	public Snapshot load(String key) throws IOException, JAXBException {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		ByteBuffer buffer = read(file);
+		if (buffer == null) {
+			return null;
+		}
+		long savedAt = buffer.getLong();
+		int storyLength = buffer.getInt();
+		int taskLength = buffer.getInt();
+		Unmarshaller unmarshaller = jaxb.createUnmarshaller();
+		StoryList stories = (StoryList) unmarshaller.unmarshal(
+				inflate(slice(buffer, HEADER_LENGTH, storyLength)));
+		TaskList tasks = null;
+		if (taskLength >= 0) {
+			tasks = (TaskList) unmarshaller.unmarshal(
+					inflate(slice(buffer, HEADER_LENGTH + storyLength, taskLength)));
+		}
+		logger.debug(String.format("loaded snapshot '%s' from %s", key, file));
+		return new Snapshot(stories, tasks, savedAt);
+	}
+
+	/**
+	 * Save a snapshot, replacing any previous snapshot for the same key.
+	 *
+	 * @param key identifies the snapshot
+	 * @param stories the stories to save
+	 * @param tasks the tasks to save, may be <code>null</code>
+	 * @return <code>true</code> if the saved content differs from the
+	 *         snapshot that it replaced
+	 */
+	public boolean save(String key, StoryList stories, TaskList tasks)
+			throws IOException, JAXBException {
+		byte[] storyBytes = deflate(stories);
+		byte[] taskBytes = (tasks == null) ? null : deflate(tasks);
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("failed to create snapshot directory " + directory);
+		}
+
+		File file = getFile(key);
+		File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				header.putInt(MAGIC);
+				header.putShort(FORMAT_VERSION);
+				header.putLong(System.currentTimeMillis());
+				header.putInt(storyBytes.length);
+				header.putInt((taskBytes == null) ? -1 : taskBytes.length);
+				out.write(header.array());
+				out.write(storyBytes);
+				if (taskBytes != null) {
+					out.write(taskBytes);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			RandomAccessFile lockFile = new RandomAccessFile(
+					new File(directory, file.getName() + ".lock"), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					boolean changed = !hasContent(file, storyBytes, taskBytes);
+					// renameTo will not replace an existing file everywhere
+					if (!tempFile.renameTo(file)) {
+						file.delete();
+						if (!tempFile.renameTo(file)) {
+							throw new IOException("failed to replace snapshot " + file);
+						}
+					}
+					logger.debug(String.format("saved snapshot '%s' to %s%s", key, file,
+							changed ? "" : " (unchanged)"));
+					return changed;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Remove a snapshot.
+	 *
+	 * @return <code>true</code> if there was a snapshot to remove
+	 */
+	public boolean remove(String key) {
+		return getFile(key).delete();
+	}
+
+	File getFile(String key) {
+		try {
+			return new File(directory, URLEncoder.encode(key, "UTF-8") + SUFFIX);
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("UTF-8 is not supported", e);
+		}
+	}
+
+	/**
+	 * Read a snapshot file and check its header.
+	 *
+	 * @return the contents of the file positioned after the version or
+	 *         <code>null</code> if the file is not a usable snapshot
+	 */
+	private ByteBuffer read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < HEADER_LENGTH) {
+				logger.warn("ignoring truncated snapshot " + file);
+				return null;
+			}
+			if (size > Integer.MAX_VALUE) {
+				logger.warn("ignoring oversized snapshot " + file);
+				return null;
+			}
+			byte[] bytes = new byte[(int) size];
+			raf.readFully(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt() != MAGIC) {
+				logger.warn("ignoring " + file + ", which is not a snapshot");
+				return null;
+			}
+			short version = buffer.getShort();
+			if (version != FORMAT_VERSION) {
+				logger.warn(String.format("ignoring snapshot %s with format version %d",
+						file, version));
+				return null;
+			}
+			long payload = (long) buffer.getInt(HEADER_LENGTH - 8)
+					+ Math.max(buffer.getInt(HEADER_LENGTH - 4), 0);
+			if (HEADER_LENGTH + payload != size) {
+				logger.warn("ignoring truncated snapshot " + file);
+				return null;
+			}
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Check whether the snapshot currently in <code>file</code> holds
+	 * exactly this content.
+	 */
+	private boolean hasContent(File file, byte[] storyBytes, byte[] taskBytes)
+			throws IOException {
+		if (!file.isFile()) {
+			return false;
+		}
+		ByteBuffer buffer = read(file);
+		if (buffer == null) {
+			return false;
+		}
+		buffer.getLong();
+		int storyLength = buffer.getInt();
+		int taskLength = buffer.getInt();
+		if (storyLength != storyBytes.length
+				|| taskLength != ((taskBytes == null) ? -1 : taskBytes.length)) {
+			return false;
+		}
+		if (!slice(buffer, HEADER_LENGTH, storyLength).equals(ByteBuffer.wrap(storyBytes))) {
+			return false;
+		}
+		return taskBytes == null
+			|| slice(buffer, HEADER_LENGTH + storyLength, taskLength).equals(ByteBuffer.wrap(taskBytes));
+	}
+
+	private byte[] deflate(Object model) throws IOException, JAXBException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream zip = new GZIPOutputStream(bytes);
+		Marshaller marshaller = jaxb.createMarshaller();
+		marshaller.marshal(model, zip);
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	private static InputStream inflate(ByteBuffer buffer) throws IOException {
+		return new GZIPInputStream(new ByteBufferInputStream(buffer));
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.limit(offset + length);
+		return dup.slice();
+	}
+
+	/**
+	 * A saved set of stories and tasks.
+	 */
+	public static class Snapshot {
+		private final StoryList stories;
+		private final TaskList tasks;
+		private final long savedAt;
+
+		Snapshot(StoryList stories, TaskList tasks, long savedAt) {
+			this.stories = stories;
+			this.tasks = tasks;
+			this.savedAt = savedAt;
+		}
+
+		public StoryList getStories() {
+			return stories;
+		}
+
+		/**
+		 * @return the saved tasks or <code>null</code> if no tasks were saved
+		 */
+		public TaskList getTasks() {
+			return tasks;
+		}
+
+		/**
+		 * @return when the snapshot was saved, in milliseconds since the epoch
+		 */
+		public long getSavedAt() {
+			return savedAt;
+		}
+
+		public long getAge() {
+			return System.currentTimeMillis() - savedAt;
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,269 @@
+package standup.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compiled stylesheets keyed by resource name and transformer factory.
+ * <p>
+ * Compiling a stylesheet is much more expensive than creating a
+ * {@link javax.xml.transform.Transformer} from the compiled
+ * {@link Templates}, so each stylesheet is compiled once per factory and
+ * the result shared.  Concurrent requests for a stylesheet that is being
+ * compiled wait for it.  Stylesheets that fail to compile are not cached.
+ * <p>
+ * With {@link #setReloadOnChange(boolean)} the resource's modification
+ * time is checked on every request and the stylesheet is recompiled when
+ * it changes, which is handy while editing one.  This defaults to the
+ * value of the {@code standup.xslt.reload} system property.
+ * <p>
+ * The cache keeps running totals of the time spent compiling and, when
+ * told about them, transforming; see {@link #getStatistics()}.
+ */
+public class StylesheetCache {
+	private static final Logger logger = Logger.getLogger(StylesheetCache.class);
+
+	// factories are held weakly so that a discarded factory takes its
+	// stylesheets with it
+	private final Map<TransformerFactory,ConcurrentMap<String,Entry>> entries =
+		new WeakHashMap<TransformerFactory,ConcurrentMap<String,Entry>>();
+	private volatile boolean reloadOnChange = Boolean.getBoolean("standup.xslt.reload");
+
+	private final AtomicLong compileCount = new AtomicLong();
+	private final AtomicLong compileNanos = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong transformCount = new AtomicLong();
+	private final AtomicLong transformNanos = new AtomicLong();
+
+	public boolean isReloadOnChange() {
+		return reloadOnChange;
+	}
+
+	/**
+	 * Control whether stylesheets are recompiled when their resource
+	 * changes.
+	 *
+	 * @param reloadOnChange {@code true} to check the resource on every request
+	 */
+	public void setReloadOnChange(boolean reloadOnChange) {
+		this.reloadOnChange = reloadOnChange;
+	}
+
+	/**
+	 * Retrieve a compiled stylesheet, compiling it if necessary.
+	 * <p>
+	 * The stylesheet is located on the class path with
+	 * {@link ClassLoader#getSystemResource(String)}.  The factory is locked
+	 * while it compiles since factories are not thread safe.
+	 *
+	 * @param xsltFilename resource name of the stylesheet
+	 * @param factory the factory to compile the stylesheet with
+	 * @throws TransformerException when the stylesheet cannot be found or
+	 *         compiled
+	 */
+	public Templates getTemplates(String xsltFilename, TransformerFactory factory)
+		throws TransformerException
+	{
+		URL xsltURL = getResource(xsltFilename);
+		if (xsltURL == null) {
+			throw new TransformerException("getSystemResource("+xsltFilename+")");
+		}
+		ConcurrentMap<String,Entry> factoryEntries = getEntries(factory);
+		long lastModified = reloadOnChange ? getLastModified(xsltURL) : 0;
+
+		Entry entry = factoryEntries.get(xsltFilename);
+		if (entry != null && entry.lastModified != lastModified) {
+			logger.info(String.format("%s has changed, recompiling", xsltFilename));
+			factoryEntries.remove(xsltFilename, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			Entry newEntry = new Entry(xsltFilename, xsltURL, factory, lastModified);
+			entry = factoryEntries.putIfAbsent(xsltFilename, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		} else {
+			hitCount.incrementAndGet();
+		}
+
+		try {
+			return entry.get();
+		} catch (TransformerException e) {
+			factoryEntries.remove(xsltFilename, entry);
+			throw e;
+		} catch (RuntimeException e) {
+			factoryEntries.remove(xsltFilename, entry);
+			throw e;
+		}
+	}
+
+	/**
+	 * Add a transform to the statistics.
+	 *
+	 * @param nanos how long the transform took
+	 */
+	public void recordTransform(long nanos) {
+		transformCount.incrementAndGet();
+		transformNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Retrieve the totals so far.
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(compileCount.get(), compileNanos.get(), hitCount.get(),
+				transformCount.get(), transformNanos.get());
+	}
+
+	/**
+	 * Forget every compiled stylesheet.  The statistics are kept.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Locate a stylesheet.  Tests override this to serve stylesheets
+	 * from outside of the class path.
+	 */
+	URL getResource(String xsltFilename) {
+		return ClassLoader.getSystemResource(xsltFilename);
+	}
+
+	private ConcurrentMap<String,Entry> getEntries(TransformerFactory factory) {
+		synchronized (entries) {
+			ConcurrentMap<String,Entry> factoryEntries = entries.get(factory);
+			if (factoryEntries == null) {
+				factoryEntries = new ConcurrentHashMap<String,Entry>();
+				entries.put(factory, factoryEntries);
+			}
+			return factoryEntries;
+		}
+	}
+
+	private static long getLastModified(URL url) {
+		try {
+			if ("file".equals(url.getProtocol())) {
+				return new File(url.toURI()).lastModified();
+			}
+			return url.openConnection().getLastModified();
+		} catch (URISyntaxException e) {
+			return 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * A stylesheet that is compiled by whoever asks for it first.
+	 */
+	private class Entry {
+		final long lastModified;
+		private final FutureTask<Templates> task;
+
+		Entry(final String xsltFilename, final URL xsltURL, final TransformerFactory factory,
+				long lastModified) {
+			this.lastModified = lastModified;
+			this.task = new FutureTask<Templates>(new Callable<Templates>() {
+				@Override
+				public Templates call() throws TransformerException {
+					long start = System.nanoTime();
+					Templates templates;
+					synchronized (factory) {
+						templates = factory.newTemplates(new StreamSource(xsltURL.toExternalForm()));
+					}
+					long elapsed = System.nanoTime() - start;
+					compileCount.incrementAndGet();
+					compileNanos.addAndGet(elapsed);
+					logger.debug(String.format("compiled %s in %d ms", xsltFilename,
+							elapsed / 1000000));
+					return templates;
+				}
+			});
+		}
+
+		Templates get() throws TransformerException {
+			try {
+				return Utilities.runAndGet(task);
+			} catch (TransformerException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new TransformerException(e);
+			}
+		}
+	}
+
+	/**
+	 * Totals of the work done by a cache.
+	 */
+	public static class Statistics {
+		private final long compileCount;
+		private final long compileNanos;
+		private final long hitCount;
+		private final long transformCount;
+		private final long transformNanos;
+
+		Statistics(long compileCount, long compileNanos, long hitCount,
+				long transformCount, long transformNanos) {
+			this.compileCount = compileCount;
+			this.compileNanos = compileNanos;
+			this.hitCount = hitCount;
+			this.transformCount = transformCount;
+			this.transformNanos = transformNanos;
+		}
+
+		/** Number of stylesheets compiled. */
+		public long getCompileCount() {
+			return compileCount;
+		}
+
+		/** Total time spent compiling, in nanoseconds. */
+		public long getCompileNanos() {
+			return compileNanos;
+		}
+
+		/** Number of requests answered without compiling. */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/** Number of transforms recorded. */
+		public long getTransformCount() {
+			return transformCount;
+		}
+
+		/** Total time spent transforming, in nanoseconds. */
+		public long getTransformNanos() {
+			return transformNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d compiles in %d ms, %d cache hits, %d transforms in %d ms",
+					compileCount, compileNanos / 1000000, hitCount,
+					transformCount, transformNanos / 1000000);
+		}
+	}
+
+}
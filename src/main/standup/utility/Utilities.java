@@ -1,16 +1,19 @@
 package standup.utility;
 
-import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.bind.util.JAXBSource;
 import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpHost;
@@ -20,6 +23,16 @@ import org.apache.log4j.NDC;
 
 public class Utilities {
 
+	private static final StylesheetCache stylesheets = new StylesheetCache();
+
+	/**
+	 * Retrieve the cache of compiled stylesheets used by
+	 * {@link #runXSLT(Result, String, Logger, JAXBSource, TransformerFactory)}.
+	 */
+	static public StylesheetCache getStylesheetCache() {
+		return stylesheets;
+	}
+
 	/**
 	 * Generate an exception with a message.
 	 * 
@@ -113,13 +126,17 @@ public class Utilities {
 	 * Run an XSL transform on a JAXB source.
 	 * 
 	 * This handy utility locates an XSL transform in the class path using
-	 * {@link ClassLoader#getSystemResourceAsStream(String)}, creates a
+	 * {@link ClassLoader#getSystemResource(String)}, creates a
 	 * {@link Transformer} object based on it, and runs the input document
 	 * through the transform.  The output is written to {@code resultDoc}
 	 * and returned as well.  A error listener is attached to the transform
 	 * so that errors, warnings, and the like are funnelled to the supplied
 	 * logger instance.
 	 * 
+	 * The transform is compiled once per factory and kept in the
+	 * {@linkplain #getStylesheetCache() stylesheet cache}, so only the first
+	 * call for a stylesheet pays for parsing and compiling it.
+	 * 
 	 * @param resultDoc       buffer to write result to
 	 * @param xsltFilename    resource name of the XSL transform
 	 * @param logger          logger instance to write transform information on
@@ -135,17 +152,116 @@ public class Utilities {
 	{
 		NDC.push("processing "+xsltFilename);
 		try {
-			InputStream xsltFile = ClassLoader.getSystemResourceAsStream(xsltFilename);
-			if (xsltFile == null) {
-				throw new TransformerException("getSystemResourceAsStream("+xsltFilename+")");
-			}
-			Transformer t = xformFactory.newTransformer(new StreamSource(xsltFile));
-			t.setErrorListener(new TransformErrorListener(logger));
-			t.transform(sourceDocument, resultDoc);
-			return resultDoc;
+			Templates stylesheet = stylesheets.getTemplates(xsltFilename, xformFactory);
+			return transform(resultDoc, stylesheet, logger, sourceDocument);
+		} finally {
+			NDC.pop();
+		}
+	}
+
+	/**
+	 * Run a compiled XSL transform on a source document.
+	 * 
+	 * This is the same as
+	 * {@link #runXSLT(Result, String, Logger, JAXBSource, TransformerFactory)}
+	 * except that the stylesheet has already been compiled, typically by
+	 * {@link XMLResources#getStylesheet(String)}.
+	 * 
+	 * @param resultDoc       buffer to write result to
+	 * @param stylesheet      the compiled XSL transform
+	 * @param xsltFilename    resource name of the XSL transform, used for diagnostics
+	 * @param logger          logger instance to write transform information on
+	 * @param sourceDocument  input document for the transform
+	 * @return the result buffer
+	 * @throws TransformerException when the transform fails
+	 */
+	static public <T extends Result> T runXSLT(T resultDoc, Templates stylesheet,
+			String xsltFilename, Logger logger, Source sourceDocument)
+		throws TransformerException
+	{
+		return runXSLT(resultDoc, stylesheet, xsltFilename, logger, sourceDocument, null);
+	}
+
+	/**
+	 * Run a compiled XSL transform with stylesheet parameters.
+	 * 
+	 * @param resultDoc       buffer to write result to
+	 * @param stylesheet      the compiled XSL transform
+	 * @param xsltFilename    resource name of the XSL transform, used for diagnostics
+	 * @param logger          logger instance to write transform information on
+	 * @param sourceDocument  input document for the transform
+	 * @param parameters      values of top-level {@code xsl:param}s by name,
+	 *                        or {@code null} for none
+	 * @return the result buffer
+	 * @throws TransformerException when the transform fails
+	 */
+	static public <T extends Result> T runXSLT(T resultDoc, Templates stylesheet,
+			String xsltFilename, Logger logger, Source sourceDocument,
+			Map<String,?> parameters)
+		throws TransformerException
+	{
+		NDC.push("processing "+xsltFilename);
+		try {
+			return transform(resultDoc, stylesheet, logger, sourceDocument, parameters);
 		} finally {
 			NDC.pop();
 		}
 	}
 
+	/**
+	 * Run a task on the calling thread unless it has already been run,
+	 * then wait for its result.  This lets whoever needs a shared object
+	 * first create it while everybody else waits.  An interrupt does not
+	 * abandon the wait but is restored once the result is in.
+	 *
+	 * @throws Exception whatever the task threw
+	 */
+	static <T> T runAndGet(FutureTask<T> task) throws Exception {
+		task.run();		// does nothing once the task has started
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw (Exception) cause;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	static private <T extends Result> T transform(T resultDoc, Templates stylesheet,
+			Logger logger, Source sourceDocument)
+		throws TransformerException
+	{
+		return transform(resultDoc, stylesheet, logger, sourceDocument, null);
+	}
+
+	static private <T extends Result> T transform(T resultDoc, Templates stylesheet,
+			Logger logger, Source sourceDocument, Map<String,?> parameters)
+		throws TransformerException
+	{
+		long start = System.nanoTime();
+		Transformer t = stylesheet.newTransformer();
+		t.setErrorListener(new TransformErrorListener(logger));
+		if (parameters != null) {
+			for (Map.Entry<String,?> parameter: parameters.entrySet()) {
+				t.setParameter(parameter.getKey(), parameter.getValue());
+			}
+		}
+		t.transform(sourceDocument, resultDoc);
+		stylesheets.recordTransform(System.nanoTime() - start);
+		return resultDoc;
+	}
+
 }
@@ -0,0 +1,277 @@
+package standup.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.fop.apps.FOPException;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.MimeConstants;
+import org.apache.fop.fonts.FontCache;
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Process-wide home of the expensive XML machinery.
+ * <p>
+ * Creating a {@link JAXBContext}, a {@link TransformerFactory}, a
+ * {@link FopFactory} or compiling a stylesheet costs far more than using
+ * one, and all of them are safe to share once built.  This class builds
+ * each of them the first time it is asked for and hands out the same
+ * instance from then on.  Callers that ask while another thread is
+ * building an object wait for that thread instead of building their own.
+ * <p>
+ * {@link #warmUp(String...)} builds everything on a background thread so
+ * that the cost overlaps with other start-up work such as talking to the
+ * server.  It also renders a tiny document, which loads the rest of FOP
+ * and the font metrics so that the first real document does not pay for
+ * them.
+ * <p>
+ * The FOP factory reads the configuration file named by the
+ * {@code standup.fop.config} system property, if any, which is where
+ * fonts are set up.  FOP remembers the fonts that it has found in its
+ * font cache on disk, {@code ~/.fop/fop-fonts.cache}, so they are not
+ * searched for again in the next process.
+ */
+public final class XMLResources {
+
+	/** Package that holds the JAXB model. */
+	public static final String MODEL_PACKAGE = "standup.xml";
+
+	/** System property naming a FOP configuration file. */
+	public static final String FOP_CONFIG_PROPERTY = "standup.fop.config";
+
+	/** System property that turns off the rendering part of the warm-up. */
+	public static final String FOP_WARM_UP_PROPERTY = "standup.fop.warmup";
+
+	private static final Logger logger = Logger.getLogger(XMLResources.class);
+
+	/**
+	 * A page with a little text in each of the faces that the cards use.
+	 */
+	private static final String WARM_UP_DOCUMENT =
+		"<fo:root xmlns:fo='http://www.w3.org/1999/XSL/Format'>"
+		+ "<fo:layout-master-set><fo:simple-page-master master-name='page'"
+		+ " page-width='5in' page-height='3in'><fo:region-body/></fo:simple-page-master>"
+		+ "</fo:layout-master-set><fo:page-sequence master-reference='page'>"
+		+ "<fo:flow flow-name='xsl-region-body'><fo:table><fo:table-body><fo:table-row>"
+		+ "<fo:table-cell><fo:block font-size='24pt' font-weight='bold'>US1</fo:block>"
+		+ "</fo:table-cell></fo:table-row></fo:table-body></fo:table>"
+		+ "<fo:block font-size='10pt'>plain <fo:inline font-style='italic'>italic</fo:inline>"
+		+ " <fo:inline font-family='monospace'>mono</fo:inline></fo:block>"
+		+ "</fo:flow></fo:page-sequence></fo:root>";
+
+	private static final FutureTask<JAXBContext> jaxb = new FutureTask<JAXBContext>(
+		new Timed<JAXBContext>("JAXB context") {
+			@Override
+			JAXBContext create() throws JAXBException {
+				return JAXBContext.newInstance(MODEL_PACKAGE);
+			}
+		});
+
+	private static final FutureTask<TransformerFactory> transformerFactory = new FutureTask<TransformerFactory>(
+		new Timed<TransformerFactory>("transformer factory") {
+			@Override
+			TransformerFactory create() {
+				return TransformerFactory.newInstance();
+			}
+		});
+
+	private static final FutureTask<FopFactory> fopFactory = new FutureTask<FopFactory>(
+		new Timed<FopFactory>("FOP factory") {
+			@Override
+			FopFactory create() throws IOException, SAXException {
+				FopFactory factory = FopFactory.newInstance();
+				String config = System.getProperty(FOP_CONFIG_PROPERTY);
+				if (config != null) {
+					factory.setUserConfig(new File(config));
+				}
+				return factory;
+			}
+		});
+
+	private static final FutureTask<Void> fopWarmUp = new FutureTask<Void>(
+		new Timed<Void>("first document") {
+			@Override
+			Void create() throws Exception {
+				renderWarmUpDocument();
+				return null;
+			}
+		});
+
+	private XMLResources() {
+	}
+
+	/**
+	 * Retrieve the JAXB context for the {@code standup.xml} model.
+	 */
+	public static JAXBContext getJAXBContext() throws JAXBException {
+		try {
+			return Utilities.runAndGet(jaxb);
+		} catch (JAXBException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JAXBException("failed to create JAXB context", e);
+		}
+	}
+
+	/**
+	 * Retrieve the shared transformer factory.
+	 * <p>
+	 * A {@link TransformerFactory} is not safe for concurrent use.  Hold
+	 * its lock while using it or, better, use {@link #getStylesheet(String)}.
+	 */
+	public static TransformerFactory getTransformerFactory() {
+		try {
+			return Utilities.runAndGet(transformerFactory);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("failed to create transformer factory", e);
+		}
+	}
+
+	/**
+	 * Retrieve the shared FOP factory.
+	 */
+	public static FopFactory getFopFactory() {
+		try {
+			return Utilities.runAndGet(fopFactory);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("failed to create FOP factory", e);
+		}
+	}
+
+	/**
+	 * Retrieve a stylesheet compiled by the shared transformer factory.
+	 * <p>
+	 * Stylesheets are compiled once and kept in the
+	 * {@linkplain Utilities#getStylesheetCache() stylesheet cache}.  The
+	 * returned {@link Templates} are thread safe and create a
+	 * {@link javax.xml.transform.Transformer} cheaply.
+	 *
+	 * @param xsltFilename resource name of the stylesheet
+	 * @throws TransformerException when the stylesheet cannot be found or
+	 *         compiled
+	 */
+	public static Templates getStylesheet(String xsltFilename) throws TransformerException {
+		return Utilities.getStylesheetCache().getTemplates(xsltFilename, getTransformerFactory());
+	}
+
+	/**
+	 * Render a throw-away document with the shared FOP factory, once.
+	 * <p>
+	 * Later calls return straight away, or wait for the first one to
+	 * finish.
+	 *
+	 * @throws FOPException when the document cannot be rendered
+	 */
+	public static void warmUpFop() throws FOPException {
+		try {
+			Utilities.runAndGet(fopWarmUp);
+		} catch (FOPException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new FOPException(e);
+		}
+	}
+
+	/**
+	 * Build the shared objects on a background thread.
+	 * <p>
+	 * This returns immediately.  Failures are logged and otherwise ignored
+	 * - they are reported again to whoever asks for the object.  Setting
+	 * the {@code standup.fop.warmup} system property to {@code false}
+	 * skips rendering the throw-away document.
+	 *
+	 * @param xsltFilenames stylesheets to compile as well
+	 */
+	public static void warmUp(final String... xsltFilenames) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					getJAXBContext();
+					getFopFactory();
+					for (String xsltFilename: xsltFilenames) {
+						getStylesheet(xsltFilename);
+					}
+					if (!"false".equalsIgnoreCase(System.getProperty(FOP_WARM_UP_PROPERTY))) {
+						warmUpFop();
+					}
+					logger.debug(String.format("XML warm-up finished in %d ms",
+							(System.nanoTime() - start) / 1000000));
+				} catch (Exception e) {
+					logger.debug("XML warm-up failed", e);
+				}
+			}
+		}, "xml-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void renderWarmUpDocument() throws FOPException, TransformerException {
+		Fop fop = getFopFactory().newFop(MimeConstants.MIME_PDF, new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		TransformerFactory factory = getTransformerFactory();
+		Transformer identity;
+		synchronized (factory) {
+			identity = factory.newTransformer();
+		}
+		identity.transform(new StreamSource(new StringReader(WARM_UP_DOCUMENT)),
+				new SAXResult(fop.getDefaultHandler()));
+
+		// FOP saves the cache itself once configured fonts are set up;
+		// this covers fonts that it found while rendering
+		FontCache fontCache = getFopFactory().getFontManager().getFontCache();
+		if (fontCache != null && fontCache.hasChanged()) {
+			fontCache.save();
+		}
+	}
+
+	/**
+	 * Creates an object and logs how long that took.
+	 */
+	private abstract static class Timed<T> implements Callable<T> {
+		private final String what;
+
+		Timed(String what) {
+			this.what = what;
+		}
+
+		abstract T create() throws Exception;
+
+		@Override
+		public T call() throws Exception {
+			long start = System.nanoTime();
+			T result = create();
+			logger.debug(String.format("created %s in %d ms", what,
+					(System.nanoTime() - start) / 1000000));
+			return result;
+		}
+	}
+
+}
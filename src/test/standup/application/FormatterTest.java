@@ -0,0 +1,178 @@
+package standup.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.List;
+
+import org.apache.fop.apps.MimeConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.xml.Description;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+
+/**
+ * Checks that a list rendered in parts comes out page for page the same
+ * as when it is rendered in one go.
+ */
+public class FormatterTest
+{
+	private Formatter formatter;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		formatter = new Formatter();
+		formatter.setPagesPerPart(2);
+	}
+
+	private static Description description(int i)
+	{
+		Description description = new Description();
+		description.getContent().add("Description of card " + i);
+		return description;
+	}
+
+	private static StoryList stories(int count)
+	{
+		StoryList stories = new StoryList();
+		for (int i = 1; i <= count; i++) {
+			StoryType story = new StoryType();
+			story.setIdentifier("US" + i);
+			story.setShortName("Story " + i);
+			story.setFullName("Story " + i + " in full");
+			story.setDescription(description(i));
+			story.setOwner("Owner " + (i % 3));
+			story.setEstimate(i % 5);
+			stories.getStory().add(story);
+		}
+		return stories;
+	}
+
+	private static TaskList tasks(int count)
+	{
+		TaskList tasks = new TaskList();
+		for (int i = 1; i <= count; i++) {
+			TaskType task = new TaskType();
+			task.setIdentifier("TA" + i);
+			task.setParentIdentifier("US" + (i / 3));
+			task.setShortName("Task " + i);
+			task.setFullName("Task " + i + " in full");
+			task.setDescription(description(i));
+			task.setOwner("Owner " + (i % 3));
+			task.setTodoRemaining(i % 4);
+			tasks.getTask().add(task);
+		}
+		return tasks;
+	}
+
+	private String render(List<?> parts) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		formatter.render(parts, MimeConstants.MIME_FOP_IF, out);
+		return stripDates(out);
+	}
+
+	private String renderPages(List<?> pages, PageCache cache) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		formatter.renderPages(pages, cache, MimeConstants.MIME_FOP_IF, out);
+		return stripDates(out);
+	}
+
+	private static String stripDates(ByteArrayOutputStream out) throws Exception
+	{
+		// the metadata records when the document was rendered
+		return out.toString("UTF-8").replaceAll("<xmp:(\\w+Date)>[^<]*</xmp:\\1>", "");
+	}
+
+	@Test
+	public void storiesRenderedInPartsMatch() throws Exception
+	{
+		StoryList stories = stories(11);
+		String whole = render(formatter.split(stories));
+
+		formatter.setRenderThreads(3);
+		List<StoryList> parts = formatter.split(stories);
+		assertEquals(3, parts.size());
+		assertEquals(4, parts.get(0).getStory().size());
+		assertEquals(whole, render(parts));
+	}
+
+	@Test
+	public void tasksRenderedInPartsMatch() throws Exception
+	{
+		TaskList tasks = tasks(21);
+		String whole = render(formatter.split(tasks));
+
+		formatter.setRenderThreads(2);
+		List<TaskList> parts = formatter.split(tasks);
+		assertEquals(3, parts.size());
+		assertEquals(8, parts.get(0).getTask().size());
+		assertEquals(whole, render(parts));
+	}
+
+	@Test
+	public void streamedStoriesMatch() throws Exception
+	{
+		StoryList stories = stories(5);
+		formatter.setStreamCards(false);
+		String whole = render(formatter.split(stories));
+
+		formatter.setStreamCards(true);
+		assertEquals(whole, render(formatter.split(stories)));
+	}
+
+	@Test
+	public void streamedTasksMatch() throws Exception
+	{
+		TaskList tasks = tasks(7);
+		formatter.setStreamCards(false);
+		String whole = render(formatter.split(tasks));
+
+		formatter.setStreamCards(true);
+		assertEquals(whole, render(formatter.split(tasks)));
+	}
+
+	@Test
+	public void shortListsAreNotSplit() throws Exception
+	{
+		formatter.setRenderThreads(4);
+		StoryList stories = stories(4);
+		List<StoryList> parts = formatter.split(stories);
+
+		assertEquals(1, parts.size());
+		assertTrue(parts.get(0) == stories);
+	}
+
+	@Test
+	public void onlyChangedPagesAreLaidOutAgain() throws Exception
+	{
+		File directory = File.createTempFile("pages", "");
+		directory.delete();
+		PageCache cache = new PageCache(directory, PageCache.DEFAULT_MAX_BYTES);
+		try {
+			StoryList stories = stories(7);
+			List<StoryList> pages = formatter.split(stories, Formatter.STORIES_PER_PAGE);
+			assertEquals(4, pages.size());
+			assertEquals(render(formatter.split(stories)), renderPages(pages, cache));
+			assertEquals(4, cache.getMissCount());
+
+			stories.getStory().get(2).setFullName("Story 3 changed");
+			pages = formatter.split(stories, Formatter.STORIES_PER_PAGE);
+			assertEquals(render(formatter.split(stories)), renderPages(pages, cache));
+			assertEquals(3, cache.getHitCount());
+			assertEquals(5, cache.getMissCount());
+		} finally {
+			cache.clear();
+			directory.delete();
+		}
+	}
+}
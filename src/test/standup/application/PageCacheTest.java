@@ -0,0 +1,118 @@
+package standup.application;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+
+
+public class PageCacheTest
+{
+	private File directory;
+	private PageCache cache;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = File.createTempFile("pages", "");
+		directory.delete();
+		cache = new PageCache(directory, 5000);
+	}
+
+	@After
+	public void tearDown()
+	{
+		cache.clear();
+		directory.delete();
+	}
+
+	private static StoryList page(String... names)
+	{
+		StoryList stories = new StoryList();
+		for (int i = 0; i < names.length; i++) {
+			StoryType story = new StoryType();
+			story.setIdentifier("US" + i);
+			story.setFullName(names[i]);
+			stories.getStory().add(story);
+		}
+		return stories;
+	}
+
+	private static byte[] bytes(int length, int seed)
+	{
+		// random enough that compression does not shrink it much
+		byte[] bytes = new byte[length];
+		int x = seed;
+		for (int i = 0; i < length; i++) {
+			x = x * 1103515245 + 12345;
+			bytes[i] = (byte) (x >>> 16);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void savedPagesComeBack() throws Exception
+	{
+		String key = PageCache.getKey("1", page("first", "second"));
+		assertNull(cache.get(key));
+
+		byte[] page = "<page/>".getBytes("UTF-8");
+		cache.put(key, page);
+		assertArrayEquals(page, cache.get(key));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void keysFollowTheCardsAndTheLayout() throws Exception
+	{
+		String key = PageCache.getKey("1", page("first", "second"));
+
+		assertEquals(key, PageCache.getKey("1", page("first", "second")));
+		assertFalse(key.equals(PageCache.getKey("1", page("first", "changed"))));
+		assertFalse(key.equals(PageCache.getKey("1", page("second", "first"))));
+		assertFalse(key.equals(PageCache.getKey("1", page("first"))));
+		assertFalse(key.equals(PageCache.getKey("2", page("first", "second"))));
+	}
+
+	@Test
+	public void layoutVersionIsStable() throws Exception
+	{
+		assertEquals(PageCache.getLayoutVersion(Formatter.STORY_CARDS_XSL),
+				PageCache.getLayoutVersion(Formatter.STORY_CARDS_XSL));
+	}
+
+	@Test
+	public void leastRecentlyUsedPagesAreRemoved() throws Exception
+	{
+		for (int i = 0; i < 3; i++) {
+			cache.put("page" + i, bytes(1024, i));
+			cache.getFile("page" + i).setLastModified(1000000000000L + i * 1000L);
+		}
+		// using the oldest page keeps it
+		cache.get("page0");
+
+		cache.put("page3", bytes(1024, 3));
+		cache.put("page4", bytes(1024, 4));
+		assertTrue(cache.getFile("page0").isFile());
+		assertFalse(cache.getFile("page1").isFile());
+		assertFalse(cache.getFile("page2").isFile());
+		assertTrue(cache.getFile("page4").isFile());
+
+		long size = 0;
+		for (File file: directory.listFiles()) {
+			size += file.length();
+		}
+		assertTrue(size <= cache.getMaxBytes());
+	}
+}
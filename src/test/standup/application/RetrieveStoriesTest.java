@@ -0,0 +1,217 @@
+package standup.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.connector.ServerConnection;
+import standup.xml.Links;
+import standup.xml.ObjectFactory;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+
+/**
+ * Checks that the run modes of the application write the same PDFs.
+ */
+public class RetrieveStoriesTest
+{
+	private static final int STORIES = 7;
+	private static final int TASKS_PER_STORY = 3;
+
+	private File directory;
+
+	/**
+	 * Renders canned stories and tasks instead of asking Rally.
+	 */
+	private static class CannedRetrieveStories extends RetrieveStories
+	{
+		private final ObjectFactory objFactory = new ObjectFactory();
+		volatile String taskThread;
+
+		@Override
+		protected StoryList fetchStories(ServerConnection server)
+		{
+			StoryList stories = new StoryList();
+			for (int i = 1; i <= STORIES; i++) {
+				StoryType story = new StoryType();
+				story.setIdentifier("US" + i);
+				story.setShortName("Story " + i);
+				story.setFullName("Story " + i + " in full");
+				story.setOwner("Owner " + (i % 3));
+				story.setEstimate(i % 5);
+				stories.getStory().add(story);
+			}
+			return stories;
+		}
+
+		/**
+		 * Link each story to its tasks, as the Rally connection does.
+		 */
+		@Override
+		protected TaskList fetchTasks(ServerConnection server, StoryList stories)
+		{
+			taskThread = Thread.currentThread().getName();
+			TaskList tasks = new TaskList();
+			int n = 0;
+			for (StoryType story: stories.getStory()) {
+				if (story.getLinks() == null) {
+					story.setLinks(objFactory.createLinks());
+				}
+				for (int t = 0; t < TASKS_PER_STORY; t++) {
+					TaskType task = new TaskType();
+					task.setIdentifier("TA" + (++n));
+					task.setParentIdentifier(story.getIdentifier());
+					task.setShortName("Task " + n);
+					task.setFullName("Task " + n + " in full");
+					task.setOwner(story.getOwner());
+					task.setTodoRemaining(t);
+					tasks.getTask().add(task);
+					Links.Link link = objFactory.createLinksLink();
+					link.setRel("task");
+					link.setValue(task.getIdentifier());
+					story.getLinks().getLink().add(link);
+				}
+			}
+			return tasks;
+		}
+
+		@Override
+		protected String getDebugPrefix()
+		{
+			return null;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = File.createTempFile("cards", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void tearDown()
+	{
+		delete(directory);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Run the application and read back the PDFs that it wrote.
+	 *
+	 * @return the story and the task PDF, without the dates and the
+	 *         document ID that differ between runs
+	 */
+	private String[] run(CannedRetrieveStories app, String... options) throws Exception
+	{
+		File storyFile = File.createTempFile("stories", ".pdf", directory);
+		File taskFile = File.createTempFile("tasks", ".pdf", directory);
+		String[] args = new String[options.length + 8];
+		System.arraycopy(new String[] {
+				"--user", "user", "--password", "secret",
+				"--story-file", storyFile.getPath(), "--task-file", taskFile.getPath()
+			}, 0, args, 0, 8);
+		System.arraycopy(options, 0, args, 8, options.length);
+		app.run(args);
+		return new String[] { readPDF(storyFile), readPDF(taskFile) };
+	}
+
+	private static String readPDF(File file) throws IOException
+	{
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < bytes.length) {
+				int count = in.read(bytes, n, bytes.length - n);
+				if (count < 0) {
+					break;
+				}
+				n += count;
+			}
+		} finally {
+			in.close();
+		}
+		assertTrue(file + " is empty", bytes.length > 0);
+		return new String(bytes, "ISO-8859-1")
+			.replaceAll("/CreationDate \\([^)]*\\)", "")
+			.replaceAll("<(dc:date|xmp:\\w+Date)>[^<]*</\\1>", "")
+			.replaceAll("/ID \\[[^\\]]*\\]", "");
+	}
+
+	@Test
+	public void pipelinedRunWritesTheSamePDFs() throws Exception
+	{
+		CannedRetrieveStories sequential = new CannedRetrieveStories();
+		String[] expected = run(sequential);
+		assertEquals("main", sequential.taskThread);
+
+		CannedRetrieveStories pipelined = new CannedRetrieveStories();
+		String[] actual = run(pipelined, "--pipeline");
+		assertEquals("task-pipeline", pipelined.taskThread);
+		assertEquals(expected[0], actual[0]);
+		assertEquals(expected[1], actual[1]);
+		assertFalse(expected[0].equals(expected[1]));
+	}
+
+	@Test
+	public void renderOptionsWriteTheSamePDFs() throws Exception
+	{
+		String[] expected = run(new CannedRetrieveStories());
+		File cache = new File(directory, "pages");
+		String[] actual = run(new CannedRetrieveStories(), "-P", "--transport", "session",
+				"--render-threads", "2", "--render-cache", cache.getPath());
+		assertEquals(expected[0], actual[0]);
+		assertEquals(expected[1], actual[1]);
+		assertTrue(cache.list().length > 0);
+	}
+
+	@Test
+	public void badOptionValuesAreRejected() throws Exception
+	{
+		String[][] badOptions = {
+			{"--transport", "carrier-pigeon"},
+			{"--render-threads", "many"},
+		};
+		for (String[] bad: badOptions) {
+			CannedRetrieveStories app = new CannedRetrieveStories();
+			Options options = app.buildOptions();
+			String[] args = {
+				"-u", "user", "-p", "secret", "-s", "stories.pdf", "-t", "", bad[0], bad[1]
+			};
+			try {
+				app.processOptions(new GnuParser().parse(options, args, true));
+				fail(bad[0] + " " + bad[1] + " was accepted");
+			} catch (ParseException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(bad[1]));
+			}
+		}
+	}
+}
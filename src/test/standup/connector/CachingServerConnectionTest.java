@@ -0,0 +1,356 @@
+package standup.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.connector.rally.DescriptionParser;
+import standup.connector.rally.LazyDescription;
+import standup.utility.ModelUtilities;
+import standup.xml.Links;
+import standup.xml.Links.Link;
+import standup.xml.ObjectFactory;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+
+public class CachingServerConnectionTest
+{
+	private static final ObjectFactory objFactory = new ObjectFactory();
+
+	private StubServerConnection backend;
+	private CachingServerConnection cache;
+
+	/**
+	 * Builds fresh lists for every call and counts how often it is asked.
+	 */
+	private static class StubServerConnection implements ServerConnection
+	{
+		int storyQueries = 0;
+		int taskQueries = 0;
+		/** Gives the stories of an iteration lazy descriptions when set. */
+		DescriptionParser descriptionParser = null;
+
+		@Override
+		public List<IterationStatus> listIterationsForProject(String projectName)
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public List<IterationStatus> listIterationsInvolvingUser(String userName)
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public StoryList retrieveStoriesForIteration(String iterationName)
+		{
+			storyQueries++;
+			StoryList stories = createStories(iterationName, 3);
+			if (descriptionParser != null) {
+				for (StoryType story: stories.getStory()) {
+					story.setDescription(new LazyDescription(descriptionParser,
+							"<p>Description of <b>" + story.getIdentifier() + "</b></p>"));
+				}
+			}
+			return stories;
+		}
+
+		@Override
+		public StoryList retrieveStoriesForProjectIteration(String project, String iterationName)
+		{
+			storyQueries++;
+			return createStories(project + "/" + iterationName, 3);
+		}
+
+		@Override
+		public StoryList retrieveStories(String[] stories)
+		{
+			storyQueries++;
+			StoryList result = new StoryList();
+			for (String id: stories) {
+				result.getStory().add(createStory(id, "Story " + id));
+			}
+			return result;
+		}
+
+		/**
+		 * Link each story to its task, as the Rally connection does.
+		 */
+		@Override
+		public TaskList retrieveTasks(StoryList stories)
+		{
+			taskQueries++;
+			TaskList tasks = new TaskList();
+			for (StoryType story: stories.getStory()) {
+				TaskType task = new TaskType();
+				task.setIdentifier("TA-" + story.getIdentifier());
+				task.setFullName("Task of " + story.getIdentifier());
+				task.setParentIdentifier(story.getIdentifier());
+				tasks.getTask().add(task);
+				if (story.getLinks() == null) {
+					story.setLinks(objFactory.createLinks());
+				}
+				story.getLinks().getLink().add(createLink("task", task.getIdentifier()));
+			}
+			return tasks;
+		}
+
+		@Override
+		public void streamStoriesForIteration(String iterationName, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException
+		{
+			handler.handlePage(retrieveStoriesForIteration(iterationName).getStory());
+		}
+
+		@Override
+		public void streamStoriesForProjectIteration(String project, String iterationName,
+				PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException
+		{
+			handler.handlePage(retrieveStoriesForProjectIteration(project, iterationName).getStory());
+		}
+
+		@Override
+		public void streamStories(String[] stories, PageHandler<StoryType> handler)
+			throws IOException, ConnectorException, URISyntaxException
+		{
+			handler.handlePage(retrieveStories(stories).getStory());
+		}
+
+		@Override
+		public void streamTasks(StoryList stories, PageHandler<TaskType> handler)
+			throws IOException, ConnectorException, URISyntaxException
+		{
+			handler.handlePage(retrieveTasks(stories).getTask());
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		backend = new StubServerConnection();
+		cache = new CachingServerConnection(backend);
+	}
+
+	private static StoryList createStories(String prefix, int count)
+	{
+		StoryList stories = new StoryList();
+		for (int i = 0; i < count; i++) {
+			stories.getStory().add(createStory(prefix + "-" + i, "Story " + i + " of " + prefix));
+		}
+		return stories;
+	}
+
+	private static StoryType createStory(String id, String name)
+	{
+		StoryType story = new StoryType();
+		story.setIdentifier(id);
+		story.setFullName(name);
+		return story;
+	}
+
+	private static Link createLink(String rel, String value)
+	{
+		Link link = objFactory.createLinksLink();
+		link.setRel(rel);
+		link.setValue(value);
+		return link;
+	}
+
+	private static String describe(StoryList stories)
+	{
+		StringBuilder text = new StringBuilder();
+		for (StoryType story: stories.getStory()) {
+			text.append(story.getIdentifier()).append(':').append(story.getFullName());
+			Links links = story.getLinks();
+			if (links != null) {
+				for (Link link: links.getLink()) {
+					text.append(' ').append(link.getRel()).append('=').append(link.getValue());
+				}
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private static String describe(TaskList tasks)
+	{
+		StringBuilder text = new StringBuilder();
+		for (TaskType task: tasks.getTask()) {
+			text.append(task.getIdentifier()).append(':').append(task.getFullName())
+				.append(" of ").append(task.getParentIdentifier()).append('\n');
+		}
+		return text.toString();
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception
+	{
+		StoryList first = cache.retrieveStoriesForIteration("Sprint 1");
+		StoryList second = cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(1, backend.storyQueries);
+		assertEquals(describe(first), describe(second));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+
+		cache.retrieveStoriesForIteration("Sprint 2");
+		cache.retrieveStoriesForProjectIteration("Team A", "Sprint 1");
+		cache.retrieveStories(new String[] {"US1", "US2"});
+		cache.retrieveStories(new String[] {"US2", "US1"});
+		assertEquals(5, backend.storyQueries);
+		cache.retrieveStories(new String[] {"US1", "US2"});
+		cache.retrieveStoriesForProjectIteration("Team A", "Sprint 1");
+		assertEquals(5, backend.storyQueries);
+		assertEquals(3, cache.getHitCount());
+	}
+
+	@Test
+	public void testEntriesExpire() throws Exception
+	{
+		cache.setTimeToLive(100);
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(1, backend.storyQueries);
+
+		Thread.sleep(200);
+		cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(2, backend.storyQueries);
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntryIsEvicted() throws Exception
+	{
+		cache.setMaxEntries(2);
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 2");
+		// using the oldest entry keeps it
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 3");
+		assertEquals(3, backend.storyQueries);
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(1, cache.getEvictionCount());
+
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 3");
+		assertEquals(3, backend.storyQueries);
+		cache.retrieveStoriesForIteration("Sprint 2");
+		assertEquals(4, backend.storyQueries);
+	}
+
+	@Test
+	public void testCacheStaysWithinItsMemoryBudget() throws Exception
+	{
+		long entrySize = ModelUtilities.estimateSize(createStories("Sprint 1", 3));
+		cache.setMaxBytes(entrySize * 2 + entrySize / 2);
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 2");
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(0, cache.getEvictionCount());
+
+		cache.retrieveStoriesForIteration("Sprint 3");
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue(cache.getApproximateSize() <= cache.getMaxBytes());
+
+		// the oldest entry made room
+		cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(4, backend.storyQueries);
+
+		cache.setMaxBytes(0);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getApproximateSize());
+	}
+
+	@Test
+	public void testMeasuringLeavesDescriptionsUnconverted() throws Exception
+	{
+		backend.descriptionParser = new DescriptionParser();
+		cache.retrieveStoriesForIteration("Sprint 1");
+		StoryList hit = cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(1, backend.storyQueries);
+		for (StoryType story: hit.getStory()) {
+			assertFalse(((LazyDescription) story.getDescription()).isMaterialized());
+		}
+		// the descriptions still count towards the budget
+		assertTrue(cache.getApproximateSize() > ModelUtilities.estimateSize(createStories("Sprint 1", 3)));
+	}
+
+	@Test
+	public void testCallersGetTheirOwnCopies() throws Exception
+	{
+		StoryList miss = cache.retrieveStoriesForIteration("Sprint 1");
+		String expected = describe(miss);
+		miss.getStory().get(0).setFullName("changed by the caller");
+		miss.getStory().remove(1);
+
+		StoryList hit = cache.retrieveStoriesForIteration("Sprint 1");
+		assertEquals(expected, describe(hit));
+		hit.getStory().clear();
+		assertEquals(expected, describe(cache.retrieveStoriesForIteration("Sprint 1")));
+
+		StoryList stories = createStories("Sprint 1", 3);
+		TaskList tasks = cache.retrieveTasks(stories);
+		String expectedTasks = describe(tasks);
+		tasks.getTask().get(0).setFullName("changed by the caller");
+		TaskList cachedTasks = cache.retrieveTasks(createStories("Sprint 1", 3));
+		assertEquals(expectedTasks, describe(cachedTasks));
+		assertNotSame(tasks, cachedTasks);
+		assertEquals(1, backend.storyQueries);
+		assertEquals(1, backend.taskQueries);
+	}
+
+	@Test
+	public void testTaskLinksAreReplayed() throws Exception
+	{
+		StoryList stories = createStories("Sprint 1", 3);
+		stories.getStory().get(1).setLinks(objFactory.createLinks());
+		stories.getStory().get(1).getLinks().getLink().add(createLink("parent", "US-9"));
+		StoryList replayed = ModelUtilities.copy(stories);
+		StoryList expected = ModelUtilities.copy(stories);
+		new StubServerConnection().retrieveTasks(expected);
+
+		TaskList tasks = cache.retrieveTasks(stories);
+		// links that the caller changes afterwards are not replayed
+		stories.getStory().get(0).getLinks().getLink().get(0).setValue("changed by the caller");
+		stories.getStory().get(0).setLinks(null);
+
+		TaskList cachedTasks = cache.retrieveTasks(replayed);
+		assertEquals(1, backend.taskQueries);
+		assertEquals(describe(tasks), describe(cachedTasks));
+		assertEquals(describe(expected), describe(replayed));
+		assertEquals("parent", replayed.getStory().get(1).getLinks().getLink().get(0).getRel());
+	}
+
+	@Test
+	public void testInvalidation() throws Exception
+	{
+		cache.retrieveStoriesForIteration("Sprint 1");
+		cache.retrieveStoriesForProjectIteration("Team A", "Sprint 1");
+		cache.retrieveStoriesForIteration("Sprint 2");
+		cache.retrieveTasks(createStories("Sprint 1", 3));
+
+		cache.invalidateIteration("Sprint 1");
+		assertEquals(2, cache.getEntryCount());
+		cache.invalidateTasks();
+		assertEquals(1, cache.getEntryCount());
+		cache.invalidateAll();
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getApproximateSize());
+		cache.retrieveStoriesForIteration("Sprint 2");
+		assertEquals(4, backend.storyQueries);
+	}
+}
@@ -0,0 +1,133 @@
+package standup.connector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import standup.connector.rally.PooledRallyClientFactory;
+import standup.connector.rally.RallyClientFactory;
+
+
+public class PooledHttpClientFactoryTest
+{
+	private static final String BODY = "{\"QueryResult\": {\"Results\": []}}";
+
+	private HttpServer server;
+	private URI uri;
+	private PooledHttpClientFactory factory;
+	private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<String> integrationNames = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				integrationNames.add(exchange.getRequestHeaders().getFirst("X-RallyIntegrationName"));
+				byte[] body = BODY.getBytes("UTF-8");
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if (accept != null && accept.contains("gzip")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					GZIPOutputStream zip = new GZIPOutputStream(bytes);
+					zip.write(body);
+					zip.close();
+					body = bytes.toByteArray();
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		uri = new URI("http://localhost:" + server.getAddress().getPort() + "/query");
+		factory = new PooledHttpClientFactory();
+	}
+
+	@After
+	public void tearDown()
+	{
+		factory.close();
+		server.stop(0);
+	}
+
+	private String get(HttpClientFactory clientFactory) throws Exception
+	{
+		HttpUriRequest request = clientFactory.getRequestObject("GET", uri);
+		HttpResponse response = clientFactory.getHttpClient().execute(request);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		return EntityUtils.toString(response.getEntity());
+	}
+
+	@Test
+	public void testDecodesCompressedResponses() throws Exception
+	{
+		assertEquals(BODY, get(factory));
+	}
+
+	@Test
+	public void testClientsShareConnections() throws Exception
+	{
+		for (int i = 0; i < 5; i++) {
+			get(factory);
+		}
+		assertEquals(5, clientPorts.size());
+		assertEquals(1, new HashSet<Integer>(clientPorts).size());
+		assertEquals(1, factory.getConnectionManager().getTotalStats().getAvailable());
+	}
+
+	@Test
+	public void testRallyFactoryAddsHeaders() throws Exception
+	{
+		factory.close();
+		factory = new PooledRallyClientFactory();
+		assertEquals(BODY, get(factory));
+		assertEquals("jRally", integrationNames.get(0));
+	}
+
+	@Test
+	public void testUnpooledRallyFactory() throws Exception
+	{
+		RallyClientFactory rallyFactory = new RallyClientFactory();
+		assertEquals(BODY, get(rallyFactory));
+		assertEquals(BODY, get(rallyFactory));
+		assertEquals("jRally", integrationNames.get(0));
+		assertEquals("jRally", integrationNames.get(1));
+		// every client has a connection of its own
+		assertEquals(2, new HashSet<Integer>(clientPorts).size());
+	}
+
+	@Test
+	public void testLimits() throws Exception
+	{
+		factory.setMaxTotal(8);
+		factory.setDefaultMaxPerRoute(2);
+		assertEquals(8, factory.getMaxTotal());
+		assertEquals(2, factory.getDefaultMaxPerRoute());
+	}
+
+}
@@ -0,0 +1,236 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.connector.AsyncCallback;
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+
+public class AsyncServerConnectionTest
+{
+	private GatedServerConnection connection;
+	private ExecutorService executor;
+	private AsyncServerConnection async;
+
+	/**
+	 * Answers from canned JSON once its gate is open.
+	 */
+	private static class GatedServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		volatile CountDownLatch gate = new CountDownLatch(0);
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final AtomicInteger queries = new AtomicInteger();
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			queries.incrementAndGet();
+			waiting.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			String url = URLDecoder.decode(request.toUrl(), "UTF-8");
+			if (url.contains("Broken")) {
+				throw new IOException("Rally is down");
+			}
+			return new StringReader(ServerConnectionConcurrencyTest.respond(request.toUrl()));
+		}
+	}
+
+	/**
+	 * Remembers what it was told and by which thread.
+	 */
+	private static class RecordingCallback<T> implements AsyncCallback<T>
+	{
+		final CountDownLatch called = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		volatile T result;
+		volatile Throwable cause;
+		volatile Thread thread;
+
+		@Override
+		public void completed(T result)
+		{
+			this.result = result;
+			record();
+		}
+
+		@Override
+		public void failed(Throwable cause)
+		{
+			this.cause = cause;
+			record();
+		}
+
+		private void record()
+		{
+			thread = Thread.currentThread();
+			calls.incrementAndGet();
+			called.countDown();
+		}
+
+		void await() throws InterruptedException
+		{
+			assertTrue("callback was not called", called.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new GatedServerConnection();
+		connection.setResolveIterations(false);
+		executor = Executors.newSingleThreadExecutor();
+		async = new AsyncServerConnection(connection, executor);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.gate = new CountDownLatch(0);
+		async.close();
+		executor.shutdownNow();
+		connection.close();
+	}
+
+	/**
+	 * Wait for everything submitted so far to finish.
+	 */
+	private void drain() throws Exception
+	{
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCallbackReceivesResult() throws Exception
+	{
+		RecordingCallback<StoryList> storyCallback = new RecordingCallback<StoryList>();
+		Future<StoryList> stories = async.retrieveStoriesForIteration("Iteration 1", storyCallback);
+		StoryList result = stories.get();
+		storyCallback.await();
+		assertSame(result, storyCallback.result);
+		assertNull(storyCallback.cause);
+		assertFalse(Thread.currentThread() == storyCallback.thread);
+
+		RecordingCallback<TaskList> taskCallback = new RecordingCallback<TaskList>();
+		TaskList tasks = async.retrieveTasks(result, taskCallback).get();
+		taskCallback.await();
+		assertSame(tasks, taskCallback.result);
+		assertFalse(tasks.getTask().isEmpty());
+
+		// a callback is optional
+		assertEquals(result.getStory().size(),
+				async.retrieveStoriesForIteration("Iteration 1", null).get().getStory().size());
+		drain();
+		assertEquals(1, storyCallback.calls.get());
+		assertEquals(1, taskCallback.calls.get());
+	}
+
+	@Test
+	public void testCallbackReceivesFailure() throws Exception
+	{
+		RecordingCallback<StoryList> callback = new RecordingCallback<StoryList>();
+		Future<StoryList> stories = async.retrieveStoriesForIteration("Broken", callback);
+		try {
+			stories.get();
+			fail("the query did not fail");
+		} catch (ExecutionException e) {
+			callback.await();
+			assertSame(e.getCause(), callback.cause);
+			assertEquals("Rally is down", callback.cause.getMessage());
+		}
+		assertNull(callback.result);
+	}
+
+	@Test
+	public void testCancelledOperationIsNotRun() throws Exception
+	{
+		connection.gate = new CountDownLatch(1);
+		RecordingCallback<StoryList> running = new RecordingCallback<StoryList>();
+		async.retrieveStoriesForIteration("Iteration 1", running);
+		assertTrue(connection.waiting.await(10, TimeUnit.SECONDS));
+
+		// queued behind the operation that holds the only thread
+		RecordingCallback<StoryList> queued = new RecordingCallback<StoryList>();
+		Future<StoryList> cancelled = async.retrieveStoriesForIteration("Iteration 2", queued);
+		assertTrue(cancelled.cancel(false));
+		assertTrue(cancelled.isCancelled());
+		int queries = connection.queries.get();
+
+		connection.gate.countDown();
+		running.await();
+		drain();
+		assertEquals(0, queued.calls.get());
+		// only the rest of the running operation went to Rally
+		assertTrue(connection.queries.get() - queries <= 1);
+		try {
+			cancelled.get();
+			fail("a cancelled operation produced a result");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCancelInterruptsRunningOperation() throws Exception
+	{
+		connection.gate = new CountDownLatch(1);
+		RecordingCallback<StoryList> callback = new RecordingCallback<StoryList>();
+		Future<StoryList> stories = async.retrieveStoriesForIteration("Iteration 1", callback);
+		assertTrue(connection.waiting.await(10, TimeUnit.SECONDS));
+
+		assertTrue(stories.cancel(true));
+		drain();
+		assertTrue(stories.isDone());
+		assertEquals(0, callback.calls.get());
+	}
+
+	@Test
+	public void testCloseLeavesSuppliedExecutorRunning() throws Exception
+	{
+		async.close();
+		assertFalse(executor.isShutdown());
+
+		AsyncServerConnection owning = new AsyncServerConnection(connection);
+		owning.retrieveStoriesForIteration("Iteration 1", null).get();
+		owning.close();
+		try {
+			owning.retrieveStoriesForIteration("Iteration 1", null);
+			fail("the connection's own executor is still running");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package standup.connector.rally;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Compares {@link DescriptionParser} with the conversion that it replaced.
+ * <p>
+ * Run it as a plain Java application with the test classpath.  Each round
+ * converts every sample in {@link DescriptionParserTest#SAMPLES} a number of
+ * times and reports the average time per description.
+ */
+public class DescriptionParserBenchmark {
+	private static final int ROUNDS = 5;
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		Logger.getRootLogger().setLevel(Level.OFF);	// malformed samples log errors
+		DescriptionParser parser = new DescriptionParser();
+		LegacyDescriptionParser legacy = new LegacyDescriptionParser();
+		int count = ITERATIONS * DescriptionParserTest.SAMPLES.length;
+
+		for (int round = 1; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				for (String text: DescriptionParserTest.SAMPLES) {
+					legacy.parse(text);
+				}
+			}
+			long legacyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				for (String text: DescriptionParserTest.SAMPLES) {
+					parser.parse(text);
+				}
+			}
+			long parserTime = System.nanoTime() - start;
+
+			System.out.println(String.format(
+					"round %d: legacy %,d ns/description, single pass %,d ns/description (%.1fx)",
+					round, legacyTime / count, parserTime / count,
+					(double) legacyTime / parserTime));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import standup.xml.Description;
+
+
+public class DescriptionParserTest
+{
+	/** Descriptions in the style that Rally returns them. */
+	static final String[] SAMPLES = {
+		"",
+		"plain text",
+		"As a user I want &lt;b&gt;bold&lt;/b&gt; text",
+		"<p>Line one<br>Line two<br />Line three<br/></p>",
+		"<div>Fish &amp; chips&nbsp;and&amp;nbsp;peas &quot;quoted&quot; &amp;amp; &amp;lt;tag&amp;gt;</div>",
+		"&amp;&amp;nbsp;x&amp;amp;nbsp;y & z &#169; &copy;",
+		"<ul><li>one</li><li><b>two</b> <i>three</i></li></ul>",
+		"<ol><li><p>para<br></p><ul><li>nested</li></ul></li></ol>",
+		"<p>\n <b>Bold</b> <i>italic</i> <span>x</span> </p>",
+		"<b>Bold</b> <i>italic</i> <tt>mono</tt> <font color=\"red\">red</font>",
+		"<span style=\"x\">dropped</span> kept <a href=\"http://x?a=1&b=2\">link</a> after",
+		"<p class=\"MsoNormal\">Word<o:p></o:p></p>",
+		"unbalanced <b>bold",
+		"upper <BR> case",
+		"a&lt;br&nbsp;&gt;b&lt;br &amp;nbsp;&gt;c",
+		"tabs<br\t\n>and newlines",
+		"<p>x</p>\n<p>y</p>  tail  ",
+		"<!-- comment -->text<![CDATA[<raw>]]>more<?pi data?>end",
+		"<p xml:lang=\"en\" id=\"a\" style=\"font-weight: bold\">attrs</p>",
+		"&lt;p&gt;escaped paragraph&lt;/p&gt;&lt;br&gt;&lt;ul&gt;&lt;li&gt;item&lt;/li&gt;&lt;/ul&gt;",
+		"<div><ul class=\"c\">text in list<li a=\"1\">item</li><p>not allowed</p> </ul></div>",
+		"<li>bare item</li>",
+		"a ]]> b",
+		"<br class=\"x\">t<b>u</b> </br>",
+		"<br class=\"x\"> <b>u</b><!-- c --> </br> <br/> <i>i</i>",
+		"<div><span>x</span> <br class=\"x\"> <ul/> </br><p> <br class=\"y\"> <b/></br></p></div>",
+		"<b>nested <i>deep <tt>deeper <div>div</div></tt></i></b>",
+		"<ul><li><p><b>x</b><p>inner</p> <br>tail</p></li></ul>",
+		"na\u00efve \u2014 caf\u00e9 \u2713",
+		"<p>Trailing whitespace   </p>   ",
+		"   ",
+		"x</description><description>y",
+		"<font face=\"Arial\" size=\"2\">text</font>",
+		"<table><tr><td>cell</td></tr></table>after",
+		"<br/><br><br ><br\t>< br>",
+		"<p><b>Acceptance criteria:</b></p><ol><li>first&nbsp;step</li><li>second &amp; third</li></ol>",
+		"<div xmlns=\"urn:other\">other namespace</div>kept",
+		"<p xmlns:q=\"urn:q\" q:attr=\"v\">prefixed attribute</p>",
+		"<p>\u0001</p>",
+		"&lt;",
+		"<br",
+	};
+
+	private DescriptionParser parser;
+	private LegacyDescriptionParser legacy;
+	private Marshaller marshaller;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		parser = new DescriptionParser();
+		legacy = new LegacyDescriptionParser();
+		marshaller = JAXBContext.newInstance("standup.xml").createMarshaller();
+	}
+
+	private String marshal(Description description) throws Exception
+	{
+		StringWriter writer = new StringWriter();
+		marshaller.marshal(description, writer);
+		return writer.toString();
+	}
+
+	private void assertSameAsLegacy(String text) throws Exception
+	{
+		assertEquals("converting <<"+text+">>",
+				marshal(legacy.parse(text)), marshal(parser.parse(text)));
+	}
+
+	@Test
+	public void testMatchesLegacyConversion() throws Exception
+	{
+		for (String text: SAMPLES) {
+			assertSameAsLegacy(text);
+		}
+	}
+
+	@Test
+	public void testMatchesLegacyConversionOfTestData() throws Exception
+	{
+		List<String> descriptions = new ArrayList<String>();
+		File[] files = new File("configs/test/test-data").listFiles();
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		for (File file: files) {
+			Document doc = factory.newDocumentBuilder().parse(file);
+			NodeList nodes = doc.getElementsByTagName("Description");
+			for (int i = 0; i < nodes.getLength(); i++) {
+				descriptions.add(nodes.item(i).getTextContent());
+			}
+		}
+		assertTrue(descriptions.size() > 0);
+		for (String text: descriptions) {
+			assertSameAsLegacy(text);
+		}
+	}
+
+	@Test
+	public void testConvertsEscapedMarkup() throws Exception
+	{
+		Description description = parser.parse("a &lt;b&gt;b&lt;/b&gt;&nbsp;c<br>");
+		assertEquals(4, description.getContent().size());
+		assertEquals("a ", description.getContent().get(0));
+		assertEquals(" c", description.getContent().get(2));
+	}
+
+	@Test
+	public void testLazyDescriptionMatchesEagerConversion() throws Exception
+	{
+		for (String text: SAMPLES) {
+			LazyDescription description = new LazyDescription(parser, text);
+			assertFalse(description.isMaterialized());
+			assertEquals("converting <<"+text+">>",
+					marshal(parser.parse(text)), marshal(description));
+			assertTrue(description.isMaterialized());
+		}
+	}
+
+	@Test
+	public void testLazyDescriptionConvertsOnAccess() throws Exception
+	{
+		LazyDescription description = new LazyDescription(parser, "a<br>b");
+		assertFalse(description.isMaterialized());
+		assertEquals(3, description.getContent().size());
+		assertTrue(description.isMaterialized());
+		description.getContent().add("c");
+		assertEquals("c", description.getContent().get(3));
+	}
+
+	@Test
+	public void testMalformedDescriptionIsEmpty() throws Exception
+	{
+		assertTrue(parser.parse("<b>unbalanced").getContent().isEmpty());
+	}
+
+}
@@ -0,0 +1,55 @@
+package standup.connector.rally;
+
+import java.io.StringReader;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+
+import standup.xml.Description;
+import standup.xml.ObjectFactory;
+
+/**
+ * The regular expression and JAXB based description conversion that
+ * {@link DescriptionParser} replaced.  Kept as the reference for
+ * {@link DescriptionParserTest} and {@link DescriptionParserBenchmark}.
+ */
+class LegacyDescriptionParser {
+	private static final Pattern ltPattern = Pattern.compile("&lt;");
+	private static final Pattern gtPattern = Pattern.compile("&gt;");
+	private static final Pattern ampPattern = Pattern.compile("&amp;");
+	private static final Pattern nbspPattern = Pattern.compile("&nbsp;");
+	private static final Pattern brPattern = Pattern.compile("<br\\s*>");
+	private static final Pattern ampPattern2 = Pattern.compile("&");
+	private static final Pattern quotPattern = Pattern.compile("\"");
+
+	private final ObjectFactory objFactory = new ObjectFactory();
+	private final Unmarshaller unmarshaller;
+
+	LegacyDescriptionParser() throws JAXBException {
+		unmarshaller = JAXBContext.newInstance("standup.xml").createUnmarshaller();
+	}
+
+	Description parse(String descString) {
+		descString = ltPattern.matcher(descString).replaceAll("<");		// &lt; -> "<"
+		descString = gtPattern.matcher(descString).replaceAll(">");		// &gt; -> ">"
+		descString = ampPattern.matcher(descString).replaceAll("&");	// necessary to catch &nbsp;
+		descString = nbspPattern.matcher(descString).replaceAll(" ");	// &nbsp; -> " "
+		descString = brPattern.matcher(descString).replaceAll("<br/>");	// <br> -> <br/>
+		descString = quotPattern.matcher(descString).replaceAll("\"");	// &quot; -> "
+		descString = ampPattern2.matcher(descString).replaceAll("&amp;"); // & -> &amp;
+
+		descString = String.format("<description>%s</description>", descString);
+
+		try {
+			Object obj = unmarshaller.unmarshal(new StringReader(descString));
+			if (obj instanceof Description) {
+				return (Description) obj;
+			}
+		} catch (JAXBException e) {
+			// fall through
+		}
+		return objFactory.createDescription();
+	}
+}
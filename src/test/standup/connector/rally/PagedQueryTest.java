@@ -0,0 +1,433 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.connector.ConnectorException;
+import standup.connector.PageHandler;
+import standup.utility.ModelUtilities;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+
+/**
+ * Checks that results which span several pages come back complete.
+ */
+public class PagedQueryTest
+{
+	private static final int STORIES = 230;
+	private static final int DEFECTS = 12;
+	private static final int STORIES_WITH_TASKS = 30;
+	/** More tasks than fit on a page for the first story alone. */
+	private static final int FIRST_STORY_TASKS = 205;
+	private static final int TASKS_PER_STORY = 3;
+
+	private static final Pattern PAGING = Pattern.compile("[?&](start|pagesize)=(\\d+)");
+	private static final Pattern WORK_PRODUCT = Pattern.compile("WorkProduct\\.FormattedID = ([^)]+)\\)");
+	private static final Pattern CHANGED_SINCE = Pattern.compile("LastUpdateDate >= ([^)]+)\\)");
+
+	private PagedServerConnection connection;
+	private Marshaller marshaller;
+
+	/**
+	 * Serves canned artifacts a page at a time, as Rally does.
+	 */
+	private static class PagedServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		final List<JsonObject> stories = new ArrayList<JsonObject>();
+		final List<JsonObject> defects = new ArrayList<JsonObject>();
+		final List<JsonObject> tasks = new ArrayList<JsonObject>();
+		/** Results returned by queries for what has changed. */
+		final AtomicInteger changedResults = new AtomicInteger();
+		/** Every query made, decoded. */
+		final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+		/** The first result of a page that Rally refuses to serve. */
+		volatile int failingStart = 0;
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			String url = URLDecoder.decode(request.toUrl(), "UTF-8");
+			queries.add(url);
+			List<JsonObject> candidates;
+			if (url.startsWith("/hierarchicalrequirement")) {
+				candidates = stories;
+			} else if (url.startsWith("/defect")) {
+				candidates = defects;
+			} else if (url.startsWith("/task")) {
+				candidates = tasks;
+			} else {
+				throw new IllegalArgumentException("unexpected query " + url);
+			}
+
+			Set<String> workProducts = new HashSet<String>();
+			Matcher m = WORK_PRODUCT.matcher(url);
+			while (m.find()) {
+				workProducts.add(m.group(1));
+			}
+			m = CHANGED_SINCE.matcher(url);
+			String since = m.find() ? m.group(1) : null;
+			List<JsonObject> matching = new ArrayList<JsonObject>();
+			for (JsonObject candidate: candidates) {
+				if (candidates == tasks && !workProducts.contains(
+						candidate.getAsJsonObject("WorkProduct").get("FormattedID").getAsString())) {
+					continue;
+				}
+				if (since != null
+						&& candidate.get("LastUpdateDate").getAsString().compareTo(since) < 0) {
+					continue;
+				}
+				matching.add(candidate);
+			}
+
+			int start = 1;
+			int pageSize = 200;
+			m = PAGING.matcher(url);
+			while (m.find()) {
+				if (m.group(1).equals("start")) {
+					start = Integer.parseInt(m.group(2));
+				} else {
+					pageSize = Integer.parseInt(m.group(2));
+				}
+			}
+			if (start == failingStart) {
+				return new StringReader(ServerConnectionConcurrencyTest.createErrorResponse("Query timed out"));
+			}
+			JsonArray page = new JsonArray();
+			for (int i = start - 1; i < Math.min(start - 1 + pageSize, matching.size()); i++) {
+				page.add(matching.get(i));
+			}
+			if (since != null) {
+				changedResults.addAndGet(page.size());
+			}
+			return new StringReader(ServerConnectionConcurrencyTest.createResponse(page, matching.size(), start, pageSize));
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new PagedServerConnection();
+		connection.setResolveIterations(false);
+		JsonArray stories = ServerConnectionConcurrencyTest.createStories("US", STORIES);
+		for (int i = 0; i < stories.size(); i++) {
+			JsonObject story = stories.get(i).getAsJsonObject();
+			story.addProperty("LastUpdateDate", timestamp(i));
+			connection.stories.add(story);
+		}
+		JsonArray defects = ServerConnectionConcurrencyTest.createStories("DE", DEFECTS);
+		for (int i = 0; i < defects.size(); i++) {
+			JsonObject defect = defects.get(i).getAsJsonObject();
+			defect.addProperty("LastUpdateDate", timestamp(i));
+			connection.defects.add(defect);
+		}
+		int n = 0;
+		for (int i = 0; i < STORIES_WITH_TASKS; i++) {
+			JsonObject story = connection.stories.get(i);
+			int count = (i == 0) ? FIRST_STORY_TASKS : TASKS_PER_STORY;
+			for (int t = 0; t < count; t++) {
+				connection.tasks.add(createTask(n++, story));
+			}
+		}
+		marshaller = JAXBContext.newInstance("standup.xml").createMarshaller();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	/**
+	 * A distinct update time for each artifact, formatted as Rally does.
+	 */
+	private static String timestamp(int i)
+	{
+		return String.format("2014-03-01T%02d:%02d:00.000Z", i / 60, i % 60);
+	}
+
+	private static JsonObject createTask(int n, JsonObject story)
+	{
+		JsonObject task = new JsonObject();
+		task.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/task/" + n);
+		task.addProperty("Name", "Task " + n);
+		task.addProperty("FormattedID", "TA" + n);
+		task.add("Owner", story.get("Owner"));
+		task.addProperty("Estimate", (double) (n % 5));
+		task.addProperty("Actuals", 0.5);
+		task.addProperty("Description", "Description of task " + n);
+		task.addProperty("LastUpdateDate", timestamp(n));
+		JsonObject workProduct = new JsonObject();
+		workProduct.add("_ref", story.get("_ref"));
+		workProduct.add("FormattedID", story.get("FormattedID"));
+		task.add("WorkProduct", workProduct);
+		return task;
+	}
+
+	private String marshal(Object model) throws Exception
+	{
+		StringWriter writer = new StringWriter();
+		marshaller.marshal(model, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * The stories that have tasks, as {@link ServerConnection#retrieveTasks(StoryList)}
+	 * adds links to the stories that it is given.
+	 */
+	private StoryList storiesWithTasks() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+		stories.getStory().subList(STORIES_WITH_TASKS, stories.getStory().size()).clear();
+		return stories;
+	}
+
+	/**
+	 * Check that synchronizing comes up with exactly what retrieving
+	 * everything does.
+	 */
+	private void assertSyncMatchesRetrieval() throws Exception
+	{
+		assertEquals(marshal(connection.retrieveStoriesForIteration("Iteration 1")),
+				marshal(connection.syncStoriesForIteration("Iteration 1")));
+
+		StoryList stories = storiesWithTasks();
+		StoryList synced = ModelUtilities.copy(stories);
+		assertEquals(marshal(connection.retrieveTasks(stories)),
+				marshal(connection.syncTasks(synced)));
+		assertEquals(marshal(stories), marshal(synced));
+	}
+
+	private int countQueries(String prefix)
+	{
+		int n = 0;
+		synchronized (connection.queries) {
+			for (String url: connection.queries) {
+				if (url.startsWith(prefix)) {
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Collects pages and stops after a given number of them.
+	 */
+	private static class StoppingHandler<T> implements PageHandler<T>
+	{
+		final List<List<T>> pages = new ArrayList<List<T>>();
+		private final int stopAfter;
+
+		StoppingHandler(int stopAfter)
+		{
+			this.stopAfter = stopAfter;
+		}
+
+		@Override
+		public boolean handlePage(List<T> page)
+		{
+			pages.add(new ArrayList<T>(page));
+			return pages.size() < stopAfter;
+		}
+	}
+
+	private JsonObject find(List<JsonObject> artifacts, String id)
+	{
+		for (JsonObject artifact: artifacts) {
+			if (artifact.get("FormattedID").getAsString().equals(id)) {
+				return artifact;
+			}
+		}
+		throw new IllegalArgumentException(id);
+	}
+
+	@Test
+	public void storiesSpanSeveralPages() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+		assertEquals(STORIES + DEFECTS, stories.getStory().size());
+		assertEquals("US" + (STORIES - 1), stories.getStory().get(STORIES - 1).getIdentifier());
+	}
+
+	@Test
+	public void batchedTasksMatchTasksByStory() throws Exception
+	{
+		StoryList stories = storiesWithTasks();
+		connection.setTaskBatchSize(1);
+		StoryList storiesByStory = ModelUtilities.copy(stories);
+		TaskList tasksByStory = connection.retrieveTasks(storiesByStory);
+		assertEquals(connection.tasks.size(), tasksByStory.getTask().size());
+
+		connection.setTaskBatchSize(ServerConnection.DEFAULT_TASK_BATCH_SIZE);
+		TaskList batchedTasks = connection.retrieveTasks(stories);
+		assertEquals(marshal(tasksByStory), marshal(batchedTasks));
+		assertEquals(marshal(storiesByStory), marshal(stories));
+	}
+
+	@Test
+	public void smallPagesLoseNothing() throws Exception
+	{
+		StoryList stories = storiesWithTasks();
+		String expected = marshal(connection.retrieveTasks(ModelUtilities.copy(stories)));
+
+		connection.setPageSize(7);
+		TaskList tasks = connection.retrieveTasks(stories);
+		assertEquals(expected, marshal(tasks));
+	}
+
+	@Test
+	public void firstSyncSpansSeveralPages() throws Exception
+	{
+		assertSyncMatchesRetrieval();
+		assertEquals(STORIES + DEFECTS,
+				connection.syncStoriesForIteration("Iteration 1").getStory().size());
+	}
+
+	@Test
+	public void changesPastTheFirstPageAreMerged() throws Exception
+	{
+		assertSyncMatchesRetrieval();
+
+		JsonObject story = find(connection.stories, "US220");
+		story.addProperty("Name", "Story US220 renamed");
+		story.addProperty("LastUpdateDate", "2014-03-02T00:00:00.000Z");
+		JsonObject task = find(connection.tasks, "TA250");
+		task.addProperty("Name", "Task 250 renamed");
+		task.addProperty("LastUpdateDate", "2014-03-02T00:00:00.000Z");
+		connection.changedResults.set(0);
+
+		assertSyncMatchesRetrieval();
+		// the changes, plus whatever shares the previous latest update time
+		assertTrue(connection.changedResults.get() < 10);
+	}
+
+	@Test
+	public void deletionsPastTheFirstPageAreDropped() throws Exception
+	{
+		assertSyncMatchesRetrieval();
+
+		connection.stories.remove(find(connection.stories, "US150"));
+		connection.stories.remove(find(connection.stories, "US225"));
+		connection.defects.remove(find(connection.defects, "DE7"));
+		connection.tasks.remove(find(connection.tasks, "TA10"));
+		connection.tasks.remove(find(connection.tasks, "TA240"));
+
+		assertSyncMatchesRetrieval();
+		assertEquals(STORIES + DEFECTS - 3,
+				connection.syncStoriesForIteration("Iteration 1").getStory().size());
+	}
+
+	@Test
+	public void failedLaterPageFailsTheQuery() throws Exception
+	{
+		QueryRequest request = new QueryRequest("HierarchicalRequirement");
+		request.setPageSize(100);
+		request.setLimit(Integer.MAX_VALUE);
+		connection.failingStart = 101;
+
+		QueryResultReader.Page<StoryType> page = connection.queryItems(request,
+				new QueryResultReader.ItemReader<StoryType>() {
+					@Override
+					public StoryType read(JsonReader reader) throws IOException
+					{
+						return connection.readStory(reader);
+					}
+				});
+		assertFalse(page.wasSuccessful());
+		assertTrue(page.getResults().isEmpty());
+		assertFalse(connection.query(request).wasSuccessful());
+	}
+
+	@Test
+	public void streamedPagesAddUpToTheRetrievedList() throws Exception
+	{
+		connection.setPageSize(50);
+		StoppingHandler<StoryType> handler = new StoppingHandler<StoryType>(Integer.MAX_VALUE);
+		connection.streamStoriesForIteration("Iteration 1", handler);
+
+		int[] sizes = {50, 50, 50, 50, 30, DEFECTS};
+		assertEquals(sizes.length, handler.pages.size());
+		StoryList streamed = new StoryList();
+		for (int i = 0; i < sizes.length; i++) {
+			assertEquals(sizes[i], handler.pages.get(i).size());
+			streamed.getStory().addAll(handler.pages.get(i));
+		}
+		assertEquals(marshal(connection.retrieveStoriesForIteration("Iteration 1")), marshal(streamed));
+	}
+
+	@Test
+	public void handlerStopsTheStreamEarly() throws Exception
+	{
+		connection.setPageSize(50);
+		StoppingHandler<StoryType> handler = new StoppingHandler<StoryType>(2);
+		connection.streamStoriesForIteration("Iteration 1", handler);
+		assertEquals(2, handler.pages.size());
+		assertEquals("US50", handler.pages.get(1).get(0).getIdentifier());
+		assertEquals(2, countQueries("/hierarchicalrequirement"));
+		assertEquals(0, countQueries("/defect"));
+
+		StoppingHandler<TaskType> taskHandler = new StoppingHandler<TaskType>(1);
+		connection.setTaskBatchSize(1);
+		connection.streamTasks(storiesWithTasks(), taskHandler);
+		assertEquals(1, taskHandler.pages.size());
+		assertEquals(FIRST_STORY_TASKS, taskHandler.pages.get(0).size());
+		for (String url: connection.queries) {
+			if (url.startsWith("/task")) {
+				assertTrue(url, url.contains("WorkProduct.FormattedID = US0)"));
+			}
+		}
+	}
+
+	@Test
+	public void handlerExceptionsReachTheCaller() throws Exception
+	{
+		final ConnectorException failure = new ConnectorException("printer on fire");
+		try {
+			connection.streamStoriesForIteration("Iteration 1", new PageHandler<StoryType>() {
+				@Override
+				public boolean handlePage(List<StoryType> page) throws ConnectorException
+				{
+					throw failure;
+				}
+			});
+			fail("the handler's exception was swallowed");
+		} catch (ConnectorException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(1, countQueries("/hierarchicalrequirement"));
+	}
+}
@@ -0,0 +1,150 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.xml.StoryList;
+
+
+/**
+ * Checks that iteration names are resolved once and that stories are
+ * then queried by iteration reference.
+ */
+public class QueryPlannerTest
+{
+	private static final String ITERATION_REF =
+		"https://rally1.rallydev.com/slm/webservice/v2.0/iteration/42";
+
+	private PlanningServerConnection connection;
+
+	/**
+	 * Knows a single iteration, "Sprint 1" in "Team A", and remembers
+	 * every query that it answers.
+	 */
+	private static class PlanningServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			String url = URLDecoder.decode(request.toUrl(), "UTF-8");
+			queries.add(url);
+			JsonArray results = new JsonArray();
+			if (url.startsWith("/iteration")) {
+				if (url.contains("(Name = \"Sprint 1\")")
+						&& (!url.contains("Project.Name") || url.contains("(Project.Name = \"Team A\")"))) {
+					JsonObject iteration = new JsonObject();
+					iteration.addProperty("_ref", ITERATION_REF);
+					iteration.addProperty("Name", "Sprint 1");
+					results.add(iteration);
+				}
+			} else if (url.startsWith("/hierarchicalrequirement")
+					&& url.contains("(Iteration = /iteration/42)")) {
+				results = ServerConnectionConcurrencyTest.createStories("US", 3);
+			}
+			return new StringReader(ServerConnectionConcurrencyTest.createResponse(results));
+		}
+
+		int count(String prefix)
+		{
+			int n = 0;
+			synchronized (queries) {
+				for (String url: queries) {
+					if (url.startsWith(prefix)) {
+						n++;
+					}
+				}
+			}
+			return n;
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		connection = new PlanningServerConnection();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	@Test
+	public void iterationsAreResolvedOnce() throws Exception
+	{
+		for (int i = 0; i < 3; i++) {
+			StoryList stories = connection.retrieveStoriesForProjectIteration("Team A", "Sprint 1");
+			assertEquals(3, stories.getStory().size());
+		}
+		assertEquals(1, connection.count("/iteration"));
+		assertEquals(3, connection.count("/hierarchicalrequirement"));
+		for (String url: connection.queries) {
+			if (url.startsWith("/hierarchicalrequirement") || url.startsWith("/defect")) {
+				assertTrue(url, url.contains("query=(Iteration = /iteration/42)"));
+			}
+		}
+	}
+
+	@Test
+	public void projectsAreResolvedSeparately() throws Exception
+	{
+		connection.retrieveStoriesForIteration("Sprint 1");
+		connection.retrieveStoriesForProjectIteration("Team A", "Sprint 1");
+		connection.retrieveStoriesForIteration("Sprint 1");
+
+		assertEquals(2, connection.count("/iteration"));
+	}
+
+	@Test
+	public void resolvedIterationsExpire() throws Exception
+	{
+		connection.setIterationCacheMillis(0);
+		connection.retrieveStoriesForIteration("Sprint 1");
+		connection.retrieveStoriesForIteration("Sprint 1");
+
+		assertEquals(2, connection.count("/iteration"));
+	}
+
+	@Test
+	public void unknownIterationsFallBackToNames() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForProjectIteration("Team B", "Sprint 1");
+		connection.retrieveStoriesForProjectIteration("Team B", "Sprint 1");
+
+		assertTrue(stories.getStory().isEmpty());
+		// not remembered, so asked for again
+		assertEquals(2, connection.count("/iteration"));
+		assertTrue(connection.queries.get(1).contains("Iteration.Name = \"Sprint 1\""));
+	}
+
+	@Test
+	public void namesAreUsedWhenResolutionIsOff() throws Exception
+	{
+		connection.setResolveIterations(false);
+		connection.retrieveStoriesForIteration("Sprint 1");
+
+		assertEquals(0, connection.count("/iteration"));
+		assertTrue(connection.queries.get(0).contains("query=(Iteration.Name = \"Sprint 1\")"));
+	}
+}
@@ -0,0 +1,229 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+import standup.xml.Links;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskType;
+
+
+public class QueryResultReaderTest
+{
+	private ServerConnection connection;
+	private Marshaller marshaller;
+
+	private final QueryResultReader.ItemReader<StoryType> storyReader =
+		new QueryResultReader.ItemReader<StoryType>() {
+			@Override
+			public StoryType read(JsonReader reader) throws IOException {
+				return connection.readStory(reader);
+			}
+		};
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new ServerConnection();
+		marshaller = JAXBContext.newInstance("standup.xml").createMarshaller();
+	}
+
+	private static JsonObject story(String id, JsonObject owner, Double estimate, String description)
+	{
+		JsonObject story = new JsonObject();
+		story.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/artifact/" + id);
+		story.addProperty("_refObjectName", "ignored");
+		story.addProperty("Name", "Story " + id + " with a name long enough to be shortened");
+		story.addProperty("FormattedID", id);
+		story.add("Owner", (owner == null) ? JsonNull.INSTANCE : owner);
+		if (estimate == null) {
+			story.add("PlanEstimate", JsonNull.INSTANCE);
+		} else {
+			story.addProperty("PlanEstimate", estimate);
+		}
+		if (description != null) {
+			story.addProperty("Description", description);
+		}
+		return story;
+	}
+
+	private static JsonObject owner(String name)
+	{
+		JsonObject owner = new JsonObject();
+		owner.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/user/1");
+		if (name != null) {
+			owner.addProperty("_refObjectName", name);
+		}
+		return owner;
+	}
+
+	private static String response(JsonArray results, JsonArray errors, int total)
+	{
+		JsonObject queryResult = new JsonObject();
+		queryResult.addProperty("_rallyAPIMajor", "2");
+		queryResult.add("Errors", errors);
+		queryResult.add("Warnings", new JsonArray());
+		queryResult.addProperty("TotalResultCount", total);
+		queryResult.addProperty("StartIndex", 1);
+		queryResult.addProperty("PageSize", 200);
+		queryResult.add("Results", results);
+		JsonObject response = new JsonObject();
+		response.add("QueryResult", queryResult);
+		return response.toString();
+	}
+
+	/**
+	 * The story that {@link #story} should decode into.
+	 */
+	private StoryType expected(String id, String owner, double estimate, String description)
+	{
+		StoryType story = new StoryType();
+		String name = "Story " + id + " with a name long enough to be shortened";
+		story.setIdentifier(id);
+		story.setFullName(name);
+		story.setShortName(name.substring(0, 30));
+		story.setOwner(owner);
+		story.setEstimate(estimate);
+		story.setDescription(connection.fixDescription(description));
+		Links.Link link = new Links.Link();
+		link.setOwner(ServerConnection.class.getCanonicalName());
+		link.setRel(ServerConnection.RALLY_OBJECT_URL_REL);
+		link.setValue("https://rally1.rallydev.com/slm/webservice/v2.0/artifact/" + id);
+		story.setLinks(new Links());
+		story.getLinks().getLink().add(link);
+		return story;
+	}
+
+	private String marshal(Iterable<StoryType> stories) throws Exception
+	{
+		StoryList list = new StoryList();
+		for (StoryType story: stories) {
+			list.getStory().add(story);
+		}
+		StringWriter out = new StringWriter();
+		marshaller.marshal(list, out);
+		return out.toString();
+	}
+
+	@Test
+	public void storiesFollowTheModelRules() throws Exception
+	{
+		JsonArray results = new JsonArray();
+		results.add(story("US1", owner("Someone"), 3.0, "<p>Line one<br>Line two</p>"));
+		results.add(story("US2", null, null, null));
+		results.add(story("US3", owner(null), 0.5, ""));
+		results.add(story("DE4", owner("Someone Else"), 13.0, "plain &amp; simple"));
+		String text = response(results, new JsonArray(), 4);
+
+		QueryResultReader.Page<StoryType> page =
+			QueryResultReader.read(new StringReader(text), storyReader);
+
+		assertTrue(page.wasSuccessful());
+		assertEquals(4, page.getTotalResultCount());
+		assertEquals(4, page.getResults().size());
+		assertEquals(marshal(Arrays.asList(
+				expected("US1", "Someone", 3.0, "<p>Line one<br>Line two</p>"),
+				expected("US2", null, 0.0, ""),
+				expected("US3", "", 0.5, ""),
+				expected("DE4", "Someone Else", 13.0, "plain &amp; simple"))),
+			marshal(page.getResults()));
+		assertNull(page.getResults().get(1).getOwner());
+		assertEquals("", page.getResults().get(2).getOwner());
+	}
+
+	@Test
+	public void tasksKeepTheirWorkProduct() throws Exception
+	{
+		JsonObject jsonTask = new JsonObject();
+		jsonTask.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/task/7");
+		jsonTask.addProperty("Name", "Task 7");
+		jsonTask.addProperty("FormattedID", "TA7");
+		jsonTask.add("Owner", owner("Someone"));
+		jsonTask.addProperty("Estimate", 2.5);
+		jsonTask.add("Actuals", JsonNull.INSTANCE);
+		jsonTask.addProperty("LastUpdateDate", "2013-05-01T12:00:00.000Z");
+		JsonObject workProduct = new JsonObject();
+		workProduct.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/hierarchicalrequirement/1");
+		workProduct.add("FormattedID", JsonNull.INSTANCE);
+		jsonTask.add("WorkProduct", workProduct);
+
+		JsonReader reader = new JsonReader(new StringReader(jsonTask.toString()));
+		ServerConnection.TaskRecord record = connection.readTask(reader);
+		TaskType task = record.task;
+
+		assertEquals("TA7", task.getIdentifier());
+		assertEquals("Task 7", task.getFullName());
+		assertEquals("Someone", task.getOwner());
+		assertEquals(2.5, task.getDetailedEstimate(), 0.0);
+		assertEquals(2.5, task.getTodoRemaining(), 0.0);
+		assertEquals(0.0, task.getEffortApplied(), 0.0);
+		assertEquals("https://rally1.rallydev.com/slm/webservice/v2.0/task/7", record.ref);
+		assertNull(record.workProductID);
+		assertEquals("https://rally1.rallydev.com/slm/webservice/v2.0/hierarchicalrequirement/1",
+				record.workProductRef);
+		assertEquals("2013-05-01T12:00:00.000Z", record.lastUpdate);
+	}
+
+	@Test
+	public void membershipNeedsOnlyIdentifiers() throws Exception
+	{
+		String story = "{\"_ref\": \"https://rally1.rallydev.com/slm/webservice/v2.0/artifact/1\","
+			+ " \"FormattedID\": \"US1\"}";
+		assertEquals("US1", ServerConnection.readIdentifier(new JsonReader(new StringReader(story))));
+
+		String task = "{\"FormattedID\": \"TA7\", \"WorkProduct\": {\"FormattedID\": \"US1\"}}";
+		ServerConnection.TaskRecord record =
+			connection.readTaskMembership(new JsonReader(new StringReader(task)));
+		assertEquals("TA7", record.task.getIdentifier());
+		assertEquals("US1", record.workProductID);
+
+		try {
+			ServerConnection.readIdentifier(new JsonReader(new StringReader("{\"Name\": \"x\"}")));
+			fail("an artifact without an identifier was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void errorsAreReported() throws Exception
+	{
+		JsonArray errors = new JsonArray();
+		errors.add(new JsonPrimitive("Could not parse: bad query"));
+		String text = response(new JsonArray(), errors, 0);
+
+		QueryResultReader.Page<StoryType> page =
+			QueryResultReader.read(new StringReader(text), storyReader);
+
+		assertFalse(page.wasSuccessful());
+		assertEquals("Could not parse: bad query", page.getErrors().get(0));
+		assertTrue(page.getResults().isEmpty());
+	}
+
+	@Test(expected=IOException.class)
+	public void rejectsOtherResponses() throws Exception
+	{
+		QueryResultReader.read(new StringReader("{\"OperationResult\": {}}"), storyReader);
+	}
+}
@@ -0,0 +1,428 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+
+
+/**
+ * Hammers a single connection from many threads and checks that every
+ * thread gets exactly what a lone caller would.
+ */
+public class ServerConnectionConcurrencyTest
+{
+	private static final int THREADS = 8;
+	private static final int REQUESTS = 200;
+	private static final int STORIES = 20;
+	private static final int DEFECTS = 3;
+	private static final int TASKS_PER_STORY = 3;
+
+	private static final String[] DESCRIPTIONS = {
+		"",
+		"As a user I want &lt;b&gt;bold&lt;/b&gt; text",
+		"<p>Line one<br>Line two<br />Line three<br/></p>",
+		"<ul><li>one</li><li><b>two</b> <i>three</i></li></ul>",
+		"<p><b>Acceptance criteria:</b></p><ol><li>first&nbsp;step</li><li>second &amp; third</li></ol>",
+	};
+
+	private ServerConnection connection;
+	private ExecutorService executor;
+	private Marshaller marshaller;
+
+	private static final String STORY_RESPONSE = createResponse(createStories("US", STORIES));
+	private static final String DEFECT_RESPONSE = createResponse(createStories("DE", DEFECTS));
+	private static final JsonArray TASKS = createTasks();
+	private static final String ITERATION_RESPONSE = createResponse(createIterations());
+	private static final String ARTIFACT_RESPONSE = createResponse(createArtifacts());
+
+	/**
+	 * Answers every query from canned JSON instead of talking to Rally.
+	 */
+	private static class CannedServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			return new StringReader(respond(request.toUrl()));
+		}
+	}
+
+	/**
+	 * Holds back the story query until the defect query has been answered,
+	 * so the two can only both finish if they run side by side.
+	 */
+	private static class RacingServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		final CountDownLatch defectsAnswered = new CountDownLatch(1);
+		volatile boolean overlapped = false;
+		/** The type of query that fails, if any. */
+		volatile String failing = null;
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			String url = request.toUrl();
+			if (url.startsWith("/hierarchicalrequirement")) {
+				try {
+					overlapped = defectsAnswered.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			String response = (failing != null && url.startsWith(failing))
+				? createErrorResponse("Query failed") : respond(url);
+			if (url.startsWith("/defect")) {
+				defectsAnswered.countDown();
+			}
+			return new StringReader(response);
+		}
+	}
+
+	/**
+	 * Build the canned response to a query.
+	 *
+	 * @param url the query part of the request URL, starting with the
+	 *        type, as produced by {@link QueryRequest#toUrl()}
+	 */
+	static String respond(String url) throws IOException
+	{
+		url = URLDecoder.decode(url, "UTF-8");
+		if (url.startsWith("/hierarchicalrequirement")) {
+			return STORY_RESPONSE;
+		} else if (url.startsWith("/defect")) {
+			return DEFECT_RESPONSE;
+		} else if (url.startsWith("/artifact")) {
+			return ARTIFACT_RESPONSE;
+		} else if (url.startsWith("/iteration")) {
+			return ITERATION_RESPONSE;
+		} else if (url.startsWith("/task")) {
+			// only the tasks of the stories named in the filter
+			JsonArray results = new JsonArray();
+			for (int i = 0; i < TASKS.size(); i++) {
+				JsonObject task = TASKS.get(i).getAsJsonObject();
+				String storyID = task.getAsJsonObject("WorkProduct").get("FormattedID").getAsString();
+				if (url.contains("WorkProduct.FormattedID = " + storyID + ")")) {
+					results.add(task);
+				}
+			}
+			return createResponse(results);
+		}
+		throw new IllegalArgumentException("unexpected query " + url);
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new CannedServerConnection();
+		connection.setMaxConcurrentQueries(4);
+		connection.setTaskBatchSize(STORIES + DEFECTS);
+		executor = Executors.newFixedThreadPool(THREADS);
+		marshaller = JAXBContext.newInstance("standup.xml").createMarshaller();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		executor.shutdownNow();
+		connection.close();
+	}
+
+	static JsonArray createStories(String prefix, int count)
+	{
+		JsonArray results = new JsonArray();
+		for (int i = 0; i < count; i++) {
+			JsonObject story = new JsonObject();
+			story.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/artifact/" + prefix + i);
+			story.addProperty("_type", prefix.equals("DE") ? "Defect" : "HierarchicalRequirement");
+			story.addProperty("Name", "Story " + prefix + i + " with a name long enough to be shortened");
+			story.addProperty("FormattedID", prefix + i);
+			JsonObject owner = new JsonObject();
+			owner.addProperty("_refObjectName", "Owner " + (i % 4));
+			story.add("Owner", owner);
+			story.addProperty("PlanEstimate", (double) i);
+			story.addProperty("Description", DESCRIPTIONS[i % DESCRIPTIONS.length]);
+			results.add(story);
+		}
+		return results;
+	}
+
+	/**
+	 * The stories and defects mixed together, as an artifact query
+	 * returns them.
+	 */
+	private static JsonArray createArtifacts()
+	{
+		JsonArray stories = createStories("US", STORIES);
+		JsonArray defects = createStories("DE", DEFECTS);
+		JsonArray results = new JsonArray();
+		int d = 0;
+		for (int i = 0; i < stories.size(); i++) {
+			if (i % 5 == 1 && d < defects.size()) {
+				results.add(defects.get(d++));
+			}
+			results.add(stories.get(i));
+		}
+		while (d < defects.size()) {
+			results.add(defects.get(d++));
+		}
+		return results;
+	}
+
+	private static JsonArray createIterations()
+	{
+		JsonObject iteration = new JsonObject();
+		iteration.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/iteration/1");
+		iteration.addProperty("Name", "Iteration 1");
+		JsonArray results = new JsonArray();
+		results.add(iteration);
+		return results;
+	}
+
+	private static JsonArray createTasks()
+	{
+		JsonArray results = new JsonArray();
+		int n = 0;
+		for (JsonArray stories: new JsonArray[] {
+				createStories("US", STORIES), createStories("DE", DEFECTS) }) {
+			for (int i = 0; i < stories.size(); i++) {
+				JsonObject story = stories.get(i).getAsJsonObject();
+				for (int t = 0; t < TASKS_PER_STORY; t++, n++) {
+					JsonObject task = new JsonObject();
+					task.addProperty("_ref", "https://rally1.rallydev.com/slm/webservice/v2.0/task/" + n);
+					task.addProperty("Name", "Task " + n);
+					task.addProperty("FormattedID", "TA" + n);
+					task.add("Owner", story.get("Owner"));
+					task.addProperty("Estimate", (double) t);
+					task.addProperty("Actuals", 0.5);
+					task.addProperty("Description", DESCRIPTIONS[n % DESCRIPTIONS.length]);
+					JsonObject workProduct = new JsonObject();
+					workProduct.add("_ref", story.get("_ref"));
+					workProduct.add("FormattedID", story.get("FormattedID"));
+					task.add("WorkProduct", workProduct);
+					results.add(task);
+				}
+			}
+		}
+		return results;
+	}
+
+	static String createResponse(JsonArray results)
+	{
+		return createResponse(results, results.size(), 1, 200);
+	}
+
+	/**
+	 * Build the response for one page of a longer result.
+	 */
+	static String createResponse(JsonArray results, int totalResultCount, int start, int pageSize)
+	{
+		JsonObject queryResult = new JsonObject();
+		queryResult.add("Errors", new JsonArray());
+		queryResult.add("Warnings", new JsonArray());
+		queryResult.addProperty("TotalResultCount", totalResultCount);
+		queryResult.addProperty("StartIndex", start);
+		queryResult.addProperty("PageSize", pageSize);
+		queryResult.add("Results", results);
+		JsonObject response = new JsonObject();
+		response.add("QueryResult", queryResult);
+		return response.toString();
+	}
+
+	/**
+	 * Build the response to a query that Rally refused.
+	 */
+	static String createErrorResponse(String error)
+	{
+		JsonObject queryResult = new JsonObject();
+		JsonArray errors = new JsonArray();
+		errors.add(new JsonPrimitive(error));
+		queryResult.add("Errors", errors);
+		queryResult.add("Warnings", new JsonArray());
+		queryResult.addProperty("TotalResultCount", 0);
+		queryResult.add("Results", new JsonArray());
+		JsonObject response = new JsonObject();
+		response.add("QueryResult", queryResult);
+		return response.toString();
+	}
+
+	private String marshal(Object model) throws Exception
+	{
+		StringWriter writer = new StringWriter();
+		marshaller.marshal(model, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Retrieve an iteration and its tasks, marshalled into one string.
+	 */
+	private String retrieve() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+		TaskList tasks = connection.retrieveTasks(stories);
+		return marshal(stories) + marshal(tasks);
+	}
+
+	@Test
+	public void testArtifactQueryMatchesTypedQueries() throws Exception
+	{
+		String expected = retrieve();
+		connection.setSingleArtifactQuery(true);
+		assertEquals(expected, retrieve());
+	}
+
+	@Test
+	public void testConcurrentRetrievalMatchesSequential() throws Exception
+	{
+		String expected = retrieve();
+		assertTrue(expected.contains("TA" + ((STORIES + DEFECTS) * TASKS_PER_STORY - 1)));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+		for (int i = 0; i < REQUESTS; i++) {
+			final int request = i;
+			futures.add(executor.submit(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws Exception {
+					start.await();
+					// flip settings that must not change the result while
+					// other threads are in the middle of their requests
+					connection.setLazyDescriptions(request % 2 == 0);
+					connection.setTaskBatchSize(1 + request % (STORIES + DEFECTS));
+					connection.setSingleArtifactQuery(request % 3 == 0);
+					StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+					TaskList tasks = connection.retrieveTasks(stories);
+					return new Object[] { stories, tasks };
+				}
+			}));
+		}
+		start.countDown();
+
+		for (Future<Object[]> future: futures) {
+			Object[] result = future.get();
+			// marshal here, while no other thread can touch the results
+			assertEquals(expected, marshal(result[0]) + marshal(result[1]));
+		}
+	}
+
+	@Test
+	public void testChangingConcurrencyReplacesTheQueryPool() throws Exception
+	{
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		ServerConnection recording = new CannedServerConnection() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			Reader openQuery(QueryRequest request) throws IOException
+			{
+				threads.add(Thread.currentThread());
+				return super.openQuery(request);
+			}
+		};
+		try {
+			recording.setResolveIterations(false);
+			recording.setMaxConcurrentQueries(2);
+			recording.retrieveStoriesForIteration("Iteration 1");
+			List<Thread> oldThreads = new ArrayList<Thread>(threads);
+			assertFalse(oldThreads.contains(Thread.currentThread()));
+
+			recording.setMaxConcurrentQueries(3);
+			for (Thread thread: oldThreads) {
+				thread.join(10000);
+				assertFalse("the old pool is still running", thread.isAlive());
+			}
+			threads.clear();
+			recording.retrieveStoriesForIteration("Iteration 1");
+			assertFalse(threads.isEmpty());
+			for (Thread thread: threads) {
+				assertFalse(oldThreads.contains(thread));
+				assertTrue(thread.isAlive());
+			}
+		} finally {
+			recording.close();
+		}
+	}
+
+	/**
+	 * Retrieve an iteration while the defect query answers first.
+	 */
+	private StoryList race(String failing) throws Exception
+	{
+		RacingServerConnection racing = new RacingServerConnection();
+		try {
+			racing.setMaxConcurrentQueries(4);
+			racing.failing = failing;
+			StoryList stories = racing.retrieveStoriesForIteration("Iteration 1");
+			assertTrue(racing.overlapped);
+			return stories;
+		} finally {
+			racing.close();
+		}
+	}
+
+	@Test
+	public void testStoriesComeBeforeDefectsWhicheverAnswersFirst() throws Exception
+	{
+		List<String> expected = new ArrayList<String>();
+		for (StoryType story: connection.retrieveStoriesForIteration("Iteration 1").getStory()) {
+			expected.add(story.getIdentifier());
+		}
+		List<String> identifiers = new ArrayList<String>();
+		for (StoryType story: race(null).getStory()) {
+			identifiers.add(story.getIdentifier());
+		}
+		assertEquals(expected, identifiers);
+		assertEquals("US0", identifiers.get(0));
+		assertEquals("DE0", identifiers.get(STORIES));
+	}
+
+	@Test
+	public void testFailedQueryLeavesTheOtherResults() throws Exception
+	{
+		StoryList stories = race("/defect");
+		assertEquals(STORIES, stories.getStory().size());
+		assertEquals("US" + (STORIES - 1), stories.getStory().get(STORIES - 1).getIdentifier());
+
+		StoryList defects = race("/hierarchicalrequirement");
+		assertEquals(DEFECTS, defects.getStory().size());
+		assertEquals("DE0", defects.getStory().get(0).getIdentifier());
+	}
+
+}
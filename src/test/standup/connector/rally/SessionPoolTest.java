@@ -0,0 +1,181 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rallydev.rest.RallyRestApi;
+import com.rallydev.rest.client.BasicAuthClient;
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.xml.StoryList;
+
+
+/**
+ * Checks that a connection keeps its Rally sessions open between calls
+ * and closes them when it should.
+ */
+public class SessionPoolTest
+{
+	private final List<StubSession> sessions = Collections.synchronizedList(new ArrayList<StubSession>());
+	private ServerConnection connection;
+
+	/**
+	 * A session that answers from canned JSON and remembers being closed.
+	 */
+	private static class StubSession extends RallyRestApi
+	{
+		final String username;
+		volatile boolean closed = false;
+
+		StubSession(URI server, String username)
+		{
+			super(new CannedClient(server, username));
+			this.username = username;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			closed = true;
+			super.close();
+		}
+	}
+
+	private static class CannedClient extends BasicAuthClient
+	{
+		CannedClient(URI server, String username)
+		{
+			super(server, username, "secret");
+		}
+
+		@Override
+		public String doGet(String url) throws IOException
+		{
+			return ServerConnectionConcurrencyTest.respond(url);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new ServerConnection() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected RallyRestApi openSession() throws URISyntaxException
+			{
+				StubSession session = new StubSession(getServerURI(), getUsername());
+				sessions.add(session);
+				return session;
+			}
+		};
+		connection.setUsername("alice");
+		connection.setPassword("secret");
+		connection.setResolveIterations(false);
+		connection.setMaxConcurrentQueries(1);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	private void retrieve() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+		connection.retrieveTasks(stories);
+		connection.retrieveStories(new String[] {"US1", "DE2"});
+		connection.listIterationsForProject("Project");
+	}
+
+	@Test
+	public void testCallsShareOneSession() throws Exception
+	{
+		retrieve();
+		retrieve();
+		assertEquals(1, connection.getSessionCount());
+		assertEquals(1, sessions.size());
+		assertFalse(sessions.get(0).closed);
+	}
+
+	@Test
+	public void testParallelQueriesReuseIdleSessions() throws Exception
+	{
+		connection.setMaxConcurrentQueries(4);
+		for (int i = 0; i < 10; i++) {
+			retrieve();
+		}
+		// no more sessions than queries that ran at the same time
+		assertTrue(connection.getSessionCount() <= 2);
+		assertEquals(connection.getSessionCount(), sessions.size());
+	}
+
+	@Test
+	public void testCredentialsChangeReplacesSessions() throws Exception
+	{
+		retrieve();
+		connection.setUsername("alice");
+		connection.setPassword("secret");
+		retrieve();
+		assertEquals(1, sessions.size());
+
+		connection.setUsername("bob");
+		assertTrue(sessions.get(0).closed);
+		retrieve();
+		assertEquals(2, connection.getSessionCount());
+		assertEquals("bob", sessions.get(1).username);
+		assertFalse(sessions.get(1).closed);
+
+		connection.setPassword("changed");
+		assertTrue(sessions.get(1).closed);
+	}
+
+	@Test
+	public void testCloseClosesSessions() throws Exception
+	{
+		connection.setMaxConcurrentQueries(4);
+		retrieve();
+		connection.close();
+		for (StubSession session: sessions) {
+			assertTrue(session.closed);
+		}
+
+		// the connection stays usable
+		int opened = sessions.size();
+		retrieve();
+		assertTrue(sessions.size() > opened);
+		for (StubSession session: sessions.subList(opened, sessions.size())) {
+			assertFalse(session.closed);
+		}
+	}
+
+	@Test
+	public void testSessionInUseIsClosedWhenReleased() throws Exception
+	{
+		Reader response = connection.openQuery(new QueryRequest("Iteration"));
+		connection.close();
+		assertEquals(1, sessions.size());
+		assertFalse(sessions.get(0).closed);
+
+		response.close();
+		assertTrue(sessions.get(0).closed);
+		response.close();
+
+		retrieve();
+		assertEquals(2, connection.getSessionCount());
+	}
+}
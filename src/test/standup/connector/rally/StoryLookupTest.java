@@ -0,0 +1,185 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.rallydev.rest.request.QueryRequest;
+
+import standup.connector.MissingStoriesException;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+
+
+/**
+ * Checks that stories looked up by identifier come back complete, once
+ * each and in the order that they were asked for.
+ */
+public class StoryLookupTest
+{
+	private static final Pattern TERM = Pattern.compile("FormattedID = ([^)]+)\\)");
+	private static final JsonArray STORIES = ServerConnectionConcurrencyTest.createStories("US", 300);
+	private static final JsonArray DEFECTS = ServerConnectionConcurrencyTest.createStories("DE", 20);
+
+	private LookupServerConnection connection;
+
+	/**
+	 * Answers identifier queries from canned stories and remembers the
+	 * identifiers asked for by each query.
+	 */
+	private static class LookupServerConnection extends ServerConnection
+	{
+		private static final long serialVersionUID = 1L;
+
+		final List<List<String>> queries = Collections.synchronizedList(new ArrayList<List<String>>());
+
+		@Override
+		Reader openQuery(QueryRequest request) throws IOException
+		{
+			String url = URLDecoder.decode(request.toUrl(), "UTF-8");
+			JsonArray candidates = url.startsWith("/defect") ? DEFECTS : STORIES;
+			if (url.startsWith("/artifact")) {
+				candidates = new JsonArray();
+				candidates.addAll(DEFECTS);
+				candidates.addAll(STORIES);
+			}
+			List<String> ids = new ArrayList<String>();
+			Matcher m = TERM.matcher(url);
+			while (m.find()) {
+				ids.add(m.group(1));
+			}
+			queries.add(ids);
+
+			JsonArray results = new JsonArray();
+			for (int i = 0; i < candidates.size(); i++) {
+				JsonObject story = candidates.get(i).getAsJsonObject();
+				String id = story.get("FormattedID").getAsString();
+				for (String wanted: ids) {
+					if (wanted.equalsIgnoreCase(id)) {
+						results.add(story);
+						break;
+					}
+				}
+			}
+			return new StringReader(ServerConnectionConcurrencyTest.createResponse(results));
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		connection = new LookupServerConnection();
+		connection.setIdentifierChunkSize(40);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	private static List<String> identifiers(StoryList stories)
+	{
+		List<String> ids = new ArrayList<String>();
+		for (StoryType story: stories.getStory()) {
+			ids.add(story.getIdentifier());
+		}
+		return ids;
+	}
+
+	@Test
+	public void storiesFollowTheRequestOrder() throws Exception
+	{
+		List<String> wanted = new ArrayList<String>();
+		for (int i = 299; i >= 0; i -= 3) {
+			wanted.add("US" + i);
+			if (i % 15 == 0) {
+				wanted.add("DE" + (i % 20));
+			}
+		}
+		StoryList stories = connection.retrieveStories(wanted.toArray(new String[wanted.size()]));
+
+		assertEquals(wanted, identifiers(stories));
+		// a story and a defect query for every chunk
+		assertEquals(2 * ((wanted.size() + 39) / 40), connection.queries.size());
+		for (List<String> query: connection.queries) {
+			assertTrue(query.size() <= 40);
+		}
+	}
+
+	@Test
+	public void artifactQueriesHalveTheRoundTrips() throws Exception
+	{
+		connection.setSingleArtifactQuery(true);
+		String[] wanted = { "DE4", "US17", "US3", "DE0", "US250" };
+		StoryList stories = connection.retrieveStories(wanted);
+
+		assertEquals(Arrays.asList(wanted), identifiers(stories));
+		assertEquals(1, connection.queries.size());
+	}
+
+	@Test
+	public void repeatedIdentifiersAreRetrievedOnce() throws Exception
+	{
+		StoryList stories = connection.retrieveStories(
+				new String[] { "US5", "DE3", "us5", " US7 ", "US5", "DE3" });
+
+		assertEquals(Arrays.asList("US5", "DE3", "US7"), identifiers(stories));
+		assertEquals(Arrays.asList("US5", "DE3", "US7"), connection.queries.get(0));
+	}
+
+	@Test
+	public void missingStoriesAreReported() throws Exception
+	{
+		try {
+			connection.retrieveStories(new String[] { "US1", "US999", "DE2", "DE77" });
+			fail("expected MissingStoriesException");
+		} catch (MissingStoriesException e) {
+			assertEquals(Arrays.asList("US999", "DE77"), e.getMissingIdentifiers());
+			assertEquals(Arrays.asList("US1", "DE2"), identifiers(e.getStories()));
+		}
+	}
+
+	@Test
+	public void filterLengthLimitsTheChunks() throws Exception
+	{
+		connection.setIdentifierChunkSize(1000);
+		String[] wanted = new String[300];
+		for (int i = 0; i < wanted.length; i++) {
+			wanted[i] = "US" + i;
+		}
+		StoryList stories = connection.retrieveStories(wanted);
+
+		assertEquals(Arrays.asList(wanted), identifiers(stories));
+		assertTrue(connection.queries.size() > 2);
+		for (List<String> query: connection.queries) {
+			assertTrue(query.size() < wanted.length);
+		}
+	}
+
+	@Test
+	public void noIdentifiersNoQueries() throws Exception
+	{
+		StoryList stories = connection.retrieveStories(new String[0]);
+
+		assertTrue(stories.getStory().isEmpty());
+		assertTrue(connection.queries.isEmpty());
+	}
+}
@@ -0,0 +1,204 @@
+package standup.connector.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import standup.connector.PooledHttpClientFactory;
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+
+/**
+ * Runs the same retrievals over each transport against a local server
+ * that serves the canned responses of {@link ServerConnectionConcurrencyTest}.
+ */
+public class TransportConformanceTest
+{
+	private static final String SERVICE_PATH = "/slm/webservice/v" + Constants.RALLY_API_VERSION;
+
+	private HttpServer server;
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final Set<String> integrationNames = Collections.synchronizedSet(new HashSet<String>());
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger compressedCount = new AtomicInteger();
+	private ServerConnection connection;
+	private PooledHttpClientFactory pool;
+	private Marshaller marshaller;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				requestCount.incrementAndGet();
+				integrationNames.add(String.valueOf(
+						exchange.getRequestHeaders().getFirst("X-RallyIntegrationName")));
+				String path = exchange.getRequestURI().getRawPath();
+				String query = exchange.getRequestURI().getRawQuery();
+				byte[] body;
+				int status = 200;
+				try {
+					body = ServerConnectionConcurrencyTest.respond(
+							path.substring(SERVICE_PATH.length()) + "?" + query).getBytes("UTF-8");
+				} catch (RuntimeException e) {
+					body = e.toString().getBytes("UTF-8");
+					status = 404;
+				}
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if (accept != null && accept.contains("gzip")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					GZIPOutputStream zip = new GZIPOutputStream(bytes);
+					zip.write(body);
+					zip.close();
+					body = bytes.toByteArray();
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+					compressedCount.incrementAndGet();
+				}
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		final URI serverURI = new URI("http://localhost:" + server.getAddress().getPort());
+		connection = new ServerConnection() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected URI getServerURI() throws URISyntaxException {
+				return serverURI;
+			}
+		};
+		connection.setUsername("user");
+		connection.setPassword("password");
+		connection.setMaxConcurrentQueries(4);
+		connection.setTaskBatchSize(4);
+		pool = new PooledRallyClientFactory();
+		marshaller = JAXBContext.newInstance("standup.xml").createMarshaller();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+		pool.close();
+		server.stop(0);
+	}
+
+	private String marshal(Object model) throws Exception
+	{
+		StringWriter writer = new StringWriter();
+		marshaller.marshal(model, writer);
+		return writer.toString();
+	}
+
+	private String retrieve() throws Exception
+	{
+		StoryList stories = connection.retrieveStoriesForIteration("Iteration 1");
+		TaskList tasks = connection.retrieveTasks(stories);
+		return marshal(stories) + marshal(tasks);
+	}
+
+	/**
+	 * Check that every request so far identified the integration and
+	 * asked for a compressed response.
+	 */
+	private void assertWireFormat()
+	{
+		assertTrue(requestCount.get() > 0);
+		assertEquals(Collections.singleton("jRally"), integrationNames);
+		assertEquals(requestCount.get(), compressedCount.get());
+	}
+
+	@Test
+	public void testPooledTransportMatchesSessionTransport() throws Exception
+	{
+		String expected = retrieve();
+		assertTrue(expected.contains("US19"));
+
+		connection.setConnectionPool(pool);
+		assertEquals(expected, retrieve());
+	}
+
+	@Test
+	public void testSessionTransportWireFormat() throws Exception
+	{
+		retrieve();
+		assertWireFormat();
+	}
+
+	@Test
+	public void testPooledTransportWireFormat() throws Exception
+	{
+		connection.setConnectionPool(pool);
+		retrieve();
+		assertWireFormat();
+	}
+
+	@Test
+	public void testPooledTransportReusesConnections() throws Exception
+	{
+		connection.setConnectionPool(pool);
+		retrieve();
+		connection.close();		// a new session for every request from here on
+		retrieve();
+		connection.setUsername("someone else");
+		retrieve();
+		assertTrue("used " + clientPorts.size() + " connections",
+				clientPorts.size() <= pool.getDefaultMaxPerRoute());
+	}
+
+	@Test(timeout=10000)
+	public void testPooledTransportReleasesFailedConnections() throws Exception
+	{
+		String expected = marshal(connection.retrieveStoriesForIteration("Iteration 1"));
+		PooledHttpClientFactory tinyPool = new PooledRallyClientFactory();
+		tinyPool.setDefaultMaxPerRoute(1);
+		connection.setConnectionPool(tinyPool);
+		try {
+			// the server does not know about iterations so each of these
+			// fails, and would hang if a failed request kept its connection
+			for (int i = 0; i < 3; i++) {
+				try {
+					connection.listIterationsForProject("no such project");
+				} catch (IOException e) {
+					// expected
+				}
+			}
+			assertEquals(expected, marshal(connection.retrieveStoriesForIteration("Iteration 1")));
+		} finally {
+			connection.setConnectionPool(null);
+			tinyPool.close();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package standup.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.util.JAXBSource;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.xml.StoryList;
+import standup.xml.TaskList;
+
+
+/**
+ * Checks that the model reader reports what the JAXB marshaller would.
+ */
+public class ModelReaderTest
+{
+	private static final String STORIES =
+		"<story-list>"
+		+ "<links><link owner='someone' rel='self'>https://example.com/stories</link></links>"
+		+ "<story><short-name>First</short-name><full-name>The first story</full-name>"
+		+ "<identifier>US1</identifier><description>Plain <b>bold &amp; <i>italic</i></b><br/>"
+		+ "<p class='lead'>A paragraph<br/>with a break</p><ul><li>one</li><li><p>two</p>"
+		+ "<ol><li><tt>three</tt></li></ol></li></ul><div>last</div></description>"
+		+ "<owner>Someone</owner><estimate>2.5</estimate><state>Defined</state></story>"
+		+ "<story><short-name>Second</short-name><full-name>The second story</full-name>"
+		+ "<identifier>DE2</identifier><owner></owner><estimate>0.0</estimate>"
+		+ "<state>Completed</state></story>"
+		+ "</story-list>";
+
+	private static final String TASKS =
+		"<task-list><task>"
+		+ "<links><link owner='US1'>https://example.com/task/1</link></links>"
+		+ "<short-name>Task</short-name><full-name>The task</full-name>"
+		+ "<identifier>TA1</identifier><parent-identifier>US1</parent-identifier>"
+		+ "<description>Do <font color='red'>it</font></description><owner>Someone</owner>"
+		+ "<detailed-estimate>3.0</detailed-estimate><todo-remaining>1.5</todo-remaining>"
+		+ "<effort-applied>1.5</effort-applied><state>In-Progress</state>"
+		+ "</task></task-list>";
+
+	private JAXBContext jaxb;
+	private StoryList stories;
+	private TaskList tasks;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		jaxb = XMLResources.getJAXBContext();
+		stories = (StoryList) jaxb.createUnmarshaller().unmarshal(new StringReader(STORIES));
+		tasks = (TaskList) jaxb.createUnmarshaller().unmarshal(new StringReader(TASKS));
+	}
+
+	private static String serialize(Source source) throws Exception
+	{
+		Transformer identity = TransformerFactory.newInstance().newTransformer();
+		StringWriter out = new StringWriter();
+		identity.transform(source, new StreamResult(out));
+		return out.toString();
+	}
+
+	@Test
+	public void storiesMatchTheMarshaller() throws Exception
+	{
+		assertEquals(serialize(new JAXBSource(jaxb, stories)),
+				serialize(ModelReader.createSource(stories)));
+	}
+
+	@Test
+	public void tasksMatchTheMarshaller() throws Exception
+	{
+		assertEquals(serialize(new JAXBSource(jaxb, tasks)),
+				serialize(ModelReader.createSource(tasks)));
+	}
+
+	@Test
+	public void cardsAreReportedByThemselves() throws Exception
+	{
+		String story = serialize(ModelReader.createSource(stories.getStory().get(0)));
+		assertTrue(story, story.contains("><story><short-name>First</short-name>"));
+		assertTrue(story, story.endsWith("</story>"));
+
+		String task = serialize(ModelReader.createSource(tasks.getTask().get(0)));
+		assertTrue(task, task.contains("><task><links>"));
+	}
+
+	@Test
+	public void listsCanLeaveTheirCardsOut() throws Exception
+	{
+		String list = serialize(ModelReader.createListSourceWithoutCards(stories));
+		assertTrue(list, list.contains("<story-list><links>"));
+		assertFalse(list, list.contains("<story>"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsOtherObjects() throws Exception
+	{
+		ModelReader.createSource("not a story");
+	}
+}
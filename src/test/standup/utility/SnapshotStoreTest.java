@@ -0,0 +1,132 @@
+package standup.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import standup.utility.SnapshotStore.Snapshot;
+import standup.xml.ObjectFactory;
+import standup.xml.StoryList;
+import standup.xml.StoryType;
+import standup.xml.TaskList;
+import standup.xml.TaskType;
+
+
+public class SnapshotStoreTest
+{
+	private final ObjectFactory objFactory = new ObjectFactory();
+	private File directory;
+	private SnapshotStore store;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = File.createTempFile("snapshots", "");
+		directory.delete();
+		store = new SnapshotStore(directory);
+	}
+
+	@After
+	public void tearDown()
+	{
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private StoryList createStories(String... names)
+	{
+		StoryList stories = objFactory.createStoryList();
+		for (int i = 0; i < names.length; i++) {
+			StoryType story = objFactory.createStoryType();
+			story.setIdentifier("US" + i);
+			story.setFullName(names[i]);
+			stories.getStory().add(story);
+		}
+		return stories;
+	}
+
+	@Test
+	public void testLoadMissingSnapshot() throws Exception
+	{
+		assertNull(store.load("project/iteration"));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception
+	{
+		TaskList tasks = objFactory.createTaskList();
+		TaskType task = objFactory.createTaskType();
+		task.setIdentifier("TA1");
+		task.setFullName("first task");
+		tasks.getTask().add(task);
+
+		assertTrue(store.save("project/iteration", createStories("one", "two"), tasks));
+		Snapshot snapshot = store.load("project/iteration");
+		assertNotNull(snapshot);
+		assertEquals(2, snapshot.getStories().getStory().size());
+		assertEquals("US1", snapshot.getStories().getStory().get(1).getIdentifier());
+		assertEquals("two", snapshot.getStories().getStory().get(1).getFullName());
+		assertEquals("TA1", snapshot.getTasks().getTask().get(0).getIdentifier());
+	}
+
+	@Test
+	public void testSaveReportsChanges() throws Exception
+	{
+		assertTrue(store.save("iteration", createStories("one"), null));
+		assertFalse(store.save("iteration", createStories("one"), null));
+		assertTrue(store.save("iteration", createStories("one", "two"), null));
+		assertNull(store.load("iteration").getTasks());
+	}
+
+	@Test
+	public void testIgnoresOtherVersions() throws Exception
+	{
+		store.save("iteration", createStories("one"), null);
+		File file = store.getFile("iteration");
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] header = new byte[64];
+		System.arraycopy(new byte[] { 'S', 'N', 'A', 'P', 0x7f, 0x7f }, 0, header, 0, 6);
+		out.write(header);
+		out.close();
+		assertNull(store.load("iteration"));
+	}
+
+	@Test
+	public void testIgnoresOtherFiles() throws Exception
+	{
+		store.save("iteration", createStories("one"), null);
+		FileOutputStream out = new FileOutputStream(store.getFile("iteration"));
+		out.write("not a snapshot at all, just some text".getBytes("UTF-8"));
+		out.close();
+		assertNull(store.load("iteration"));
+		assertTrue(store.save("iteration", createStories("one"), null));
+	}
+
+	@Test
+	public void testReplacesLoadedSnapshot() throws Exception
+	{
+		store.save("iteration", createStories("one"), null);
+		Snapshot loaded = store.load("iteration");
+
+		// nothing that was loaded may keep the file from being replaced
+		assertTrue(store.save("iteration", createStories("one", "two"), null));
+		assertEquals(1, loaded.getStories().getStory().size());
+		assertEquals(2, store.load("iteration").getStories().getStory().size());
+		assertTrue(store.remove("iteration"));
+	}
+
+}
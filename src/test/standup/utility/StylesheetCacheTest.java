@@ -0,0 +1,131 @@
+package standup.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class StylesheetCacheTest
+{
+	private static final String STYLESHEET = "xslt/story-cards.xsl";
+
+	private File stylesheetFile;
+	private StylesheetCache cache;
+	private TransformerFactory factory;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		stylesheetFile = File.createTempFile("stylesheet", ".xsl");
+		cache = new StylesheetCache() {
+			@Override
+			URL getResource(String xsltFilename) {
+				if (xsltFilename.equals("test.xsl")) {
+					try {
+						return stylesheetFile.toURI().toURL();
+					} catch (MalformedURLException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return super.getResource(xsltFilename);
+			}
+		};
+		factory = TransformerFactory.newInstance();
+	}
+
+	@After
+	public void tearDown()
+	{
+		stylesheetFile.delete();
+	}
+
+	private void writeStylesheet(String output) throws Exception
+	{
+		FileWriter writer = new FileWriter(stylesheetFile);
+		writer.write("<xsl:stylesheet version=\"1.0\""
+				+ " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+				+ "<xsl:output method=\"text\"/>"
+				+ "<xsl:template match=\"/\">" + output + "</xsl:template>"
+				+ "</xsl:stylesheet>");
+		writer.close();
+	}
+
+	private String transform(Templates templates) throws Exception
+	{
+		StringWriter writer = new StringWriter();
+		templates.newTransformer().transform(new StreamSource(new StringReader("<x/>")),
+				new StreamResult(writer));
+		return writer.toString();
+	}
+
+	@Test
+	public void testCompilesOnce() throws Exception
+	{
+		Templates templates = cache.getTemplates(STYLESHEET, factory);
+		assertSame(templates, cache.getTemplates(STYLESHEET, factory));
+		assertSame(templates, cache.getTemplates(STYLESHEET, factory));
+		assertEquals(1, cache.getStatistics().getCompileCount());
+		assertEquals(2, cache.getStatistics().getHitCount());
+	}
+
+	@Test
+	public void testCompilesPerFactory() throws Exception
+	{
+		Templates templates = cache.getTemplates(STYLESHEET, factory);
+		assertNotSame(templates, cache.getTemplates(STYLESHEET, TransformerFactory.newInstance()));
+		assertEquals(2, cache.getStatistics().getCompileCount());
+	}
+
+	@Test
+	public void testReloadsOnChange() throws Exception
+	{
+		writeStylesheet("one");
+		assertEquals("one", transform(cache.getTemplates("test.xsl", factory)));
+		writeStylesheet("two");
+		stylesheetFile.setLastModified(stylesheetFile.lastModified() + 10000);
+		assertEquals("one", transform(cache.getTemplates("test.xsl", factory)));
+
+		cache.setReloadOnChange(true);
+		Templates templates = cache.getTemplates("test.xsl", factory);
+		assertEquals("two", transform(templates));
+		assertSame(templates, cache.getTemplates("test.xsl", factory));
+		assertEquals(2, cache.getStatistics().getCompileCount());
+	}
+
+	@Test
+	public void testDoesNotCacheFailures() throws Exception
+	{
+		writeStylesheet("<xsl:bogus/>");
+		try {
+			cache.getTemplates("test.xsl", factory);
+		} catch (TransformerException e) {
+			// expected
+		}
+		writeStylesheet("fixed");
+		assertEquals("fixed", transform(cache.getTemplates("test.xsl", factory)));
+	}
+
+	@Test(expected=TransformerException.class)
+	public void testMissingStylesheetThrows() throws Exception
+	{
+		cache.getTemplates("non-existant/no-file", factory);
+	}
+
+}
@@ -0,0 +1,49 @@
+package standup.utility;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.fop.apps.FopFactory;
+
+/**
+ * Measures what it costs to get ready to render cards.
+ * <p>
+ * Run it as a plain Java application with the test classpath, once each
+ * with {@code private}, {@code shared} and {@code warm}, each in a fresh
+ * JVM since most of the first-time cost is class loading.  {@code private}
+ * builds everything per renderer the way that each {@code Formatter} used
+ * to; {@code shared} goes through {@link XMLResources}; {@code warm} starts
+ * {@link XMLResources#warmUp(String...)} and then waits for as long as a
+ * Rally query typically takes.  All of them prepare for two renders, as a
+ * run that writes story and task cards does.
+ */
+public class XMLResourcesBenchmark {
+	private static final String STYLESHEET = "xslt/story-cards.xsl";
+	private static final int RENDERERS = 2;
+	private static final long QUERY_MILLIS = 1500;
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0] : "private";
+		boolean shared = !mode.equals("private");
+		if (mode.equals("warm")) {
+			XMLResources.warmUp(STYLESHEET);
+			Thread.sleep(QUERY_MILLIS);
+		}
+		for (int i = 1; i <= RENDERERS; i++) {
+			long start = System.nanoTime();
+			if (shared) {
+				XMLResources.getJAXBContext();
+				XMLResources.getFopFactory();
+				XMLResources.getStylesheet(STYLESHEET).newTransformer();
+			} else {
+				JAXBContext.newInstance("standup.xml");
+				FopFactory.newInstance();
+				TransformerFactory.newInstance().newTransformer(
+						new StreamSource(ClassLoader.getSystemResourceAsStream(STYLESHEET)));
+			}
+			System.out.println(String.format("%s renderer %d ready in %d ms",
+					mode, i, (System.nanoTime() - start) / 1000000));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package standup.utility;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+
+import org.junit.Test;
+
+
+public class XMLResourcesTest
+{
+	private static final String STYLESHEET = "xslt/story-cards.xsl";
+
+	@Test
+	public void testSharesInstances() throws Exception
+	{
+		assertSame(XMLResources.getJAXBContext(), XMLResources.getJAXBContext());
+		assertSame(XMLResources.getFopFactory(), XMLResources.getFopFactory());
+		assertSame(XMLResources.getTransformerFactory(), XMLResources.getTransformerFactory());
+		assertSame(XMLResources.getStylesheet(STYLESHEET), XMLResources.getStylesheet(STYLESHEET));
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneContext() throws Exception
+	{
+		XMLResources.warmUp(STYLESHEET);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+			for (int i = 0; i < 32; i++) {
+				futures.add(executor.submit(new Callable<Object[]>() {
+					@Override
+					public Object[] call() throws Exception {
+						return new Object[] {
+							XMLResources.getJAXBContext(),
+							XMLResources.getStylesheet(STYLESHEET)
+						};
+					}
+				}));
+			}
+			JAXBContext jaxb = XMLResources.getJAXBContext();
+			Templates stylesheet = XMLResources.getStylesheet(STYLESHEET);
+			for (Future<Object[]> future: futures) {
+				Object[] result = future.get();
+				assertSame(jaxb, result[0]);
+				assertSame(stylesheet, result[1]);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFopWarmUpRendersOnce() throws Exception
+	{
+		long start = System.nanoTime();
+		XMLResources.warmUpFop();
+		long first = System.nanoTime() - start;
+		start = System.nanoTime();
+		XMLResources.warmUpFop();
+		long second = System.nanoTime() - start;
+		assertTrue(second < first);
+	}
+
+	@Test(expected=TransformerException.class)
+	public void testMissingStylesheetThrows() throws Exception
+	{
+		XMLResources.getStylesheet("non-existant/no-file");
+	}
+
+	@Test
+	public void testStylesheetCanBeUsed() throws Exception
+	{
+		assertNotNull(XMLResources.getStylesheet(STYLESHEET).newTransformer());
+	}
+
+}